@@ -0,0 +1,4 @@
+#!/bin/bash
+
+# 建置並執行所有效能測試；可加上 JMH 參數，例如：./run.sh GroupBroadcast -p groupSize=64
+mvn -q -B package && java -jar target/benchmarks.jar "$@"
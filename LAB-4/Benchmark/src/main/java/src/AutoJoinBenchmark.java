@@ -0,0 +1,66 @@
+package src;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 自動補位：已滿的群組有一條很長的等待佇列，最早加入的成員離開（廣播離開訊息、
+ * 佇列最前面的客戶端遞補並廣播加入訊息），離開的成員再重新排到佇列尾端
+ *
+ * 排隊位置通知平常在 --queue-notify-interval 內合併成一次，這裡把間隔設得很長，
+ * autoJoin 只量測補位本身；autoJoinAndNotify 每次補位後立即通知所有往前移的等待者（最壞情況）。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AutoJoinBenchmark {
+    private static final String GROUP = "Group_A";
+    private static final int GROUP_SIZE = 4;
+
+    @Param({"16", "256", "4096"})
+    public int waiting;
+
+    private ChatGroup group;
+    // 與群組內部順序一致的成員（依加入順序）與等待者（依排隊順序）
+    private final ArrayDeque<Server.ClientHandler> members = new ArrayDeque<>();
+    private final ArrayDeque<Server.ClientHandler> queue = new ArrayDeque<>();
+
+    @Setup
+    public void setup() throws IOException {
+        BenchSupport.start("--max-clients=" + (GROUP_SIZE + waiting), "--max-group-size=" + GROUP_SIZE,
+                "--queue-notify-interval=" + Integer.MAX_VALUE);
+        group = BenchSupport.group(GROUP);
+        for (int i = 0; i < GROUP_SIZE + waiting; i++) {
+            Server.ClientHandler c = BenchSupport.connect(new MemoryConnection());
+            BenchSupport.onShard(GROUP, () -> c.joinGroup(GROUP));
+            (i < GROUP_SIZE ? members : queue).add(c);
+        }
+    }
+
+    @Benchmark
+    public void autoJoin() throws IOException {
+        cycle();
+    }
+
+    @Benchmark
+    public void autoJoinAndNotify() throws IOException {
+        cycle();
+        Server.sendWaitingQueuePositions(group);
+        // 維持「已排定通知」的狀態，避免每次補位都向計時器排入一個不會執行的工作
+        group.positionsDirty = true;
+    }
+
+    private void cycle() throws IOException {
+        Server.ClientHandler leaving = members.poll();
+        Server.removeMember(leaving, false);
+        members.add(queue.poll());
+        leaving.joinGroup(GROUP);
+        queue.add(leaving);
+    }
+}
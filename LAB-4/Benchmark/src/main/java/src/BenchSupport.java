@@ -0,0 +1,91 @@
+package src;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 效能測試的共用設定：在同一個行程內建立伺服器狀態並以記憶體連線接上客戶端
+ *
+ * 群組狀態只能由所屬分片的執行緒存取；設定階段以 onShard() 在分片上執行並等待完成，
+ * 量測階段沒有其他指令在執行，分片執行緒處於閒置，由 JMH 的執行緒直接呼叫伺服器方法
+ * （等同於由分片執行，且不把跨執行緒交棒的時間算進結果）。
+ */
+final class BenchSupport {
+    /**
+     * 在分片上執行的設定步驟
+     */
+    @FunctionalInterface
+    interface Step {
+        void run() throws IOException;
+    }
+
+    private BenchSupport() {
+    }
+
+    /**
+     * 以啟動參數建立伺服器狀態（群組登錄表與常駐群組，不開始監聽）
+     *
+     * @param args 與 Server 相同的啟動參數
+     */
+    static void start(String... args) {
+        Server.init(ServerConfig.parse(args));
+    }
+
+    /**
+     * 接上一個客戶端：進入大廳並廣播上線訊息，binary 時再完成握手改用二進位協定
+     *
+     * @param conn     客戶端使用的記憶體連線
+     * @param binary   是否改用二進位協定
+     * @param features 握手時要求的功能旗標（Protocol.FEATURE_*）
+     * @return 客戶端處理器
+     */
+    static Server.ClientHandler connect(MemoryConnection conn, boolean binary, int features) throws IOException {
+        Server.ClientHandler c = Server.openSession(conn);
+        if (c == null) {
+            throw new IllegalStateException("Server is full, raise --max-clients");
+        }
+        c.onConnect();
+        if (binary) {
+            // 握手回覆由分片非同步送出，等到寫出後連線才改用二進位協定
+            long before = conn.frames();
+            c.handleCommand(Protocol.hello(Protocol.VERSION, features));
+            conn.awaitFrames(before + 1);
+        }
+        return c;
+    }
+
+    /**
+     * 接上一個使用二進位協定、不壓縮的客戶端
+     */
+    static Server.ClientHandler connect(MemoryConnection conn) throws IOException {
+        return connect(conn, true, 0);
+    }
+
+    /**
+     * 在群組所屬的分片上執行一個步驟並等待完成
+     *
+     * @param group 正規化後的群組名稱
+     * @param step  要執行的步驟
+     */
+    static void onShard(String group, Step step) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Server.groups().execute(group, () -> {
+            try {
+                step.run();
+                done.complete(null);
+            } catch (IOException | RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        });
+        done.join();
+    }
+
+    /**
+     * 取得群組（不存在時建立）
+     *
+     * @param name 正規化後的群組名稱
+     */
+    static ChatGroup group(String name) {
+        return Server.groups().create(name);
+    }
+}
@@ -0,0 +1,205 @@
+package src;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 輸出合併：忙碌群組中的一位成員每收到一則訊息需要幾次 Socket 寫入（每次寫入相當於一次系統呼叫）
+ *
+ * 受測成員的連線寫入一個只計算寫入次數與位元組數的 Socket：
+ *   coalesced  SocketConnection：寫出執行緒把佇列中現有的訊框全部寫入緩衝區後才 flush，處理指令期間 cork
+ *   perFrame   每個訊框直接寫出並 flush（合併之前的做法），cork 不做任何事
+ * burstBroadcast 由其他成員連續送出 burst 則聊天訊息；burstHistory 由受測成員連續送出 burst 次
+ * HISTORY LAST 20（每次回覆 22 個訊框，在分片上 cork）。
+ * 每次操作都等到受測成員的訊框全部寫出才結束；附加計數器 writes ÷ frames 即為平均每個訊框的寫入次數。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CoalescingBenchmark {
+    private static final String GROUP = "Group_A";
+    private static final int GROUP_SIZE = 64;
+    private static final int HISTORY_PAGE = 20;
+    private static final String MESSAGE = "[User_1]: hello everyone, this is a chat message";
+
+    @Param({"coalesced", "perFrame"})
+    public String writer;
+
+    @Param({"1", "16"})
+    public int burst;
+
+    /**
+     * 寫入次數與訊框數（JMH 附加計數器，不隨時間正規化，結果為所有量測迭代的總和）
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Writes {
+        public long writes;
+        public long frames;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            writes = 0;
+            frames = 0;
+        }
+    }
+
+    /**
+     * 代替 Socket：只計算底層輸出流的寫入次數與位元組數
+     */
+    static final class CountingSocket extends Socket {
+        final AtomicLong writes = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                writes.incrementAndGet();
+                bytes.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes.incrementAndGet();
+                bytes.addAndGet(len);
+            }
+        };
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+            // 沒有實際的連線
+        }
+    }
+
+    /**
+     * 不合併的連線：每個訊框在送出的執行緒上直接寫入並 flush
+     */
+    static final class PerFrameConnection implements ChatConnection {
+        private final OutputStream out;
+
+        PerFrameConnection(CountingSocket socket) {
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public synchronized void send(Frame frame) throws IOException {
+            frame.writeTo(out, Protocol.LEGACY, 0);
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final CountingSocket socket = new CountingSocket();
+    private ChatGroup group;
+    private Server.ClientHandler sender;
+    private Server.ClientHandler receiver;
+    private long broadcastBytes;
+    private long historyBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchSupport.start("--max-clients=" + GROUP_SIZE, "--group-max-size=" + GROUP + ":" + GROUP_SIZE,
+                "--history-depth=50", "--presence-interval=0");
+        group = BenchSupport.group(GROUP);
+        ChatConnection conn = writer.equals("coalesced")
+                ? new SocketConnection(socket, Server.newOutboundQueue(), task -> {
+                    Thread t = new Thread(task, "writer");
+                    t.setDaemon(true);
+                    t.start();
+                })
+                : new PerFrameConnection(socket);
+        receiver = Server.openSession(conn);
+        receiver.onConnect();
+        BenchSupport.onShard(GROUP, () -> receiver.joinGroup(GROUP));
+        for (int i = 1; i < GROUP_SIZE; i++) {
+            Server.ClientHandler c = BenchSupport.connect(new MemoryConnection());
+            BenchSupport.onShard(GROUP, () -> c.joinGroup(GROUP));
+            if (sender == null) {
+                sender = c;
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            BenchSupport.onShard(GROUP, () -> Server.broadcast(group, MESSAGE, sender));
+        }
+        // 先各執行一次，量出受測成員每次收到的位元組數，之後以此判斷訊框是否已全部寫出
+        broadcastBytes = measure(() -> BenchSupport.onShard(GROUP, () -> Server.broadcast(group, MESSAGE, sender)));
+        historyBytes = measure(() -> receiver.handleCommand("HISTORY LAST " + HISTORY_PAGE));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        receiver.handleCommand("EXIT!");
+    }
+
+    @Benchmark
+    public void burstBroadcast(Writes counters) {
+        long writes = socket.writes.get();
+        long target = socket.bytes.get() + burst * broadcastBytes;
+        // 量測期間沒有其他指令，由 JMH 的執行緒直接呼叫（等同於在分片上執行）
+        for (int i = 0; i < burst; i++) {
+            Server.broadcast(group, MESSAGE, sender);
+        }
+        awaitBytes(target);
+        counters.writes += socket.writes.get() - writes;
+        counters.frames += burst;
+    }
+
+    @Benchmark
+    public void burstHistory(Writes counters) throws IOException {
+        long writes = socket.writes.get();
+        long target = socket.bytes.get() + burst * historyBytes;
+        for (int i = 0; i < burst; i++) {
+            receiver.handleCommand("HISTORY LAST " + HISTORY_PAGE);
+        }
+        awaitBytes(target);
+        counters.writes += socket.writes.get() - writes;
+        counters.frames += burst * (HISTORY_PAGE + 2L);
+    }
+
+    /**
+     * 執行一次並等到寫出停止，回傳受測成員這段期間收到的位元組數
+     * 執行前先等其他非同步送出的訊框（上線通知等）寫完，避免算進這一次
+     */
+    private long measure(BenchSupport.Step step) throws IOException {
+        long before = settle();
+        step.run();
+        return settle() - before;
+    }
+
+    /**
+     * 等到受測成員的位元組數在一段時間內不再變化
+     */
+    private long settle() {
+        long last;
+        do {
+            last = socket.bytes.get();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } while (socket.bytes.get() != last);
+        return last;
+    }
+
+    private void awaitBytes(long target) {
+        while (socket.bytes.get() < target) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package src;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 壓縮門檻：不同 --compression-threshold 下，送給協商了壓縮的客戶端的位元組數與 CPU 成本
+ *
+ * broadcast 依序廣播長短不一的聊天訊息（約 50 bytes 到 18 KB 的管理員公告）；
+ * history 送出 50 則一般長度、各不相同的歷史訊息的 HISTORY 回覆（整批壓縮成一個訊框）。
+ * 附加計數器 rawBytes 為不壓縮時的位元組數、sentBytes 為實際送出的位元組數（所有量測迭代的總和），
+ * 1 - sentBytes ÷ rawBytes 即為節省的比例；門檻 0 表示不提供壓縮，作為 CPU 成本的基準。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+    private static final String GROUP = "Group_A";
+    private static final int HISTORY_DEPTH = 50;
+
+    @Param({"0", "128", "512", "4096"})
+    public int threshold;
+
+    /**
+     * 不壓縮與實際送出的位元組數（JMH 附加計數器，不隨時間正規化）
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long rawBytes;
+        public long sentBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rawBytes = 0;
+            sentBytes = 0;
+        }
+    }
+
+    private final String[] messages = new String[4];
+    private int next = 0;
+    private ChatGroup group;
+    private Server.ClientHandler sender;
+    private MemoryConnection plainConn;
+    private MemoryConnection deflateConn;
+    private Server.ClientHandler deflate;
+    private long historyRawBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchSupport.start("--compression-threshold=" + threshold, "--history-depth=" + HISTORY_DEPTH);
+        group = BenchSupport.group(GROUP);
+        // 由固定種子從常用字中隨機取字組成句子，避免重複字串壓縮得過於理想
+        Random random = new Random(42);
+        messages[0] = "[User_1]: hello everyone, this is a chat message";
+        messages[1] = "[User_1]: " + words(random, 40);
+        messages[2] = "[User_1]: " + words(random, 300);
+        messages[3] = "[Admin Broadcast]: " + words(random, 3000);
+
+        sender = BenchSupport.connect(new MemoryConnection());
+        plainConn = new MemoryConnection();
+        Server.ClientHandler plain = BenchSupport.connect(plainConn);
+        deflateConn = new MemoryConnection();
+        deflate = BenchSupport.connect(deflateConn, true, Protocol.FEATURE_DEFLATE);
+        BenchSupport.onShard(GROUP, () -> {
+            sender.joinGroup(GROUP);
+            plain.joinGroup(GROUP);
+            deflate.joinGroup(GROUP);
+            // 歷史記錄填入各不相同的一般長度聊天訊息
+            for (int i = 0; i < HISTORY_DEPTH; i++) {
+                Server.broadcast(group, "[User_2]: " + words(random, 6 + i % 30), sender);
+            }
+        });
+        // 歷史內容在 history 量測期間不變，不壓縮的回覆大小只需量一次
+        long before = plainConn.bytes();
+        BenchSupport.onShard(GROUP, () -> plain.handleHistory(HistoryQuery.DEFAULT));
+        historyRawBytes = plainConn.bytes() - before;
+    }
+
+    @Benchmark
+    public void broadcast(Bytes bytes) {
+        long raw = plainConn.bytes();
+        long sent = deflateConn.bytes();
+        // 每次都是新的訊框，壓縮結果不會沿用上一次的快取
+        Server.broadcast(group, messages[next++ & 3], sender);
+        bytes.rawBytes += plainConn.bytes() - raw;
+        bytes.sentBytes += deflateConn.bytes() - sent;
+    }
+
+    @Benchmark
+    public void history(Bytes bytes) throws IOException {
+        long sent = deflateConn.bytes();
+        deflate.handleHistory(HistoryQuery.DEFAULT);
+        bytes.rawBytes += historyRawBytes;
+        bytes.sentBytes += deflateConn.bytes() - sent;
+    }
+
+    private static final String[] WORDS = ("the a to and of in is it you that for on with this was are be have at "
+            + "not but we what all can your group message server please join leave history chat meeting today "
+            + "tomorrow project deadline report fix bug test build release login page check again thanks "
+            + "everyone update send file review merge branch error stack trace restart maintenance").split(" ");
+
+    /**
+     * 以指定的亂數來源組成約 count 個字的文字
+     */
+    private static String words(Random random, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(i % 12 == 11 ? ". " : " ");
+        }
+        return sb.toString();
+    }
+}
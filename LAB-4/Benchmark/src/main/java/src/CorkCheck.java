@@ -0,0 +1,139 @@
+package src;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * cork 的檢查（可直接執行的 main，不經過 JMH）
+ *
+ * 以 SocketConnection 寫入一個只計算寫入次數的 Socket，確認 cork 期間排入的多個訊框
+ * 在 uncork 後只產生一次寫入：
+ *   idle  寫出執行緒閒置時 cork，排入一個多訊框的回覆
+ *   busy  寫出執行緒正在寫出一個大型訊框（超過輸出緩衝區，直接寫入 Socket 並在寫入中停住）時 cork，
+ *         寫出執行緒回到取出迴圈後也不能取走 cork 期間排入的訊框
+ * 任一項不符時輸出並以結束碼 1 結束。
+ *
+ * 用法（先以 mvn package 建置）：
+ *   java -cp target/benchmarks.jar src.CorkCheck
+ */
+public final class CorkCheck {
+    // 一個回覆的訊框數（與 HISTORY LAST 20 相同）
+    private static final int REPLY_FRAMES = 22;
+    // 大於 SocketConnection 輸出緩衝區的訊框大小
+    private static final int LARGE_FRAME = 32 * 1024;
+
+    private static int failures = 0;
+
+    private CorkCheck() {
+    }
+
+    /**
+     * 代替 Socket：計算底層輸出流的寫入次數；大型寫入停在寫入中，直到 release 放行
+     */
+    static final class GatedSocket extends Socket {
+        final AtomicLong writes = new AtomicLong();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                writes.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes.incrementAndGet();
+                if (len >= LARGE_FRAME) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+            // 沒有實際的連線
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        idle();
+        busy();
+        System.out.println(failures == 0 ? "All cork checks passed" : failures + " cork check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void idle() throws Exception {
+        GatedSocket socket = new GatedSocket();
+        SocketConnection conn = open(socket);
+        conn.cork();
+        sendReply(conn);
+        check("idle: no write while corked", settle(socket), 0);
+        conn.uncork();
+        check("idle: one write after uncork", settle(socket), 1);
+        conn.close();
+    }
+
+    private static void busy() throws Exception {
+        GatedSocket socket = new GatedSocket();
+        SocketConnection conn = open(socket);
+        conn.send(Frame.of("[Server]: " + "x".repeat(LARGE_FRAME)));
+        socket.entered.await();
+        conn.cork();
+        sendReply(conn);
+        socket.release.countDown();
+        // 只有大型訊框的那一次寫入
+        check("busy: no reply write while corked", settle(socket), 1);
+        conn.uncork();
+        check("busy: one reply write after uncork", settle(socket), 2);
+        conn.close();
+    }
+
+    private static SocketConnection open(GatedSocket socket) throws IOException {
+        OutboundQueue queue = new OutboundQueue(1 << 20, 1 << 19, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        return new SocketConnection(socket, queue, task -> {
+            Thread t = new Thread(task, "writer");
+            t.setDaemon(true);
+            t.start();
+        });
+    }
+
+    private static void sendReply(SocketConnection conn) throws IOException {
+        for (int i = 0; i < REPLY_FRAMES; i++) {
+            conn.send(Frame.of("[User_1]: history message " + i));
+        }
+    }
+
+    private static void check(String name, long actual, long expected) {
+        if (actual != expected) {
+            failures++;
+            System.out.printf("FAILED %s: %d write(s), expected %d%n", name, actual, expected);
+        } else {
+            System.out.printf("ok     %s%n", name);
+        }
+    }
+
+    /**
+     * 等到寫入次數在一段時間內不再變化
+     */
+    private static long settle(GatedSocket socket) throws InterruptedException {
+        long last;
+        do {
+            last = socket.writes.get();
+            Thread.sleep(100);
+        } while (socket.writes.get() != last);
+        return last;
+    }
+}
@@ -0,0 +1,70 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 指令分派：讀取端解析客戶端送來的指令並排入指令佇列，由分片執行並寫出回覆
+ *
+ * 客戶端在大廳，送出的 HISTORY / LEAVE / CHANGE_ / 聊天訊息都只會得到一則錯誤回覆，
+ * 不改變任何狀態；每次送出一批指令並等待全部的回覆，結果為每個指令的平均時間
+ * （包含交給分片執行緒的成本）。舊協定比對字串前綴，二進位協定以 opcode 分派。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+    private static final int BATCH = 256;
+    private static final String[] LEGACY_COMMANDS = {"HISTORY", "LEAVE", "CHANGE_Group_B", "hello everyone"};
+    private static final int[] OPCODES = {Protocol.OP_HISTORY, Protocol.OP_LEAVE, Protocol.OP_CHANGE, Protocol.OP_CHAT};
+    private static final ByteBuffer[] PAYLOADS = {
+            ByteBuffer.allocate(0), ByteBuffer.allocate(0), utf8("Group_B"), utf8("hello everyone")};
+
+    private MemoryConnection legacyConn;
+    private Server.ClientHandler legacy;
+    private MemoryConnection binaryConn;
+    private Server.ClientHandler binary;
+
+    @Setup
+    public void setup() throws IOException {
+        // 每批都等待所有回覆，關閉聊天訊息的速率限制（超過限制的訊息不會有回覆）
+        BenchSupport.start("--chat-rate=0");
+        legacyConn = new MemoryConnection();
+        legacy = BenchSupport.connect(legacyConn, false, 0);
+        binaryConn = new MemoryConnection();
+        binary = BenchSupport.connect(binaryConn);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long legacyCommands() throws IOException {
+        long target = legacyConn.frames() + BATCH;
+        for (int i = 0; i < BATCH; i++) {
+            legacy.handleCommand(LEGACY_COMMANDS[i & 3]);
+        }
+        legacyConn.awaitFrames(target);
+        return target;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long binaryCommands() throws IOException {
+        long target = binaryConn.frames() + BATCH;
+        for (int i = 0; i < BATCH; i++) {
+            binary.handleCommand(OPCODES[i & 3], PAYLOADS[i & 3]);
+        }
+        binaryConn.awaitFrames(target);
+        return target;
+    }
+
+    private static ByteBuffer utf8(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,91 @@
+package src;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 檔案下載：把整個檔案分段送到本機迴路的 Socket（另一條執行緒只負責讀取並丟棄）
+ * 比較 FileTransfer（transferTo，內容不經過 Java heap）與讀入 heap 緩衝區後再寫出的傳統做法
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileTransferBenchmark {
+    @Param({"1", "16"})
+    public int megabytes;
+
+    private Path file;
+    private long size;
+    private ServerSocketChannel server;
+    private SocketChannel sender;
+    private Thread drain;
+    private final ByteBuffer heap = ByteBuffer.allocate(FileTransfer.CHUNK_SIZE);
+
+    @Setup
+    public void setup() throws IOException {
+        size = megabytes * 1024L * 1024L;
+        file = Files.createTempFile("bench", ".bin");
+        byte[] data = new byte[(int) size];
+        ThreadLocalRandom.current().nextBytes(data);
+        Files.write(file, data);
+
+        server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        sender = SocketChannel.open(server.getLocalAddress());
+        SocketChannel receiver = server.accept();
+        drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            try {
+                while (receiver.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            } catch (IOException ignored) {
+                // 結束時關閉連線
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        sender.close();
+        drain.join();
+        server.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        long written = 0;
+        try (FileTransfer transfer = new FileTransfer(file, 1, size, null)) {
+            while (!transfer.done()) {
+                written += transfer.writeChunk(sender);
+            }
+        }
+        return written;
+    }
+
+    @Benchmark
+    public long heapCopy() throws IOException {
+        long written = 0;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (in.read(heap.clear()) > 0) {
+                heap.flip();
+                while (heap.hasRemaining()) {
+                    written += sender.write(heap);
+                }
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,37 @@
+package src;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 全域廣播扇出：管理員公告送給伺服器上所有客戶端，連線數逐漸增加；
+ * 每次都等到最後一個分區送完（即最後一個接收者排入的時間），分別以 1 個與 4 個分片量測
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GlobalBroadcastBenchmark {
+    @Param({"16", "256", "4096"})
+    public int clients;
+
+    @Param({"1", "4"})
+    public int shards;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchSupport.start("--max-clients=" + clients, "--shards=" + shards);
+        for (int i = 0; i < clients; i++) {
+            BenchSupport.connect(new MemoryConnection());
+        }
+    }
+
+    @Benchmark
+    public void broadcastAll() {
+        Server.broadcastAll("[ADMIN] The server will restart for maintenance in 10 minutes.").join();
+    }
+}
@@ -0,0 +1,43 @@
+package src;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 群組廣播扇出：一則聊天訊息寫入歷史記錄並送給群組內所有其他成員，群組人數逐漸增加
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupBroadcastBenchmark {
+    private static final String GROUP = "Group_A";
+
+    @Param({"4", "64", "1024"})
+    public int groupSize;
+
+    private ChatGroup group;
+    private Server.ClientHandler sender;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchSupport.start("--max-clients=" + groupSize, "--group-max-size=" + GROUP + ":" + groupSize);
+        group = BenchSupport.group(GROUP);
+        for (int i = 0; i < groupSize; i++) {
+            Server.ClientHandler c = BenchSupport.connect(new MemoryConnection());
+            BenchSupport.onShard(GROUP, () -> c.joinGroup(GROUP));
+            if (sender == null) {
+                sender = c;
+            }
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        Server.broadcast(group, "[User_1]: hello everyone, this is a chat message", sender);
+    }
+}
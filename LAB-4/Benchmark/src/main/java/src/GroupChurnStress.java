@@ -0,0 +1,172 @@
+package src;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 群組進出的壓力測試（可直接執行的 main，不經過 JMH）
+ *
+ * 多條執行緒（相當於各連線的讀取執行緒）不斷對少數幾個已滿的群組送出 JOIN_ / CHANGE_ / LEAVE，
+ * 群組的建立、補位、排隊與閒置回收同時在分片上進行；監看執行緒不斷在各群組的分片上
+ * 檢查成員數不超過 --group-size，發現違反時輸出並以結束碼 1 結束。
+ *
+ * 用法（先以 mvn package 建置）：
+ *   java -cp target/benchmarks.jar src.GroupChurnStress --threads=8 --clients=256 --groups=4 --group-size=4 --duration=10
+ * 其他 -- 參數原樣交給伺服器（例如 --shards=4、--group-idle-timeout=1）。
+ */
+public final class GroupChurnStress {
+    // 每條執行緒最多送出多少個指令後等待分片處理
+    private static final int BATCH = 16;
+    private static final AtomicLong ops = new AtomicLong();
+    private static final AtomicLong checks = new AtomicLong();
+    private static final AtomicLong violations = new AtomicLong();
+    private static volatile int maxObserved = 0;
+    private static volatile boolean running = true;
+
+    private GroupChurnStress() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = 8;
+        int clients = 256;
+        int groupCount = 4;
+        int groupSize = 4;
+        int duration = 10;
+        List<String> serverArgs = new ArrayList<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq > 0 ? arg.substring(0, eq) : arg;
+            String value = eq > 0 ? arg.substring(eq + 1) : "";
+            switch (name) {
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--clients":
+                    clients = Integer.parseInt(value);
+                    break;
+                case "--groups":
+                    groupCount = Integer.parseInt(value);
+                    break;
+                case "--group-size":
+                    groupSize = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(value);
+                    break;
+                default:
+                    serverArgs.add(arg);
+            }
+        }
+        // 群組閒置後立即回收，讓建立與回收也和 JOIN 交錯；之後的參數可以覆寫這些預設值
+        serverArgs.addAll(0, Arrays.asList("--max-clients=" + clients, "--max-group-size=" + groupSize,
+                "--group-idle-timeout=0", "--queue-notify-interval=1"));
+        BenchSupport.start(serverArgs.toArray(new String[0]));
+
+        String[] groups = new String[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            groups[i] = "Group_CHURN" + i;
+        }
+        // 每條執行緒負責固定的一組客戶端（與真實連線一樣，一個客戶端的指令只由一條執行緒送出）
+        List<List<Server.ClientHandler>> owned = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            owned.add(new ArrayList<>());
+        }
+        for (int i = 0; i < clients; i++) {
+            owned.get(i % threads).add(BenchSupport.connect(new MemoryConnection(), false, 0));
+        }
+
+        System.out.printf("Churning %d clients over %d groups of %d with %d threads for %d s%n",
+                clients, groupCount, groupSize, threads, duration);
+        List<Thread> workers = new ArrayList<>();
+        for (List<Server.ClientHandler> mine : owned) {
+            Thread worker = new Thread(() -> churn(mine, groups), "churn-" + workers.size());
+            workers.add(worker);
+            worker.start();
+        }
+        int limit = groupSize;
+        Thread monitor = new Thread(() -> {
+            while (running) {
+                check(groups, limit);
+            }
+        }, "churn-monitor");
+        monitor.start();
+
+        long end = System.nanoTime() + duration * 1_000_000_000L;
+        long lastOps = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(1000);
+            long total = ops.get();
+            System.out.printf("ops/s %,d  checks %,d  max members %d/%d  violations %d%n",
+                    total - lastOps, checks.get(), maxObserved, groupSize, violations.get());
+            lastOps = total;
+        }
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        monitor.join();
+        // 指令都是非同步交給分片的：再檢查一次，涵蓋最後排入的指令處理完畢後的狀態
+        Thread.sleep(100);
+        check(groups, groupSize);
+
+        System.out.printf("Done: %,d commands, %,d checks, max members %d/%d, violations %d%n",
+                ops.get(), checks.get(), maxObserved, groupSize, violations.get());
+        System.exit(violations.get() == 0 ? 0 : 1);
+    }
+
+    /**
+     * 隨機送出 JOIN_ / CHANGE_ / LEAVE，直到測試結束
+     */
+    private static void churn(List<Server.ClientHandler> mine, String[] groups) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int sent = 0;
+        try {
+            while (running) {
+                Server.ClientHandler c = mine.get(random.nextInt(mine.size()));
+                String group = groups[random.nextInt(groups.length)];
+                int action = random.nextInt(10);
+                if (action < 4) {
+                    c.handleCommand("JOIN_" + group);
+                } else if (action < 7) {
+                    c.handleCommand("CHANGE_" + group);
+                } else {
+                    c.handleCommand("LEAVE");
+                }
+                // 指令是非同步交給分片的：每隔幾個指令等分片處理到這裡，避免佇列無限制地累積，
+                // 監看執行緒的檢查也不會排在大量指令之後
+                ops.incrementAndGet();
+                if (++sent % BATCH == 0) {
+                    BenchSupport.onShard(group, () -> { });
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            violations.incrementAndGet();
+        }
+    }
+
+    /**
+     * 依序在每個群組的分片上檢查成員數（在分片上檢查，看到的一定是兩個指令之間的狀態）
+     */
+    private static void check(String[] groups, int groupSize) {
+        for (String name : groups) {
+            BenchSupport.onShard(name, () -> {
+                ChatGroup g = Server.groups().get(name);
+                if (g == null) {
+                    return;
+                }
+                int size = g.size();
+                if (size > maxObserved) {
+                    maxObserved = size;
+                }
+                if (size > groupSize) {
+                    violations.incrementAndGet();
+                    System.out.printf("VIOLATION: %s has %d members (max %d)%n", name, size, groupSize);
+                }
+            });
+        }
+        checks.incrementAndGet();
+    }
+}
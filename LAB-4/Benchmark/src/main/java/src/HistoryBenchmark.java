@@ -0,0 +1,81 @@
+package src;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 歷史記錄：環狀緩衝區附加（已滿，覆蓋最舊的訊息）、取得快照、依序號範圍取出一頁，
+ * 以及 HISTORY 指令的完整處理（取出一頁並送出，分別以不壓縮與協商了壓縮的客戶端量測）
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+    private static final String GROUP = "Group_A";
+
+    @Param({"50", "1000"})
+    public int depth;
+
+    private HistoryRing history;
+    // 附加時依序使用的訊框（附加直接在訊框上標序號；數量與容量相同，每個訊框每次都落在同一個位置）
+    private Frame[] messages;
+    private int next = 0;
+    private Server.ClientHandler plain;
+    private Server.ClientHandler deflate;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchSupport.start("--history-depth=" + depth);
+        ChatGroup group = BenchSupport.group(GROUP);
+        history = group.history;
+        messages = new Frame[depth];
+        for (int i = 0; i < depth; i++) {
+            messages[i] = Frame.chat(group.id(), "[User_1]: hello everyone, this is a chat message");
+        }
+        plain = BenchSupport.connect(new MemoryConnection());
+        deflate = BenchSupport.connect(new MemoryConnection(), true, Protocol.FEATURE_DEFLATE);
+        BenchSupport.onShard(GROUP, () -> {
+            plain.joinGroup(GROUP);
+            deflate.joinGroup(GROUP);
+            // 填滿歷史記錄，之後的附加都會覆蓋最舊的訊息
+            for (int i = 0; i < depth; i++) {
+                history.append(Frame.chat(group.id(), "[User_2]: message " + i + " to fill the history ring"));
+            }
+        });
+    }
+
+    @Benchmark
+    public Frame append() {
+        Frame message = messages[next];
+        next = next + 1 == depth ? 0 : next + 1;
+        return history.append(message);
+    }
+
+    @Benchmark
+    public List<Frame> snapshot() {
+        return history.snapshot(0);
+    }
+
+    @Benchmark
+    public List<Frame> page() {
+        // 歷史記錄中段的 20 則訊息（HISTORY SINCE / BEFORE 的一頁）
+        long from = history.lastSeq() - depth / 2;
+        return history.range(from, from + 19);
+    }
+
+    @Benchmark
+    public void handleHistory() throws IOException {
+        plain.handleHistory(HistoryQuery.DEFAULT);
+    }
+
+    @Benchmark
+    public void handleHistoryDeflate() throws IOException {
+        deflate.handleHistory(HistoryQuery.DEFAULT);
+    }
+}
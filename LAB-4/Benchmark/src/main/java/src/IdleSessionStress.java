@@ -0,0 +1,208 @@
+package src;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 閒置連線的記憶體壓力測試（可直接執行的 main，不經過 JMH）
+ *
+ * 在同一個行程內以指定的 --transport 啟動伺服器，逐步開啟 --sessions 條只連線、不送任何指令的 Socket，
+ * 每開啟 --step 條後（以 GC 後的數值）輸出每條工作階段平均多用的 heap、RSS 與平台執行緒數，
+ * 直到全部開啟或無法再建立連線（檔案描述符、執行緒或記憶體用盡）為止，最後輸出達到的最大連線數。
+ * 客戶端的 Socket 由一條 NIO 執行緒讀取並丟棄伺服器送來的訊息（上線通知等），避免輸出佇列溢位而被斷線。
+ *
+ * 用法（先以 mvn package 建置；每種模式各執行一次，結果才不會互相影響）：
+ *   java -cp target/benchmarks.jar src.IdleSessionStress --transport=thread --sessions=5000
+ *   java -cp target/benchmarks.jar src.IdleSessionStress --transport=virtual --sessions=5000
+ * 伺服器與客戶端在同一個行程內，每條連線佔用兩個檔案描述符；RSS 也包含客戶端 Socket 的少量成本（各模式相同）。
+ */
+public final class IdleSessionStress {
+    // 等待一條新連線收到伺服器歡迎訊息的時間上限（毫秒）
+    private static final long OPEN_TIMEOUT = 5000;
+
+    // 已收到伺服器訊息（工作階段已建立）的客戶端連線數
+    private static final Set<SocketChannel> established = ConcurrentHashMap.newKeySet();
+    private static volatile boolean serverClosed = false;
+
+    private IdleSessionStress() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String transport = "thread";
+        int sessions = 5000;
+        int step = 500;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq > 0 ? arg.substring(0, eq) : arg;
+            String value = eq > 0 ? arg.substring(eq + 1) : "";
+            switch (name) {
+                case "--transport":
+                    transport = value;
+                    break;
+                case "--sessions":
+                    sessions = Integer.parseInt(value);
+                    break;
+                case "--step":
+                    step = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (transport.equalsIgnoreCase("virtual") && Runtime.version().feature() < 21) {
+            System.out.println("Virtual threads require Java 21 or later (running " + Runtime.version() + ").");
+            System.exit(2);
+        }
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        String[] serverArgs = {"--transport=" + transport, "--port=" + port, "--max-clients=" + (sessions + 1)};
+        Thread server = new Thread(() -> Server.main(serverArgs), "server");
+        server.setDaemon(true);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        awaitListening(address);
+
+        Selector selector = Selector.open();
+        Thread drain = new Thread(() -> drain(selector), "idle-drain");
+        drain.setDaemon(true);
+        drain.start();
+
+        long baseHeap = usedHeap();
+        long baseRss = rss();
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.printf("%s transport, baseline heap %.1f MiB, RSS %.1f MiB, %d threads%n",
+                transport, baseHeap / 1048576.0, baseRss / 1048576.0, baseThreads);
+        System.out.printf("%10s %14s %14s %16s%n", "sessions", "heap/session", "RSS/session", "threads/session");
+
+        int opened = 0;
+        String stopReason = "reached --sessions";
+        while (opened < sessions) {
+            try {
+                SocketChannel ch = SocketChannel.open(address);
+                ch.configureBlocking(false);
+                // Java 11 以後註冊不會被進行中的 select 阻擋，喚醒後下一次 select 即包含新連線
+                ch.register(selector, SelectionKey.OP_READ);
+                selector.wakeup();
+                if (!awaitEstablished(ch)) {
+                    stopReason = serverClosed ? "server closed the connection" : "no welcome message within "
+                            + OPEN_TIMEOUT + " ms";
+                    ch.close();
+                    break;
+                }
+            } catch (IOException | OutOfMemoryError e) {
+                stopReason = e.toString();
+                break;
+            }
+            opened++;
+            if (opened % step == 0 || opened == sessions) {
+                report(opened, baseHeap, baseRss, baseThreads);
+            }
+        }
+        if (opened % step != 0 && opened != sessions && opened > 0) {
+            report(opened, baseHeap, baseRss, baseThreads);
+        }
+        System.out.printf("Max sessions reached: %d (%s)%n", opened, stopReason);
+        System.exit(0);
+    }
+
+    /**
+     * 輸出目前每條工作階段平均多用的資源（先 GC，heap 只計算仍存活的物件）
+     */
+    private static void report(int opened, long baseHeap, long baseRss, int baseThreads) {
+        long heap = usedHeap();
+        long rss = rss();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.printf("%10d %11.1f KiB %11.1f KiB %16.2f%n", opened,
+                (heap - baseHeap) / 1024.0 / opened, (rss - baseRss) / 1024.0 / opened,
+                (threads - baseThreads) / (double) opened);
+    }
+
+    /**
+     * 讀取並丟棄所有客戶端連線收到的內容；第一次收到內容時記為已建立工作階段
+     */
+    private static void drain(Selector selector) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (true) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel ch = (SocketChannel) key.channel();
+                    int n;
+                    try {
+                        n = ch.read(buffer.clear());
+                    } catch (IOException e) {
+                        n = -1;
+                    }
+                    if (n > 0) {
+                        established.add(ch);
+                    } else if (n < 0) {
+                        serverClosed = true;
+                        key.cancel();
+                        ch.close();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean awaitEstablished(SocketChannel ch) throws IOException {
+        long deadline = System.currentTimeMillis() + OPEN_TIMEOUT;
+        while (!established.contains(ch)) {
+            if (serverClosed || System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.onSpinWait();
+        }
+        return true;
+    }
+
+    /**
+     * 等待伺服器開始監聽（探測用的連線隨即關閉，所以上限多留一個名額）
+     */
+    private static void awaitListening(InetSocketAddress address) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (SocketChannel ignored = SocketChannel.open(address)) {
+                Thread.sleep(100);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on " + address);
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return 行程目前的常駐記憶體（/proc/self/status 的 VmRSS；其他平台回傳 0）
+     */
+    private static long rss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 非 Linux 平台沒有 /proc
+        }
+        return 0;
+    }
+}
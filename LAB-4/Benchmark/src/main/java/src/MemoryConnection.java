@@ -0,0 +1,106 @@
+package src;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 效能測試用的記憶體連線（取代 Socket）
+ *
+ * 與 SocketConnection 相同：send() 把訊框放入有界輸出佇列，處理指令期間以 cork 暫停取出；
+ * 差別在於不另開寫出執行緒，而是在送出的執行緒上立即取出並依協商的協定編碼，
+ * 寫入只計算位元組數的輸出流。因此量測結果包含排入佇列與編碼的 CPU 成本，但不含網路。
+ */
+final class MemoryConnection implements ChatConnection {
+    private final OutboundQueue queue = Server.newOutboundQueue();
+    // 只計算位元組數的輸出流（相當於 Socket 的核心緩衝區）
+    private final AtomicLong bytes = new AtomicLong();
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) {
+            bytes.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes.addAndGet(len);
+        }
+    };
+    // 已寫出的訊框數（等待非同步指令的回覆時使用）
+    private final AtomicLong frames = new AtomicLong();
+    private volatile boolean corked = false;
+    // 寫出方向採用的協定（寫出握手回覆後切換，與 SocketConnection 相同）
+    private volatile int version = Protocol.LEGACY;
+    private volatile int compressThreshold = 0;
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (!queue.offer(frame)) {
+            throw new IOException("Outbound queue overflow");
+        }
+        if (!corked) {
+            drain();
+        }
+    }
+
+    @Override
+    public void cork() {
+        corked = true;
+    }
+
+    @Override
+    public void uncork() {
+        corked = false;
+        drain();
+    }
+
+    @Override
+    public void close() {
+        queue.close();
+    }
+
+    /**
+     * 取出佇列中所有訊框並寫入輸出流
+     */
+    private void drain() {
+        try {
+            Frame frame;
+            while ((frame = queue.poll()) != null) {
+                frame.writeTo(sink, version, compressThreshold);
+                if (frame.opcode() == Protocol.OP_HELLO) {
+                    compressThreshold = Server.compressThreshold(frame.groupId());
+                    version = (int) frame.seq();
+                }
+                frames.incrementAndGet();
+            }
+        } catch (IOException e) {
+            // 寫入記憶體不會失敗
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return 已寫出的位元組數
+     */
+    long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return 已寫出的訊框數
+     */
+    long frames() {
+        return frames.get();
+    }
+
+    /**
+     * 等待已寫出的訊框數達到指定值（等待分片執行緒處理非同步的指令）
+     *
+     * @param target 目標訊框數
+     */
+    void awaitFrames(long target) {
+        while (frames.get() < target) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package src;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 大量重新連線時的上線／離開通知：所有客戶端各離開並重新連線一次
+ *
+ * 不合併時（--presence-interval=0）每個事件各全域廣播一次，共 2N 則通知、2N² 個訊框；
+ * 合併時同一個間隔內的事件只送出一則摘要，共 N 個訊框。
+ * 合併模式把間隔設得很長，由每次呼叫結束時手動 flush()（相當於一個合併間隔），計時器不會在量測中途送出。
+ * 除了每次的時間，量測結束時另外印出每次所有客戶端收到的訊框總數（frames per storm）。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PresenceBenchmark {
+    @Param({"64", "512"})
+    public int clients;
+
+    @Param({"false", "true"})
+    public boolean coalesce;
+
+    private MemoryConnection[] conns;
+    // 累計送出的訊框數與重新連線風暴次數（包含暖身）
+    private long frames;
+    private long storms;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchSupport.start("--max-clients=" + clients, "--presence-interval=" + (coalesce ? 60_000 : 0));
+        conns = new MemoryConnection[clients];
+        for (int i = 0; i < clients; i++) {
+            conns[i] = new MemoryConnection();
+            BenchSupport.connect(conns[i]);
+        }
+        // 送出連線時累積的上線通知
+        Server.presence().flush();
+    }
+
+    @Benchmark
+    public int reconnectStorm() {
+        long before = totalFrames();
+        Presence presence = Server.presence();
+        for (int i = 1; i <= clients; i++) {
+            presence.left("User_" + i);
+            presence.connected("User_" + i);
+        }
+        int events = presence.flush();
+        frames += totalFrames() - before;
+        storms++;
+        return events;
+    }
+
+    @TearDown
+    public void report() {
+        System.out.printf("%n%d clients, coalesce=%b: %d frames per storm%n", clients, coalesce, frames / storms);
+    }
+
+    private long totalFrames() {
+        long total = 0;
+        for (MemoryConnection conn : conns) {
+            total += conn.frames();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,38 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 速率限制：每則聊天訊息在讀取端取用一次權杖桶
+ * 分別量測每個客戶端各自的桶（無競爭）與多條執行緒共用同一個桶（例如整個節點的 BROADCAST 限制）
+ * 速率設得很高，量測的是取得權杖的路徑；桶子空了時只多一次比較，成本相同
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateLimitBenchmark {
+    @State(Scope.Thread)
+    public static class PerClient {
+        final TokenBucket bucket = new TokenBucket(1_000_000_000, 1000);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final TokenBucket bucket = new TokenBucket(1_000_000_000, 1000);
+    }
+
+    @Benchmark
+    public boolean perClient(PerClient state) {
+        return state.bucket.tryTake();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean shared(Shared state) {
+        return state.bucket.tryTake();
+    }
+}
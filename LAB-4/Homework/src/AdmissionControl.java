@@ -0,0 +1,82 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 連線的准入控制
+ *
+ * 連線名額以原子計數器保存：檢查上限與佔用名額在同一次 CAS 中完成，
+ * 多條接收執行緒（或 NIO 的多個事件迴圈）同時建立連線也不會超過 --max-clients。
+ *
+ * accept() 失敗（例如檔案描述符用盡）時，接收執行緒不結束、也不立即重試（會在同一個錯誤上空轉），
+ * 而是在下一次 accept() 之前暫停，暫停時間逐次加倍；下一次 accept() 成功後恢復立即接收。
+ * 伺服器已滿時則照常接受並立即回覆 "Server is full!"，拒絕的成本只有一次小型寫入，
+ * 延後接收只會讓被拒絕的客戶端更晚得知結果（多出來的連線已由系統的連線佇列限制）。
+ */
+final class AdmissionControl {
+    // accept() 失敗後暫停時間的下限與上限（毫秒）
+    static final long MIN_BACKOFF = 5;
+    static final long MAX_BACKOFF = 1000;
+
+    private final int maxClients;
+    // 已佔用的連線名額
+    private final AtomicInteger active = new AtomicInteger();
+    // 下一次 accept() 之前的暫停時間（毫秒，0 表示不暫停；只由接收執行緒使用）
+    private long backoff;
+
+    /**
+     * 建構子
+     *
+     * @param maxClients 同時連線數上限
+     */
+    AdmissionControl(int maxClients) {
+        this.maxClients = maxClients;
+    }
+
+    /**
+     * 佔用一個連線名額（可由任意執行緒呼叫）
+     *
+     * @return 是否取得名額；false 表示伺服器已滿
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int n = active.get();
+            if (n >= maxClients) {
+                return false;
+            }
+            if (active.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 釋出一個連線名額（客戶端離開伺服器時呼叫，每個取得名額的連線只能呼叫一次）
+     */
+    void release() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * accept() 成功時呼叫，恢復立即接收
+     */
+    void acceptSucceeded() {
+        backoff = 0;
+    }
+
+    /**
+     * accept() 失敗時呼叫，讓接收執行緒開始退避
+     */
+    void acceptFailed() {
+        backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+    }
+
+    /**
+     * 由接收執行緒在每次 accept() 之前呼叫：上一次 accept() 失敗時先暫停
+     */
+    void pace() throws InterruptedException {
+        if (backoff > 0) {
+            Thread.sleep(backoff);
+        }
+    }
+}
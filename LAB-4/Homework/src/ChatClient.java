@@ -0,0 +1,836 @@
+package src;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * 非同步聊天客戶端核心（可嵌入其他 JVM 程式）
+ *
+ * 所有 ChatClient 共用一條 NIO 事件迴圈執行緒處理連線、讀取與寫出，不為每個連線建立接收執行緒。
+ * send() 只把指令排入佇列後立即返回，不等待前一個指令的回覆（伺服器依到達順序處理同一個客戶端的指令），
+ * 因此可以連續送出大量指令；事件迴圈每次把佇列中的指令全部編碼後合併寫出。
+ *
+ * 連線中斷（例如伺服器重新啟動）時以指數退避（加上隨機擾動）自動重新連線，再送出斷線期間排入的指令。
+ * 伺服器支援續接時，握手訊息附上續接憑證與最後收到的群組訊息序號：在保留期限內重新連上時
+ * 沿用原本的名稱與群組名額，伺服器只補送漏掉的訊息；無法續接時（伺服器重新啟動或已過期）
+ * 改為重新加入中斷前所在的群組。送出 EXIT! 後伺服器關閉連線即結束，不再重新連線。
+ *
+ * SENDFILE <路徑> 上傳檔案分享到所在群組：伺服器接受後以 FileTransfer 分段送出（transferTo 直接從檔案寫入 Socket），
+ * 段與段之間照常送出聊天指令；多個上傳依序進行。GETFILE <編號> 下載的檔案寫入 downloads 目錄。
+ * 檔案傳輸只支援二進位協定，斷線時中斷（重新連線後需重新傳送）。
+ *
+ * Listener 的方法都在事件迴圈執行緒上呼叫，不應在其中執行耗時的工作。
+ */
+public final class ChatClient implements Closeable {
+    /**
+     * 接收伺服器訊息與連線狀態的回呼
+     */
+    public interface Listener {
+        /**
+         * 收到伺服器的一則訊息（壓縮訊框中的每一則各呼叫一次）
+         */
+        void onMessage(String message);
+
+        /**
+         * 連線建立並完成握手（重新連線時也會呼叫）
+         *
+         * @param binary 是否使用二進位協定（false 表示伺服器只支援舊協定）
+         */
+        default void onConnected(boolean binary) {
+        }
+
+        /**
+         * 連線失敗或中斷，稍後自動重新連線
+         *
+         * @param reason      原因
+         * @param retryMillis 重新連線前的等待時間（毫秒）
+         */
+        default void onDisconnected(String reason, long retryMillis) {
+        }
+    }
+
+    // 斷線期間最多累積的待送指令數
+    static final int MAX_PENDING = 10_000;
+    // 等待握手回覆的時間（毫秒），逾時視為伺服器不支援二進位協定
+    private static final long HELLO_TIMEOUT = 2000;
+    // 重新連線的等待時間：從 INITIAL_BACKOFF 開始每次加倍，最多 MAX_BACKOFF（毫秒）
+    private static final long INITIAL_BACKOFF = 250;
+    private static final long MAX_BACKOFF = 10_000;
+    // 下載的檔案存放的目錄
+    private static final Path DOWNLOAD_DIR = Paths.get("downloads");
+
+    private final InetSocketAddress address;
+    private final boolean legacyOnly;
+    private final int features;
+    private final Listener listener;
+    private final IoLoop loop = IoLoop.shared();
+
+    // 使用者執行緒排入、事件迴圈取出的指令
+    private final Queue<String> outbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    // 避免重複要求事件迴圈寫出
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private volatile boolean closing = false;
+    // 目前所在（或排隊中）的群組，依伺服器的回覆更新；重新連線後自動加入
+    private volatile String group;
+    private volatile boolean connected = false;
+
+    // 以下只由事件迴圈執行緒使用
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer in = ByteBuffer.allocate(4096);
+    private ByteBuffer out = ByteBuffer.allocate(4096);
+    // 讀寫採用的協定版本（收到握手回覆後切換）
+    private int version = Protocol.LEGACY;
+    private boolean handshaking = false;
+    // 連線次數（用來忽略過期的握手逾時）
+    private int sessions = 0;
+    private long backoff = INITIAL_BACKOFF;
+    private boolean exitSent = false;
+    // 續接憑證（伺服器不支援續接時為 null）與最後收到的群組訊息的群組編號、序號
+    private String token;
+    private int lastGroupId;
+    private long lastSeq;
+    // 最後送出的 PRESENCE 指令（新的工作階段預設開啟通知，重新連線後再送一次；null 表示未曾送出）
+    private String presence;
+    // 尚未開始的上傳、目前的上傳（已送出 OP_UPLOAD；upload 為 null 表示等待伺服器回覆）與進行中的下載
+    private final Queue<Path> uploads = new ArrayDeque<>();
+    private Path uploadPath;
+    private long uploadSize;
+    private FileTransfer upload;
+    private Download download;
+
+    /**
+     * 進行中的下載（伺服器依序送出，同一時間只有一個）
+     */
+    private static final class Download {
+        final int id;
+        final String name;
+        final long size;
+        final Path path;
+        final FileChannel channel;
+        long received = 0;
+
+        Download(int id, String name, long size, Path path) throws IOException {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * 放棄下載：關閉並刪除未完成的檔案
+         */
+        void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+                // 刪除失敗時留在目錄中
+            }
+        }
+    }
+
+    /**
+     * 建構子（呼叫 start() 後才開始連線）
+     *
+     * @param address    伺服器位址
+     * @param legacyOnly 是否只使用 writeUTF 舊協定
+     * @param compress   是否協商壓縮
+     * @param listener   訊息與連線狀態的回呼
+     */
+    public ChatClient(InetSocketAddress address, boolean legacyOnly, boolean compress, Listener listener) {
+        this.address = address;
+        this.legacyOnly = legacyOnly;
+        this.features = (compress ? Protocol.FEATURE_DEFLATE : 0) | Protocol.FEATURE_RESUME;
+        this.listener = listener;
+    }
+
+    /**
+     * 開始連線（非阻塞，結果以 Listener 通知）
+     */
+    public void start() {
+        loop.execute(this::connect);
+    }
+
+    /**
+     * 排入一個指令或聊天訊息（可由任意執行緒呼叫，不等待回覆）
+     * 斷線期間的指令會保留到重新連線後送出
+     *
+     * @param line 使用者輸入的一行（與互動式客戶端相同的指令格式）
+     * @return false 表示客戶端已關閉或待送指令過多，指令未排入
+     */
+    public boolean send(String line) {
+        if (closing) {
+            return false;
+        }
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            return false;
+        }
+        outbox.add(line);
+        if (flushRequested.compareAndSet(false, true)) {
+            loop.execute(this::flushOutbox);
+        }
+        return true;
+    }
+
+    /**
+     * @return 目前所在或排隊中的群組名稱；在大廳時為 null
+     */
+    public String group() {
+        return group;
+    }
+
+    /**
+     * @return 是否已連線並完成握手
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return 客戶端結束（送出 EXIT! 後伺服器關閉連線，或呼叫 close()）時完成
+     */
+    public CompletableFuture<Void> closeFuture() {
+        return closed;
+    }
+
+    /**
+     * 立即關閉連線並停止重新連線（尚未送出的指令會被捨棄）
+     */
+    @Override
+    public void close() {
+        closing = true;
+        loop.execute(this::finish);
+    }
+
+    private void connect() {
+        if (closing) {
+            return;
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+            if (channel.connect(address)) {
+                startSession();
+            }
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    /**
+     * Selector 回報此連線可連線、可讀或可寫（在事件迴圈上呼叫）
+     */
+    private void onReady(SelectionKey ready) {
+        try {
+            if (ready.isConnectable()) {
+                channel.finishConnect();
+                startSession();
+                return;
+            }
+            if (ready.isReadable()) {
+                read();
+            }
+            if (channel != null && ready.isValid() && ready.isWritable()) {
+                write();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            connectionLost(e);
+        }
+    }
+
+    /**
+     * 連線建立：以舊協定送出握手訊息（有續接憑證時一併要求續接），握手完成（或逾時）前先不送出指令
+     */
+    private void startSession() throws IOException {
+        key.interestOps(SelectionKey.OP_READ);
+        version = Protocol.LEGACY;
+        in.clear();
+        out.clear();
+        exitSent = false;
+        if (legacyOnly) {
+            ready(true);
+            return;
+        }
+        handshaking = true;
+        String resume = token != null ? token + ":" + lastGroupId + ":" + lastSeq : null;
+        put(Frame.of(Protocol.hello(Protocol.VERSION, features, resume)).buffer(Protocol.LEGACY));
+        write();
+        int session = ++sessions;
+        loop.schedule(HELLO_TIMEOUT, () -> {
+            if (session == sessions && handshaking) {
+                // 伺服器只支援舊協定
+                handshaking = false;
+                ready(true);
+            }
+        });
+    }
+
+    /**
+     * 握手完成：沒有續接原本的工作階段時重新加入中斷前的群組，再送出排隊中的指令
+     *
+     * @param rejoin 是否需要重新加入群組（false 表示已續接，仍在原本的群組中）
+     */
+    private void ready(boolean rejoin) {
+        connected = true;
+        backoff = INITIAL_BACKOFF;
+        listener.onConnected(version != Protocol.LEGACY);
+        String previous = group;
+        if (rejoin && previous != null) {
+            encode("JOIN_" + previous);
+        }
+        if (rejoin && presence != null) {
+            encode(presence);
+        }
+        offerUpload();
+        flushOutbox();
+    }
+
+    /**
+     * 把排隊中的指令全部編碼後寫出（連線與握手完成前先保留在佇列中）
+     */
+    private void flushOutbox() {
+        flushRequested.set(false);
+        if (!connected || exitSent) {
+            return;
+        }
+        String line;
+        while ((line = outbox.poll()) != null) {
+            pending.decrementAndGet();
+            encode(line);
+            if (line.regionMatches(true, 0, "PRESENCE ", 0, 9)) {
+                presence = line;
+            }
+            if (line.equalsIgnoreCase("EXIT!")) {
+                // 伺服器不再處理之後的指令，送出後等待伺服器關閉連線
+                exitSent = true;
+                break;
+            }
+        }
+        try {
+            write();
+        } catch (IOException | CancelledKeyException e) {
+            connectionLost(e);
+        }
+    }
+
+    /**
+     * 將使用者輸入編碼後放入寫出緩衝區
+     * 二進位協定在客戶端把指令轉成 opcode（規則與伺服器處理舊協定指令時相同）
+     */
+    private void encode(String line) {
+        if (version != Protocol.LEGACY && line.startsWith("SENDFILE ")) {
+            queueUpload(line.substring(9).trim());
+            return;
+        }
+        try {
+            Frame frame = version == Protocol.LEGACY ? Frame.of(line) : command(line);
+            put(frame.buffer(version));
+        } catch (UTFDataFormatException e) {
+            listener.onMessage("Message too long, not sent.");
+        }
+    }
+
+    private static Frame command(String msg) throws UTFDataFormatException {
+        if (msg.equalsIgnoreCase("EXIT!")) {
+            return Frame.of(Protocol.OP_EXIT, 0, "");
+        } else if (msg.startsWith("JOIN_")) {
+            return Frame.of(Protocol.OP_JOIN, 0, msg.substring(5));
+        } else if (msg.startsWith("CHANGE_")) {
+            return Frame.of(Protocol.OP_CHANGE, 0, msg.substring(7));
+        } else if (msg.equalsIgnoreCase("LEAVE")) {
+            return Frame.of(Protocol.OP_LEAVE, 0, "");
+        } else if (msg.equalsIgnoreCase("HISTORY") || msg.regionMatches(true, 0, "HISTORY ", 0, 8)) {
+            return Frame.of(Protocol.OP_HISTORY, 0, msg.substring(7).trim());
+        } else if (msg.startsWith("BROADCAST ")) {
+            return Frame.of(Protocol.OP_BROADCAST, 0, msg.substring(10));
+        } else if (msg.regionMatches(true, 0, "PRESENCE ", 0, 9)) {
+            return Frame.of(Protocol.OP_PRESENCE, 0, msg.substring(9).trim());
+        } else if (msg.startsWith("GETFILE ")) {
+            return Frame.of(Protocol.OP_DOWNLOAD, 0, msg.substring(8).trim());
+        }
+        return Frame.of(Protocol.OP_CHAT, 0, msg);
+    }
+
+    /**
+     * 排入一個上傳（目前沒有進行中的上傳時立即向伺服器提出）
+     *
+     * @param file 使用者輸入的檔案路徑
+     */
+    private void queueUpload(String file) {
+        Path path = Paths.get(file);
+        if (!Files.isRegularFile(path)) {
+            listener.onMessage("File not found: " + file);
+            return;
+        }
+        uploads.add(path);
+        offerUpload();
+    }
+
+    /**
+     * 沒有進行中的上傳時，以 OP_UPLOAD 提出下一個排隊中的上傳（等待伺服器回覆後才送出內容）
+     */
+    private void offerUpload() {
+        if (uploadPath != null || !connected || version == Protocol.LEGACY) {
+            return;
+        }
+        Path path;
+        while ((path = uploads.poll()) != null) {
+            try {
+                long size = Files.size(path);
+                put(Frame.of(Protocol.OP_UPLOAD, 0, size + " " + path.getFileName()).buffer(version));
+                uploadPath = path;
+                uploadSize = size;
+                return;
+            } catch (IOException e) {
+                listener.onMessage("Cannot read " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 伺服器回覆上傳要求：接受時開始分段送出內容，拒絕時（原因已另以文字送達）改提出下一個上傳
+     */
+    private void onUploadReply(boolean accepted) throws IOException {
+        if (uploadPath == null || upload != null) {
+            return;
+        }
+        if (accepted) {
+            listener.onMessage("Uploading " + uploadPath.getFileName() + " (" + uploadSize + " bytes)...");
+            upload = new FileTransfer(uploadPath, 0, uploadSize, null);
+        } else {
+            uploadPath = null;
+            offerUpload();
+        }
+        write();
+    }
+
+    /**
+     * 開始下載（OP_FILE）：在 downloads 目錄建立檔案，已有同名檔案時在檔名前加上編號
+     */
+    private void onFileStart(int id, String header) {
+        int space = header.indexOf(' ');
+        String name = Paths.get(header.substring(space + 1)).getFileName().toString();
+        try {
+            long size = Long.parseLong(header.substring(0, space));
+            Files.createDirectories(DOWNLOAD_DIR);
+            Path path = DOWNLOAD_DIR.resolve(name);
+            if (Files.exists(path)) {
+                path = DOWNLOAD_DIR.resolve(id + "_" + name);
+            }
+            download = new Download(id, name, size, path);
+            listener.onMessage("Downloading " + name + " (" + size + " bytes)...");
+            if (size == 0) {
+                finishDownload();
+            }
+        } catch (IOException | RuntimeException e) {
+            listener.onMessage("Cannot save " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * 收到下載的一段內容：寫入檔案，收齊後關閉（寫入失敗時放棄，之後的內容略過）
+     */
+    private void onFileData(int id, ByteBuffer data) {
+        Download current = download;
+        if (current == null || current.id != id) {
+            return;
+        }
+        try {
+            while (data.hasRemaining()) {
+                current.received += current.channel.write(data);
+            }
+            if (current.received >= current.size) {
+                finishDownload();
+            }
+        } catch (IOException e) {
+            download = null;
+            current.abort();
+            listener.onMessage("Download of " + current.name + " failed: " + e.getMessage());
+        }
+    }
+
+    private void finishDownload() throws IOException {
+        Download done = download;
+        download = null;
+        done.channel.close();
+        listener.onMessage("Downloaded " + done.name + " (" + done.size + " bytes) to " + done.path + ".");
+    }
+
+    private void put(ByteBuffer data) {
+        if (out.remaining() < data.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + data.remaining()));
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+        out.put(data);
+    }
+
+    /**
+     * 非阻塞地寫出緩衝區，寫不完時等待下次可寫
+     * 上傳中時緩衝區寫完後再送出檔案的下一段（每次最多一段），段與段之間的指令因此不必等整個檔案送完
+     */
+    private void write() throws IOException {
+        if (channel == null || !channel.isConnected()) {
+            return;
+        }
+        // 檔案的一段寫到一半時必須先寫完（訊框不可交錯）
+        if (upload != null && upload.inChunk()) {
+            upload.writeChunk(channel);
+        }
+        if (upload == null || !upload.inChunk()) {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            if (upload != null && out.position() == 0) {
+                upload.writeChunk(channel);
+                if (upload.done()) {
+                    upload.close();
+                    upload = null;
+                    uploadPath = null;
+                    offerUpload();
+                }
+            }
+        }
+        key.interestOps(out.position() > 0 || upload != null
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * 讀取並解出伺服器送來的訊框：握手回覆之前為 writeUTF 格式，之後依協商的版本
+     */
+    private void read() throws IOException {
+        if (channel.read(in) < 0) {
+            throw new EOFException("connection closed by server");
+        }
+        in.flip();
+        while (channel != null && (version == Protocol.LEGACY ? readLegacy() : readBinary())) {
+            // 逐一處理完整的訊框
+        }
+        if (channel == null) {
+            return;
+        }
+        in.compact();
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= Protocol.MAX_HEADER + Frame.MAX_PAYLOAD) {
+                throw new IOException("Frame too large");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+    }
+
+    private boolean readLegacy() throws IOException {
+        if (in.remaining() < 2) {
+            return false;
+        }
+        int len = in.getShort(in.position()) & 0xFFFF;
+        if (in.remaining() < 2 + len) {
+            return false;
+        }
+        String msg = Frame.decode(in, len);
+        if (handshaking && msg.startsWith(Protocol.HELLO)) {
+            // 握手回覆之後伺服器改用協商出的協定；同意續接時接著送出 OP_SESSION，收到後才算握手完成
+            version = Protocol.helloVersion(msg);
+            if (version == Protocol.LEGACY || (Protocol.helloFeatures(msg) & Protocol.FEATURE_RESUME) == 0) {
+                token = null;
+                handshaking = false;
+                ready(true);
+            }
+            return true;
+        }
+        deliver(msg);
+        return true;
+    }
+
+    private boolean readBinary() throws IOException {
+        int start = in.position();
+        if (!in.hasRemaining()) {
+            return false;
+        }
+        int opcode = in.get(start) & 0xFF;
+        // 群組編號與序號（目前只傳遞內容）
+        int groupEnd = Protocol.varintEnd(in, start + 1);
+        int seqEnd = groupEnd < 0 ? -1 : Protocol.varintEnd(in, groupEnd);
+        int lenEnd = seqEnd < 0 ? -1 : Protocol.varintEnd(in, seqEnd);
+        if (lenEnd < 0) {
+            return false;
+        }
+        int len = Protocol.getLength(in, seqEnd, Frame.MAX_PAYLOAD);
+        int end = lenEnd + len;
+        if (end > in.limit()) {
+            return false;
+        }
+        ByteBuffer payload = in.duplicate().limit(end).position(lenEnd);
+        in.position(end);
+        if (opcode == Protocol.OP_DEFLATE) {
+            inflate(payload);
+        } else if (opcode == Protocol.OP_SESSION) {
+            onSession(Frame.text(payload), Protocol.getVarint(in, groupEnd) == 1);
+        } else if (opcode == Protocol.OP_UPLOAD) {
+            onUploadReply(Protocol.getVarint(in, groupEnd) == 1);
+        } else if (opcode == Protocol.OP_FILE) {
+            onFileStart((int) Protocol.getVarint(in, start + 1), Frame.text(payload));
+        } else if (opcode == Protocol.OP_FILE_DATA) {
+            onFileData((int) Protocol.getVarint(in, start + 1), payload);
+        } else {
+            if (opcode == Protocol.OP_CHAT) {
+                lastSeen((int) Protocol.getVarint(in, start + 1), Protocol.getVarint(in, groupEnd));
+            }
+            deliver(Frame.text(payload));
+        }
+        return true;
+    }
+
+    /**
+     * 收到續接憑證：握手完成，沒有續接成功時重新加入群組
+     *
+     * @param sessionToken 此工作階段的續接憑證
+     * @param resumed      是否續接了原本的工作階段
+     */
+    private void onSession(String sessionToken, boolean resumed) {
+        token = sessionToken;
+        if (handshaking) {
+            handshaking = false;
+            ready(!resumed);
+        }
+    }
+
+    /**
+     * 記錄最後收到的群組訊息（續接時據此只補送之後的訊息）
+     * 換到其他群組後序號重新計算
+     */
+    private void lastSeen(int groupId, long seq) {
+        if (groupId != lastGroupId) {
+            lastGroupId = groupId;
+            lastSeq = seq;
+        } else if (seq > lastSeq) {
+            lastSeq = seq;
+        }
+    }
+
+    /**
+     * 解壓縮訊框並依序傳遞其中的每一則訊息
+     */
+    private void inflate(ByteBuffer payload) throws IOException {
+        ByteBuffer frames = Compression.inflate(payload);
+        int pos = frames.position();
+        while (pos < frames.limit()) {
+            int seqPos = Protocol.varintEnd(frames, pos + 1);
+            int lenPos = seqPos < 0 ? -1 : Protocol.varintEnd(frames, seqPos);
+            int start = lenPos < 0 ? -1 : Protocol.varintEnd(frames, lenPos);
+            long size = start < 0 ? -1 : Protocol.getVarint(frames, lenPos);
+            if (size < 0 || size > frames.limit() - start) {
+                throw new IOException("Malformed compressed frame");
+            }
+            if ((frames.get(pos) & 0xFF) == Protocol.OP_CHAT) {
+                lastSeen((int) Protocol.getVarint(frames, pos + 1), Protocol.getVarint(frames, seqPos));
+            }
+            deliver(Frame.text(frames.duplicate().limit(start + (int) size).position(start)));
+            pos = start + (int) size;
+        }
+    }
+
+    private void deliver(String msg) {
+        trackGroup(msg);
+        try {
+            listener.onMessage(msg);
+        } catch (RuntimeException e) {
+            // 不讓使用者程式的錯誤中斷事件迴圈
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 依伺服器的回覆記錄目前所在的群組（重新連線後據此重新加入）
+     */
+    private void trackGroup(String msg) {
+        if (msg.startsWith("You joined ")) {
+            group = trimPeriod(msg.substring(11));
+        } else if (msg.startsWith("You switched to ")) {
+            group = trimPeriod(msg.substring(16));
+        } else if (msg.startsWith("A slot in ") && msg.contains(" is now free")) {
+            group = msg.substring(10, msg.indexOf(" is now free"));
+        } else if (msg.contains(" is full! You are added to waiting queue")) {
+            group = msg.substring(0, msg.indexOf(' '));
+        } else if (msg.startsWith("You have left the group")) {
+            group = null;
+        } else if (msg.startsWith("Session resumed as ")) {
+            // "Session resumed as User_1 in Group_A (3 missed messages)." / ", waiting for Group_A." / " in the Lobby."
+            int at = msg.indexOf(" in Group_");
+            int wait = msg.indexOf(", waiting for ");
+            if (at > 0) {
+                int end = msg.indexOf(' ', at + 4);
+                group = msg.substring(at + 4, end > 0 ? end : msg.length() - 1);
+            } else if (wait > 0) {
+                group = trimPeriod(msg.substring(wait + 14));
+            } else {
+                group = null;
+            }
+        }
+    }
+
+    private static String trimPeriod(String s) {
+        return s.endsWith(".") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    /**
+     * 連線失敗或中斷：送出 EXIT! 後或已關閉時結束，否則以退避時間排定重新連線
+     */
+    private void connectionLost(Exception cause) {
+        closeChannel();
+        if (closing || exitSent) {
+            finish();
+            return;
+        }
+        long delay = backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        backoff = Math.min(MAX_BACKOFF, backoff * 2);
+        String reason = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+        listener.onDisconnected(reason, delay);
+        loop.schedule(delay, this::connect);
+    }
+
+    private void closeChannel() {
+        connected = false;
+        handshaking = false;
+        // 進行中的檔案傳輸隨連線中斷（尚未開始的上傳保留到重新連線後）
+        if (uploadPath != null) {
+            if (upload != null) {
+                upload.close();
+                upload = null;
+            }
+            listener.onMessage("Upload of " + uploadPath.getFileName() + " interrupted.");
+            uploadPath = null;
+        }
+        if (download != null) {
+            download.abort();
+            listener.onMessage("Download of " + download.name + " interrupted.");
+            download = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // 關閉失敗時不需額外處理
+            }
+        }
+        channel = null;
+        key = null;
+    }
+
+    private void finish() {
+        closing = true;
+        closeChannel();
+        closed.complete(null);
+    }
+
+    /**
+     * 所有 ChatClient 共用的事件迴圈（第一次使用時啟動，daemon 執行緒）
+     */
+    private static final class IoLoop implements Runnable {
+        private static final class Holder {
+            static final IoLoop SHARED = new IoLoop();
+        }
+
+        /**
+         * 延遲執行的工作
+         */
+        private static final class Timer {
+            final long at;
+            final Runnable task;
+
+            Timer(long at, Runnable task) {
+                this.at = at;
+                this.task = task;
+            }
+        }
+
+        final Selector selector;
+        private final Thread thread;
+        // 其他執行緒交給事件迴圈的工作
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // 避免重複呼叫 selector.wakeup()
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        // 依時間排序的延遲工作（只在事件迴圈執行緒上使用）
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong((Timer t) -> t.at));
+
+        static IoLoop shared() {
+            return Holder.SHARED;
+        }
+
+        private IoLoop() {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            thread = new Thread(this, "chat-client-io");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * 在事件迴圈上執行工作（可由任意執行緒呼叫）
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * 延遲一段時間後在事件迴圈上執行工作（只能在事件迴圈上呼叫）
+         */
+        void schedule(long delayMillis, Runnable task) {
+            timers.add(new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), task));
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    wakeupPending.set(false);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    long now = System.nanoTime();
+                    while (!timers.isEmpty() && timers.peek().at <= now) {
+                        timers.poll().task.run();
+                    }
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (timers.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timers.peek().at - now)));
+                    }
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                        SelectionKey ready = it.next();
+                        it.remove();
+                        ((ChatClient) ready.attachment()).onReady(ready);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // 不讓單一連線的錯誤結束共用的事件迴圈
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * 聊天連線的傳輸層抽象
+ *
+ * ClientHandler 只透過此介面送出訊息與關閉連線，
+ * 因此同一套指令處理邏輯可以同時跑在「每連線一條執行緒」的 Socket 模式
+ * 與 NIO 事件迴圈模式之上。
+ */
+interface ChatConnection {
+    /**
+     * 傳送一個已編碼的訊框給客戶端
+     * 同一個 Frame 可以交給多個連線，實作不得修改其內容
+     *
+     * @param frame 要傳送的訊框
+     */
+    void send(Frame frame) throws IOException;
+
+    /**
+     * 傳送一則訊息給客戶端（與 DataOutputStream.writeUTF 相同的訊框格式）
+     *
+     * @param message 要傳送的訊息
+     */
+    default void send(String message) throws IOException {
+        send(Frame.of(message));
+    }
+
+    /**
+     * 排入一個檔案下載（只適用於二進位協定的連線）
+     * 檔案內容由寫出端以 FileChannel.transferTo 直接送到 Socket，
+     * 每段之前先送出已排入的訊框，聊天訊息不會排在整個檔案之後
+     *
+     * @param file 要送出的檔案（送完或連線中斷時由寫出端關閉）
+     * @throws IOException 連線已關閉或不支援檔案傳輸時拋出
+     */
+    default void sendFile(FileTransfer file) throws IOException {
+        throw new IOException("File transfer is not supported on this connection");
+    }
+
+    /**
+     * 開始處理一個指令：之後送出的訊框先累積起來，到 uncork() 時合併成一次寫入
+     * 不支援的傳輸層可忽略（NIO 模式本來就在每輪事件迴圈結束時才寫出）
+     */
+    default void cork() {
+    }
+
+    /**
+     * 指令處理完畢：立即寫出累積的訊框
+     */
+    default void uncork() {
+    }
+
+    /**
+     * 關閉連線（可重複呼叫）
+     */
+    void close() throws IOException;
+}
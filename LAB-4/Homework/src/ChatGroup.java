@@ -0,0 +1,255 @@
+package src;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * 聊天群組的成員名冊
+ *
+ * 每個群組只由所屬分片的執行緒存取（見 GroupRegistry），所有狀態都是一般欄位，
+ * 不使用鎖也不使用原子操作：
+ * 1. 加入：還有空位時直接加入成員集合；群組已滿時排入等待佇列尾端
+ * 2. 離開：有等待者時把名額直接交給佇列最前面的人
+ * 3. 取消等待：排隊憑證本身就是佇列節點，直接從雙向鏈結串列中移除（O(1)，不掃描佇列）
+ * 4. 回收：沒有成員也沒有等待者時，GroupRegistry 在同一個分片上將群組從登錄表移除，
+ *    之後的加入都會在同一個分片上建立新群組，不會取得已回收的群組
+ * 5. 叢集模式下，擁有者節點上的群組另外記錄訂閱中的其他節點；有訂閱者時不算閒置，不會被回收
+ *
+ * 新排入者的位置即為佇列長度（O(1)）；其他人的位置只在批次通知時走訪一次重新計算。
+ */
+final class ChatGroup {
+    // 下一個群組編號（二進位協定以編號標示訊息所屬的群組，0 保留給不屬於群組的訊息）
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    private final int id;
+    private final String name;
+    private final int capacity;
+    // 群組的訊息歷史記錄
+    final HistoryRing history;
+    // 常駐群組（啟動時建立，閒置時不回收）
+    private final boolean permanent;
+    // 閒置回收用：開始閒置的時間與是否已排定檢查（由 GroupRegistry 使用）
+    long idleSince;
+    boolean idleCheckScheduled;
+    // 是否已排定排隊位置的批次通知
+    boolean positionsDirty;
+    // 群組聊天訊息的速率限制（null 表示不限制；由 Server 建立群組時設定）
+    TokenBucket chatLimit;
+    // 目前的群組成員（依加入順序）
+    private final Set<Server.ClientHandler> members = new LinkedHashSet<>();
+    // 叢集模式：訂閱此群組的其他節點編號（只在擁有者節點上使用）
+    private final Set<Integer> subscribers = new HashSet<>();
+
+    // 等待佇列（FIFO 雙向鏈結串列）
+    private Waiter head;
+    private Waiter tail;
+    private int waitingCount;
+
+    /**
+     * 建構子
+     *
+     * @param id        群組編號（由 newId() 取得）
+     * @param name      群組名稱
+     * @param capacity  最大成員數量
+     * @param history   訊息歷史記錄
+     * @param permanent 是否為常駐群組
+     */
+    ChatGroup(int id, String name, int capacity, HistoryRing history, boolean permanent) {
+        this.id = id;
+        this.name = name;
+        this.capacity = capacity;
+        this.history = history;
+        this.permanent = permanent;
+    }
+
+    /**
+     * 等待加入群組的排隊憑證（同時也是等待佇列的節點）
+     */
+    static final class Waiter {
+        final Server.ClientHandler member;
+        final ChatGroup group;
+        // 最後一次通知客戶端的排隊位置
+        int notifiedPosition;
+        // 鏈結串列指標
+        private Waiter prev;
+        private Waiter next;
+
+        private Waiter(Server.ClientHandler member, ChatGroup group) {
+            this.member = member;
+            this.group = group;
+        }
+    }
+
+    /**
+     * @return 新的群組編號（同一次執行中不重複，回收後重新建立的同名群組會取得新編號）
+     */
+    static int newId() {
+        return NEXT_ID.incrementAndGet();
+    }
+
+    int id() {
+        return id;
+    }
+
+    String name() {
+        return name;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    boolean permanent() {
+        return permanent;
+    }
+
+    /**
+     * @return 是否沒有任何成員、等待者與訂閱節點
+     */
+    boolean isIdle() {
+        return members.isEmpty() && waitingCount == 0 && subscribers.isEmpty();
+    }
+
+    /**
+     * 加入訂閱節點（叢集模式，擁有者節點使用）
+     *
+     * @param node 訂閱的節點編號
+     */
+    void subscribe(int node) {
+        subscribers.add(node);
+    }
+
+    /**
+     * 移除訂閱節點
+     *
+     * @param node 取消訂閱的節點編號
+     * @return 該節點原本是否有訂閱
+     */
+    boolean unsubscribe(int node) {
+        return subscribers.remove(node);
+    }
+
+    /**
+     * @return 訂閱中的節點編號
+     */
+    Iterable<Integer> subscribers() {
+        return subscribers;
+    }
+
+    /**
+     * @return 目前的成員（走訪時不複製）
+     */
+    Iterable<Server.ClientHandler> members() {
+        return members;
+    }
+
+    /**
+     * @return 目前的等待人數
+     */
+    int waitingCount() {
+        return waitingCount;
+    }
+
+    /**
+     * 取得名額或排入等待佇列
+     *
+     * @param c 要加入的客戶端
+     * @return null 表示已加入群組；否則為排隊憑證
+     */
+    Waiter joinOrWait(Server.ClientHandler c) {
+        if (tryJoin(c)) {
+            return null;
+        }
+        Waiter w = new Waiter(c, this);
+        if (tail == null) {
+            head = w;
+        } else {
+            tail.next = w;
+            w.prev = tail;
+        }
+        tail = w;
+        w.notifiedPosition = ++waitingCount;
+        return w;
+    }
+
+    /**
+     * 只在有空位時加入，不排隊（用於 CHANGE_）
+     *
+     * @param c 要加入的客戶端
+     * @return 是否成功加入（群組已滿時為 false）
+     */
+    boolean tryJoin(Server.ClientHandler c) {
+        // 有人在排隊時空位一定已經交給排隊者，因此只需比較成員人數
+        if (members.size() >= capacity) {
+            return false;
+        }
+        members.add(c);
+        return true;
+    }
+
+    /**
+     * 離開群組，並把空出的名額交給等待佇列中的下一位
+     *
+     * @param c 要離開的客戶端
+     * @return 因此遞補進群組的客戶端；沒有人遞補（或 c 不是成員）時回傳 null
+     */
+    Server.ClientHandler leave(Server.ClientHandler c) {
+        if (!members.remove(c) || head == null) {
+            return null;
+        }
+        Waiter w = head;
+        unlink(w);
+        members.add(w.member);
+        return w.member;
+    }
+
+    /**
+     * 取消等待（O(1)，直接從鏈結串列移除，不掃描佇列）
+     *
+     * @param w 仍在等待中的排隊憑證
+     */
+    void cancel(Waiter w) {
+        unlink(w);
+    }
+
+    /**
+     * 重新計算所有等待者的排隊位置，只回傳位置有變動的等待者
+     * 回傳前已更新其 notifiedPosition，呼叫端負責通知
+     *
+     * @return 位置有變動的等待者（依排隊順序）
+     */
+    List<Waiter> positionChanges() {
+        List<Waiter> changed = new ArrayList<>();
+        int pos = 1;
+        for (Waiter w = head; w != null; w = w.next, pos++) {
+            if (w.notifiedPosition != pos) {
+                w.notifiedPosition = pos;
+                changed.add(w);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 從等待佇列移除節點
+     */
+    private void unlink(Waiter w) {
+        if (w.prev == null) {
+            head = w.next;
+        } else {
+            w.prev.next = w.next;
+        }
+        if (w.next == null) {
+            tail = w.prev;
+        } else {
+            w.next.prev = w.prev;
+        }
+        w.prev = null;
+        w.next = null;
+        waitingCount--;
+    }
+}
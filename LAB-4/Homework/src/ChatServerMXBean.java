@@ -0,0 +1,91 @@
+package src;
+
+import java.util.Map;
+
+/**
+ * 聊天伺服器的 JMX 管理介面（以 jconsole 等工具連到伺服器行程，於 src:type=ChatServer 查看）
+ *
+ * JMX 規定 MXBean 介面必須是 public；實作為 ServerStats。
+ * 計數器都是自啟動以來的累計值，速率由監控工具依兩次讀取的差值計算。
+ */
+public interface ChatServerMXBean {
+    /**
+     * @return 伺服器已運作的秒數
+     */
+    long getUptimeSeconds();
+
+    /**
+     * @return 已接受的連線數（累計）
+     */
+    long getAcceptedConnections();
+
+    /**
+     * @return 因伺服器已滿而拒絕的連線數（累計）
+     */
+    long getRejectedConnections();
+
+    /**
+     * @return 超過速率限制而捨棄的聊天訊息與 BROADCAST 數（累計）
+     */
+    long getThrottledMessages();
+
+    /**
+     * @return 目前連線中的客戶端數
+     */
+    int getLiveConnections();
+
+    /**
+     * @return 與客戶端之間讀入的位元組數（累計）
+     */
+    long getBytesIn();
+
+    /**
+     * @return 寫出給客戶端的位元組數（累計）
+     */
+    long getBytesOut();
+
+    /**
+     * @return 各種指令的累計次數
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * @return 目前存在的群組數量
+     */
+    int getGroups();
+
+    /**
+     * @return 所有群組的成員總數
+     */
+    long getGroupMembers();
+
+    /**
+     * @return 所有等待佇列中的客戶端總數
+     */
+    long getWaitingClients();
+
+    /**
+     * @return 人數（含等待者）最多的幾個群組的成員數
+     */
+    Map<String, Integer> getLargestGroupSizes();
+
+    /**
+     * @return 等待佇列最長的幾個群組的等待人數（只列出有人等待的群組）
+     */
+    Map<String, Integer> getLongestWaitingQueues();
+
+    /**
+     * @return 群組廣播扇出延遲（count 與 p50 / p90 / p99 / p99.9 / max，單位微秒）
+     */
+    Map<String, Double> getGroupBroadcastLatencyMicros();
+
+    /**
+     * @return 全域廣播扇出延遲，到最後一個客戶端排入為止（count 與 p50 / p90 / p99 / p99.9 / max，單位微秒）
+     */
+    Map<String, Double> getGlobalBroadcastLatencyMicros();
+
+    /**
+     * @return 與管理員主控台 /stats 相同的文字報表（連線速率為自啟動以來的平均）
+     */
+    String getReport();
+}
@@ -7,73 +7,114 @@ package src;
 // ============================================================
 import java.io.*;
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * 多群組動態聊天室客戶端
- * 
+ *
  * 功能特性：
- * 1. 連線到伺服器並建立雙向通訊
- * 2. 使用獨立執行緒接收伺服器訊息（非阻塞）
- * 3. 主執行緒負責讀取使用者輸入並傳送至伺服器
+ * 1. 連線到伺服器並建立雙向通訊（連線、接收與傳送由 ChatClient 的共用事件迴圈以非阻塞方式處理）
+ * 2. 伺服器訊息由事件迴圈接收後直接輸出，不需要獨立的接收執行緒
+ * 3. 主執行緒負責讀取使用者輸入並排入傳送佇列，不等待前一個指令的回覆
  * 4. 支援所有伺服器指令（JOIN、CHANGE、LEAVE、HISTORY、EXIT!）
+ * 5. 連線時與伺服器協商二進位協定（可傳送超過 64 KB 的訊息），
+ *    伺服器不支援或指定 --legacy 時使用原本的 writeUTF 協定
+ * 6. 指定 --compress 時一併協商壓縮，較大的訊息與歷史記錄會以壓縮訊框傳送
+ * 7. 指定 --load 時改為無介面的壓力測試模式，在同一個 JVM 內模擬大量客戶端（見 LoadGenerator）
+ * 8. 與伺服器斷線時自動重新連線（等待時間逐次加倍），並重新加入原本的群組
+ * 9. 訊息交給 TerminalRenderer 每隔一個畫面間隔合併寫到終端，忙碌的群組不會讓終端成為瓶頸
+ * 10. SENDFILE <路徑> 分享檔案到所在群組、GETFILE <編號> 下載到 downloads 目錄（只支援二進位協定）
  */
 public class Client {
     // 伺服器主機位址（本地主機）
     private static final String HOST = "127.0.0.1";
     // 伺服器監聽埠號
     private static final int PORT = 12345;
+    // 送出 EXIT! 後等待伺服器關閉連線的時間（毫秒）
+    private static final int EXIT_TIMEOUT = 2000;
+    // 終端輸出的畫面間隔（毫秒）
+    private static final int FRAME_INTERVAL = 16;
 
     /**
      * 主程式進入點
-     * 建立與伺服器的連線，啟動訊息接收執行緒，處理使用者輸入
+     * 啟動非同步客戶端核心，將伺服器訊息輸出到終端，並把使用者輸入排入傳送佇列
+     *
+     * @param args 可指定 --host=、--port= 連線位址，--legacy 強制使用 writeUTF 協定、
+     *             --compress 協商壓縮，或 --load 進行壓力測試
      */
     public static void main(String[] args) {
-        try (Socket socket = new Socket(HOST, PORT)) {
-            System.out.println("Connected to server at " + HOST + ":" + PORT);
+        List<String> options = Arrays.asList(args);
+        if (options.contains("--load")) {
+            LoadGenerator.main(args);
+            return;
+        }
+        String host = HOST;
+        int port = PORT;
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = arg.substring(7);
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring(7));
+            }
+        }
+        boolean legacyOnly = options.contains("--legacy");
+        String address = host + ":" + port;
+        // 所有輸出（伺服器訊息與客戶端的提示）都經過同一個輸出階段，維持原本的順序
+        TerminalRenderer terminal = new TerminalRenderer(System.out, FRAME_INTERVAL);
 
-            // 建立資料輸入輸出流
-            // DataInputStream 用於接收伺服器傳送的 UTF-8 編碼字串
-            DataInputStream in = new DataInputStream(socket.getInputStream());
-            // DataOutputStream 用於發送 UTF-8 編碼字串至伺服器
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        ChatClient client = new ChatClient(new InetSocketAddress(host, port), legacyOnly,
+                options.contains("--compress"), new ChatClient.Listener() {
+                    // 是否已連線過（回呼都在同一條事件迴圈執行緒上，不需要同步）
+                    private boolean reconnecting = false;
 
-            // 建立訊息接收執行緒（獨立執行緒處理伺服器訊息）
-            // 使用獨立執行緒避免阻塞使用者輸入，讓程式能同時接收訊息和處理輸入
-            Thread receiveThread = new Thread(() -> {
-                try {
-                    // 持續接收伺服器訊息（阻塞式讀取）
-                    while (true) {
-                        // 從伺服器讀取 UTF-8 編碼的字串訊息
-                        String msg = in.readUTF();
-                        // 將接收到的訊息輸出到終端
-                        System.out.println(msg);
+                    @Override
+                    public void onMessage(String message) {
+                        // 將接收到的訊息排入終端輸出
+                        terminal.println(message);
                     }
-                } catch (IOException e) {
-                    // 當連線中斷時（伺服器關閉或網路錯誤），顯示斷線訊息
-                    System.out.println("Disconnected from server.");
-                }
-            });
-            // 啟動接收執行緒（開始在背景執行）
-            receiveThread.start();
 
-            // 主執行緒處理使用者輸入和訊息傳送
-            // 使用 BufferedReader 讀取標準輸入（鍵盤輸入）
+                    @Override
+                    public void onConnected(boolean binary) {
+                        terminal.println((reconnecting ? "Reconnected to server at " : "Connected to server at ")
+                                + address);
+                        if (!binary && !legacyOnly) {
+                            terminal.println("Server does not support the binary protocol, using legacy mode.");
+                        }
+                        reconnecting = true;
+                    }
+
+                    @Override
+                    public void onDisconnected(String reason, long retryMillis) {
+                        // 伺服器關閉、重新啟動或網路錯誤時，顯示斷線訊息並等待重新連線
+                        terminal.println((reconnecting ? "Disconnected from server: " : "Connection failed: ")
+                                + reason + ". Reconnecting in " + retryMillis + " ms...");
+                    }
+                });
+        client.start();
+
+        // 主執行緒處理使用者輸入（每行視為一條訊息）
+        try {
             BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
             String msg;
-            // 持續讀取使用者輸入（每行視為一條訊息）
             while ((msg = reader.readLine()) != null) {
-                // 將使用者輸入的字串以 UTF-8 編碼發送至伺服器
-                out.writeUTF(msg);
-                // 如果使用者輸入 EXIT!，結束迴圈並關閉連線
+                if (!client.send(msg)) {
+                    terminal.println("Too many pending messages, not sent: " + msg);
+                }
+                // 如果使用者輸入 EXIT!，等待伺服器關閉連線後結束
                 if (msg.equalsIgnoreCase("EXIT!")) {
+                    client.closeFuture().get(EXIT_TIMEOUT, TimeUnit.MILLISECONDS);
                     break;
                 }
             }
-
-        } catch (IOException e) {
-            // 處理連線失敗的情況（伺服器未啟動、網路問題等）
-            System.out.println("Connection failed: " + e.getMessage());
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            // 讀取輸入失敗或伺服器未在時限內關閉連線，直接結束
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            client.close();
+            // 輸出剩下的訊息後結束
+            terminal.close();
         }
-        // try-with-resources 會自動關閉 Socket，無需手動關閉
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,416 @@
+package src;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * 叢集模式：多個 Server 節點以一致性雜湊分擔群組
+ *
+ * 每個群組依名稱雜湊到環上的一個擁有者節點（每個節點在環上有 VIRTUAL_NODES 個點，
+ * 群組平均分散，節點增減時只有少部分群組改變擁有者）。擁有者負責該群組的序號與（可持久化的）
+ * 歷史記錄；其他節點上有這個群組時向擁有者訂閱，並保存一份歷史記錄的副本。
+ *
+ * 節點之間以獨立的匯流排連線交換訊框（編碼與客戶端的二進位協定相同，opcode 另外定義）：
+ * 1. 非擁有者節點上的群組訊息以 POST 轉交擁有者（一次）
+ * 2. 擁有者寫入歷史並編上序號後送給本地成員，並以 PUBLISH 送給每個訂閱節點各一次，
+ *    由該節點送給自己的成員（匯流排訊框只編碼一次，所有訂閱節點共用）
+ * 3. 訂閱時擁有者先以 REPLAY 補送目前的歷史記錄，之後 HISTORY 直接讀取本地副本
+ *    （節點第一次建立某個群組時，訂閱送達擁有者之前約一次來回時間內的訊息只會出現在 HISTORY 中）
+ * 4. 全域廣播以 ANNOUNCE 送到每個節點
+ *
+ * 每個節點對其他每個節點各有一條送出連線（只用來送出），斷線時自動重連並重新訂閱；
+ * 斷線期間的訊框暫存在有界佇列中，寫到一半的訊框可能遺失。
+ * 群組人數上限與等待佇列仍由各節點各自管理。
+ */
+final class Cluster {
+    // 匯流排訊框的 opcode（與客戶端協定分開編號）
+    // 連線後的第一個訊框，群組編號欄位為送出端的節點編號，序號欄位為其啟動編號
+    private static final int OP_NODE = 0x40;
+    // 訂閱／取消訂閱，內容為群組名稱
+    private static final int OP_SUBSCRIBE = 0x41;
+    private static final int OP_UNSUBSCRIBE = 0x42;
+    // 群組訊息，內容為「群組名稱 \0 發送者 \0 訊息」（modified UTF-8 不會出現 0x00）
+    private static final int OP_POST = 0x43;
+    // 同上，序號欄位為擁有者編上的序號
+    private static final int OP_PUBLISH = 0x44;
+    // 同上，訂閱時補送的歷史記錄（只寫入副本，不送給成員）
+    private static final int OP_REPLAY = 0x45;
+    // 全域廣播，內容為要送給所有客戶端的文字
+    private static final int OP_ANNOUNCE = 0x46;
+
+    // 每個節點在雜湊環上的點數
+    private static final int VIRTUAL_NODES = 160;
+    // 重新連線的間隔（毫秒）
+    private static final int RECONNECT_DELAY = 500;
+    // 每條送出連線的佇列高水位與低水位（斷線期間超過時丟棄最舊的訊框）
+    private static final int LINK_HIGH_WATERMARK = 16 * 1024 * 1024;
+    private static final int LINK_LOW_WATERMARK = 8 * 1024 * 1024;
+
+    // 本節點編號（從 1 開始，即在 --cluster 清單中的位置）
+    private final int nodeId;
+    private final List<InetSocketAddress> nodes;
+    // 一致性雜湊環（Key: 雜湊值, Value: 節點編號）
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+    // 送出連線（索引為節點編號，本節點為 null）
+    private final Link[] links;
+    // 本節點目前向其他節點訂閱的群組（重新連線後重送）
+    private final Set<String> subscribed = ConcurrentHashMap.newKeySet();
+    // 每個節點目前有效的接收連線（舊連線斷線時不應清除新連線的訂閱）
+    private final AtomicReferenceArray<Socket> inbound;
+    // 本節點的啟動編號（每次啟動不同），以及最後一次看到的各節點啟動編號
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final AtomicLongArray epochs;
+
+    /**
+     * 建構子
+     *
+     * @param nodeId 本節點編號（從 1 開始）
+     * @param nodes  所有節點的匯流排位址（每個節點的清單順序必須相同）
+     */
+    Cluster(int nodeId, List<InetSocketAddress> nodes) {
+        this.nodeId = nodeId;
+        this.nodes = nodes;
+        this.links = new Link[nodes.size() + 1];
+        this.inbound = new AtomicReferenceArray<>(nodes.size() + 1);
+        this.epochs = new AtomicLongArray(nodes.size() + 1);
+        for (int node = 1; node <= nodes.size(); node++) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(nodes.get(node - 1) + "#" + i), node);
+            }
+            if (node != nodeId) {
+                links[node] = new Link(node, nodes.get(node - 1));
+            }
+        }
+    }
+
+    /**
+     * 開始監聽匯流排連線，並連線到其他節點
+     *
+     * @throws IOException 無法監聽本節點的匯流排埠號時拋出
+     */
+    void start() throws IOException {
+        ServerSocket listener = new ServerSocket(nodes.get(nodeId - 1).getPort());
+        System.out.println("Cluster node " + nodeId + "/" + nodes.size() + " listening on " + nodes.get(nodeId - 1));
+        daemon("cluster-accept", () -> {
+            while (true) {
+                try {
+                    Socket socket = listener.accept();
+                    daemon("cluster-in", () -> receive(socket));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        for (Link link : links) {
+            if (link != null) {
+                daemon("cluster-link-" + link.node, link);
+            }
+        }
+    }
+
+    int nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @param group 正規化後的群組名稱
+     * @return 是否由本節點負責此群組
+     */
+    boolean owns(String group) {
+        return owner(group) == nodeId;
+    }
+
+    /**
+     * @param group 正規化後的群組名稱
+     * @return 負責此群組的節點編號（雜湊環上順時針方向的第一個點）
+     */
+    int owner(String group) {
+        Map.Entry<Long, Integer> e = ring.ceilingEntry(hash(group));
+        return (e != null ? e : ring.firstEntry()).getValue();
+    }
+
+    /**
+     * 向擁有者訂閱群組（本節點建立了不屬於自己的群組時呼叫）
+     */
+    void subscribe(String group) {
+        subscribed.add(group);
+        links[owner(group)].send(text(OP_SUBSCRIBE, group));
+    }
+
+    /**
+     * 取消訂閱群組（本節點回收了不屬於自己的群組時呼叫）
+     */
+    void unsubscribe(String group) {
+        subscribed.remove(group);
+        links[owner(group)].send(text(OP_UNSUBSCRIBE, group));
+    }
+
+    /**
+     * 把群組訊息轉交擁有者，由擁有者編上序號後送回每個訂閱節點
+     *
+     * @param group   正規化後的群組名稱
+     * @param sender  發送者名稱（各節點送給成員時略過此人）
+     * @param content 訊息內容（會立即複製，呼叫端之後可重複使用此緩衝區）
+     */
+    void post(String group, String sender, ByteBuffer content) {
+        links[owner(group)].send(message(OP_POST, 0, group, sender, content));
+    }
+
+    /**
+     * 把擁有者已編上序號的群組訊息送給每個訂閱節點（各一次，共用同一個訊框）
+     *
+     * @param group  本節點負責的群組
+     * @param sender 發送者名稱
+     * @param frame  帶有序號的群組訊息
+     */
+    void publish(ChatGroup group, String sender, Frame frame) {
+        Frame message = null;
+        for (int node : group.subscribers()) {
+            if (message == null) {
+                message = message(OP_PUBLISH, frame.seq(), group.name(), sender, frame.payload());
+            }
+            links[node].send(message);
+        }
+    }
+
+    /**
+     * 補送群組目前的歷史記錄給剛訂閱的節點
+     */
+    void replay(ChatGroup group, int node) {
+        for (Frame frame : group.history.snapshot(0)) {
+            links[node].send(message(OP_REPLAY, frame.seq(), group.name(), "", frame.payload()));
+        }
+    }
+
+    /**
+     * 把全域廣播送到其他所有節點
+     *
+     * @param frame    已編碼的廣播訊框
+     * @param presence 是否為上線／離開通知（seq 欄位為 1；關閉通知的客戶端不會收到）
+     */
+    void announce(Frame frame, boolean presence) {
+        Frame message = Frame.wrap(OP_ANNOUNCE, 0, presence ? 1 : 0, frame.payload());
+        for (Link link : links) {
+            if (link != null) {
+                link.send(message);
+            }
+        }
+    }
+
+    /**
+     * 接收迴圈：處理其他節點經由其送出連線送來的訊框
+     */
+    private void receive(Socket socket) {
+        int node = 0;
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            int opcode = in.readUnsignedByte();
+            long from = Protocol.readVarint(in);
+            long peerEpoch = Protocol.readVarint(in);
+            readPayload(in);
+            if (opcode != OP_NODE || from < 1 || from > nodes.size() || from == nodeId) {
+                throw new IOException("Unexpected cluster handshake");
+            }
+            node = (int) from;
+            // 對方重新連線：先清除舊連線留下的訂閱，對方會重新訂閱
+            inbound.set(node, s);
+            Server.onNodeReset(node);
+            // 對方重新啟動過：其群組的序號可能重新開始，清除本地副本（之後的訊框才是重新訂閱的補送）
+            long previous = epochs.getAndSet(node, peerEpoch);
+            if (previous != 0 && previous != peerEpoch) {
+                Server.onNodeRestart(node);
+            }
+            System.out.println("Cluster node " + node + " connected.");
+            while (true) {
+                opcode = in.readUnsignedByte();
+                Protocol.readVarint(in);
+                long seq = Protocol.readVarint(in);
+                dispatch(node, opcode, seq, readPayload(in));
+            }
+        } catch (IOException e) {
+            if (node > 0 && inbound.compareAndSet(node, socket, null)) {
+                Server.onNodeReset(node);
+                System.out.println("Cluster node " + node + " disconnected.");
+            }
+        }
+    }
+
+    private void dispatch(int node, int opcode, long seq, ByteBuffer payload) throws IOException {
+        switch (opcode) {
+            case OP_SUBSCRIBE:
+                Server.onSubscribe(field(payload), node);
+                break;
+            case OP_UNSUBSCRIBE:
+                Server.onUnsubscribe(field(payload), node);
+                break;
+            case OP_POST:
+                Server.onPost(field(payload), field(payload), payload.slice());
+                break;
+            case OP_PUBLISH:
+            case OP_REPLAY:
+                Server.onPublish(field(payload), field(payload), seq, payload.slice(), opcode == OP_PUBLISH);
+                break;
+            case OP_ANNOUNCE:
+                Server.onAnnounce(payload, seq == 1);
+                break;
+            default:
+                throw new IOException("Unknown cluster opcode: " + opcode);
+        }
+    }
+
+    /**
+     * 讀取訊框內容（新配置的緩衝區，之後交給客戶端的訊框直接共用）
+     */
+    private static ByteBuffer readPayload(DataInputStream in) throws IOException {
+        byte[] payload = new byte[Protocol.readLength(in, Frame.MAX_PAYLOAD + 1024)];
+        in.readFully(payload);
+        return ByteBuffer.wrap(payload);
+    }
+
+    /**
+     * 讀取到下一個 0x00（或結尾）為止的欄位（群組名稱與使用者名稱都是 ASCII）
+     */
+    private static String field(ByteBuffer buf) {
+        StringBuilder value = new StringBuilder();
+        while (buf.hasRemaining()) {
+            byte b = buf.get();
+            if (b == 0) {
+                break;
+            }
+            value.append((char) b);
+        }
+        return value.toString();
+    }
+
+    private static Frame text(int opcode, String value) {
+        return Frame.wrap(opcode, 0, 0, ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static Frame message(int opcode, long seq, String group, String sender, ByteBuffer content) {
+        byte[] g = group.getBytes(StandardCharsets.US_ASCII);
+        byte[] s = sender.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buf = ByteBuffer.allocate(g.length + s.length + 2 + content.remaining());
+        buf.put(g).put((byte) 0).put(s).put((byte) 0).put(content.duplicate());
+        buf.flip();
+        return Frame.wrap(opcode, 0, seq, buf);
+    }
+
+    /**
+     * 64 位元 FNV-1a 雜湊，再經過 MurmurHash3 的 fmix64 讓相近的名稱也能均勻分散
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * 送往另一個節點的連線
+     * 由專屬執行緒負責連線、重連與寫出；send() 只把訊框放入佇列
+     */
+    private final class Link implements Runnable {
+        final int node;
+        private final InetSocketAddress address;
+        private final OutboundQueue queue = new OutboundQueue(LINK_HIGH_WATERMARK, LINK_LOW_WATERMARK,
+                OutboundQueue.OverflowPolicy.DROP_OLDEST);
+
+        Link(int node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+        }
+
+        void send(Frame frame) {
+            queue.offer(frame);
+        }
+
+        /**
+         * 連線後先送出節點編號與目前的訂閱，再持續寫出佇列中的訊框（與客戶端連線相同的合併方式）
+         * 連線中斷時，尚未確定送出（最後一次 flush 之後）的訊框在重新連線後重送
+         */
+        @Override
+        public void run() {
+            List<Frame> unflushed = new ArrayList<>();
+            boolean reported = false;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(address, RECONNECT_DELAY);
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+                    // 對方不會在這條連線上送出資料：讀到結尾表示對方已關閉（例如重新啟動），
+                    // 以這條連線專屬的標記喚醒寫出迴圈，立即重新連線，避免後續訊框寫進已中斷的連線
+                    Frame closed = Frame.wrap(OP_NODE, 0, 0, ByteBuffer.allocate(0));
+                    InputStream in = socket.getInputStream();
+                    daemon("cluster-watch-" + node, () -> {
+                        try {
+                            while (in.read() >= 0) {
+                                // 不應收到資料，略過
+                            }
+                        } catch (IOException ignored) {
+                            // 連線已關閉
+                        }
+                        queue.offer(closed);
+                    });
+                    Frame.wrap(OP_NODE, nodeId, epoch, ByteBuffer.allocate(0)).writeTo(out, Protocol.VERSION);
+                    for (String group : subscribed) {
+                        if (owner(group) == node) {
+                            text(OP_SUBSCRIBE, group).writeTo(out, Protocol.VERSION);
+                        }
+                    }
+                    for (Frame frame : unflushed) {
+                        frame.writeTo(out, Protocol.VERSION);
+                    }
+                    out.flush();
+                    unflushed.clear();
+                    reported = false;
+                    Frame frame;
+                    while ((frame = queue.take()) != null) {
+                        do {
+                            if (frame.opcode() == OP_NODE) {
+                                if (frame == closed) {
+                                    throw new EOFException("Cluster node " + node + " closed the connection");
+                                }
+                                // 先前連線留下的標記
+                                continue;
+                            }
+                            unflushed.add(frame);
+                            frame.writeTo(out, Protocol.VERSION);
+                        } while ((frame = queue.poll()) != null);
+                        out.flush();
+                        unflushed.clear();
+                    }
+                    return;
+                } catch (IOException e) {
+                    if (!reported) {
+                        System.out.println("Cluster node " + node + " unreachable at " + address + ", retrying...");
+                        reported = true;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
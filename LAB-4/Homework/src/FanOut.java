@@ -0,0 +1,84 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 全域廣播的分區扇出
+ *
+ * 原本全域廣播由呼叫端（管理員主控台、發出 BROADCAST 的客戶端）單一執行緒逐一排入所有客戶端的輸出佇列，
+ * 數千個連線時最後一個接收者要等前面全部排完。這裡把客戶端依連線順序輪流分到固定的分區，
+ * 每個分區固定由 GroupRegistry 的一個分片執行緒處理，一次廣播在每個分區各排一個工作，各分片同時扇出。
+ *
+ * 同一個客戶端永遠屬於同一個分區，而分片依提交順序執行工作，
+ * 因此同一個呼叫端先後送出的廣播到達每個客戶端的順序不變（與原本逐一送出相同）。
+ */
+final class FanOut<T> {
+    private final GroupRegistry groups;
+    private final List<List<T>> partitions;
+    // 下一個新客戶端分配到的分區（輪流分配，各分區人數相差不超過一）
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * 建構子（分區數與分片數相同）
+     *
+     * @param groups 執行扇出的群組登錄表分片
+     */
+    FanOut(GroupRegistry groups) {
+        this.groups = groups;
+        this.partitions = new ArrayList<>(groups.shardCount());
+        for (int i = 0; i < groups.shardCount(); i++) {
+            partitions.add(new CopyOnWriteArrayList<>());
+        }
+    }
+
+    /**
+     * 加入一個接收者
+     *
+     * @return 分配到的分區編號（移除時使用）
+     */
+    int add(T target) {
+        int partition = Math.floorMod(next.getAndIncrement(), partitions.size());
+        partitions.get(partition).add(target);
+        return partition;
+    }
+
+    /**
+     * 移除一個接收者
+     *
+     * @param partition add() 回傳的分區編號
+     */
+    void remove(T target, int partition) {
+        partitions.get(partition).remove(target);
+    }
+
+    /**
+     * 在每個分區所屬的分片上，對該分區的所有接收者執行動作（不等待完成）
+     *
+     * @param action 對單一接收者執行的動作（在分片執行緒上呼叫）
+     * @return 所有分區都執行完畢（最後一個接收者也處理完）時完成
+     */
+    CompletableFuture<Void> forEach(Consumer<T> action) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            List<T> partition = partitions.get(i);
+            groups.execute(i, () -> {
+                try {
+                    for (T target : partition) {
+                        action.accept(target);
+                    }
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        done.complete(null);
+                    }
+                }
+            });
+        }
+        return done;
+    }
+}
@@ -0,0 +1,197 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 群組內分享的檔案（存放在本機磁碟）
+ *
+ * 上傳的內容在讀取端收到每一段時直接從讀取緩衝區寫入 --file-dir 下以編號命名的檔案，
+ * 不在記憶體中累積，也不經過群組的分片；上傳完成後才登錄為某個群組分享的檔案，
+ * 之後該群組的成員才能下載。中斷或被拒絕的上傳刪除未完成的檔案。
+ *
+ * 未指定 --file-dir 時使用暫存目錄，伺服器結束時刪除；指定時檔案保留在該目錄中。
+ */
+final class FileStore {
+    // 檔名的最大長度（超過時截斷）
+    private static final int MAX_NAME = 100;
+
+    /**
+     * 已分享的檔案
+     */
+    static final class SharedFile {
+        final int id;
+        final String name;
+        final long size;
+        final Path path;
+        // 分享到的群組（只有該群組的成員可以下載）
+        final String group;
+
+        SharedFile(int id, String name, long size, Path path, String group) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.path = path;
+            this.group = group;
+        }
+    }
+
+    /**
+     * 進行中的上傳（只由讀取該連線的執行緒使用，完成後交給群組的分片登錄）
+     */
+    final class Upload {
+        final int id;
+        final String name;
+        final long size;
+        private final Path path;
+        private final FileChannel channel;
+        private long received = 0;
+
+        private Upload(int id, String name, long size) throws IOException {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.path = dir.resolve(Integer.toString(id));
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            if (temporary) {
+                path.toFile().deleteOnExit();
+            }
+        }
+
+        /**
+         * 寫入下一段內容（直接從讀取緩衝區寫入檔案，會移動 data 的位置）
+         *
+         * @throws IOException 寫入失敗，或內容超過宣告的大小
+         */
+        void write(ByteBuffer data) throws IOException {
+            if (received + data.remaining() > size) {
+                throw new IOException("More data than announced");
+            }
+            while (data.hasRemaining()) {
+                received += channel.write(data);
+            }
+        }
+
+        /**
+         * @return 是否已收到宣告的全部內容
+         */
+        boolean complete() {
+            return received == size;
+        }
+
+        /**
+         * 收完內容：關閉檔案（在讀取端呼叫，之後再以 publish 登錄）
+         */
+        void finish() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * 登錄為指定群組分享的檔案
+         *
+         * @param group 上傳完成時上傳者所在的群組
+         * @return 已分享的檔案
+         */
+        SharedFile publish(String group) {
+            SharedFile file = new SharedFile(id, name, size, path, group);
+            files.put(id, file);
+            return file;
+        }
+
+        /**
+         * 放棄上傳：關閉並刪除未完成的檔案（可重複呼叫）
+         */
+        void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+                // 刪除失敗時留在目錄中，不影響其他上傳
+            }
+        }
+    }
+
+    private final Path dir;
+    private final boolean temporary;
+    private final long maxFileSize;
+    // 叢集模式下附在編號後的節點編號（例如 "7@2"），單機模式為空字串
+    private final String nodeSuffix;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Map<Integer, SharedFile> files = new ConcurrentHashMap<>();
+
+    /**
+     * 建構子
+     *
+     * @param dir         存放檔案的目錄（null 表示使用暫存目錄）
+     * @param maxFileSize 單一檔案的大小上限（bytes）
+     * @param nodeId      叢集模式下的節點編號（0 表示單機模式）
+     * @throws UncheckedIOException 無法建立目錄時拋出
+     */
+    FileStore(String dir, long maxFileSize, int nodeId) {
+        try {
+            this.temporary = dir == null;
+            this.dir = temporary ? Files.createTempDirectory("chat-files") : Files.createDirectories(Paths.get(dir));
+            if (temporary) {
+                this.dir.toFile().deleteOnExit();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.maxFileSize = maxFileSize;
+        this.nodeSuffix = nodeId > 0 ? "@" + nodeId : "";
+    }
+
+    /**
+     * 開始一個上傳
+     *
+     * @param name 客戶端送來的檔名（只保留最後一段，移除控制字元）
+     * @param size 宣告的大小
+     * @return 進行中的上傳
+     * @throws IllegalArgumentException 大小不合法或超過上限時拋出（訊息可直接回覆給客戶端）
+     * @throws IOException              無法建立檔案時拋出
+     */
+    Upload begin(String name, long size) throws IOException {
+        if (size < 0 || size > maxFileSize) {
+            throw new IllegalArgumentException("File too large, the limit is " + maxFileSize + " bytes.");
+        }
+        return new Upload(nextId.incrementAndGet(), sanitize(name), size);
+    }
+
+    /**
+     * 依使用者輸入的編號（例如 "7" 或叢集模式下的 "7@2"）查詢已分享的檔案
+     *
+     * @return 檔案；不存在或不在本節點時回傳 null
+     */
+    SharedFile get(String id) {
+        String local = id.trim();
+        if (!nodeSuffix.isEmpty() && local.endsWith(nodeSuffix)) {
+            local = local.substring(0, local.length() - nodeSuffix.length());
+        }
+        try {
+            return files.get(Integer.parseInt(local));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return 使用者下載時輸入的編號（叢集模式下附上節點編號）
+     */
+    String displayId(int id) {
+        return id + nodeSuffix;
+    }
+
+    private static String sanitize(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1)
+                .replaceAll("[\\p{Cntrl}]", "").trim();
+        if (base.isEmpty() || base.equals(".") || base.equals("..")) {
+            base = "file";
+        }
+        return base.length() > MAX_NAME ? base.substring(0, MAX_NAME) : base;
+    }
+}
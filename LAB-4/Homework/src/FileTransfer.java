@@ -0,0 +1,136 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * 以分段的 OP_FILE_DATA 訊框送出一個檔案（伺服器送出下載與客戶端送出上傳共用）
+ *
+ * 每段先寫出訊框標頭，內容再以 FileChannel.transferTo 從檔案直接送到 Socket
+ * （作業系統支援時為 sendfile，檔案內容不經過 Java heap，也不佔用輸出佇列）。
+ * 呼叫端在段與段之間可以先送出其他訊框，大型檔案因此不會讓聊天訊息排在整個檔案之後；
+ * 一段寫到一半時則必須先寫完（訊框不可交錯）。
+ *
+ * 下載的開頭訊框（OP_FILE）與第一段一起寫出，同一個連線上的多個下載依序進行、不會交錯。
+ *
+ * 只由一條執行緒（寫出執行緒或事件迴圈）使用；檔案在送出第一段時才開啟，排隊中的傳輸不佔用檔案描述符。
+ */
+final class FileTransfer implements Closeable {
+    // 每段的最大內容長度
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final int transferId;
+    private final long size;
+    // 第一段之前要寫出的已編碼訊框（送出後為 null）
+    private ByteBuffer start;
+    private FileChannel file;
+    // 下一個要送出的位置與目前這一段的結束位置
+    private long position = 0;
+    private long chunkEnd = 0;
+    // 目前這一段尚未寫出的訊框標頭（第一段之前另含開頭訊框）
+    private final ByteBuffer header;
+
+    /**
+     * 建構子
+     *
+     * @param path       要送出的檔案
+     * @param transferId 訊框的 groupId 欄位（下載時為傳輸編號，上傳時為 0）
+     * @param size       要送出的長度（檔案開始傳送後仍在增長時只送出這個長度）
+     * @param start      第一段之前要寫出的已編碼訊框（null 表示沒有）
+     */
+    FileTransfer(Path path, int transferId, long size, ByteBuffer start) {
+        this.path = path;
+        this.transferId = transferId;
+        this.size = size;
+        this.start = start;
+        int startSize = start != null ? start.remaining() : 0;
+        this.header = ByteBuffer.allocate(startSize + Protocol.MAX_HEADER).limit(0);
+    }
+
+    /**
+     * 寫出目前這一段（上一段已寫完時開始下一段）
+     * 非阻塞的通道寫不下時提早返回，之後再呼叫一次繼續；阻塞的通道則寫完整段才返回
+     *
+     * @param target 目標通道（Socket）
+     * @return 本次寫出的位元組數（含標頭）
+     * @throws IOException 寫入失敗，或檔案比開始傳送時宣告的大小還短
+     */
+    long writeChunk(WritableByteChannel target) throws IOException {
+        if (!inChunk()) {
+            if (done()) {
+                return 0;
+            }
+            if (file == null) {
+                file = FileChannel.open(path, StandardOpenOption.READ);
+                if (file.size() < size) {
+                    throw new IOException("File truncated: " + path);
+                }
+            }
+            int len = (int) Math.min(CHUNK_SIZE, size - position);
+            header.clear();
+            if (start != null) {
+                header.put(start);
+                start = null;
+            }
+            if (len > 0) {
+                byte[] h = header.array();
+                int pos = header.position();
+                h[pos] = (byte) Protocol.OP_FILE_DATA;
+                pos = Protocol.putVarint(h, pos + 1, transferId);
+                pos = Protocol.putVarint(h, pos, position);
+                pos = Protocol.putVarint(h, pos, len);
+                header.position(pos);
+            }
+            header.flip();
+            chunkEnd = position + len;
+        }
+        long written = 0;
+        while (header.hasRemaining()) {
+            int n = target.write(header);
+            if (n == 0) {
+                return written;
+            }
+            written += n;
+        }
+        while (position < chunkEnd) {
+            long n = file.transferTo(position, chunkEnd - position, target);
+            if (n == 0) {
+                return written;
+            }
+            position += n;
+            written += n;
+        }
+        return written;
+    }
+
+    /**
+     * @return 是否有一段寫到一半（寫完之前不能送出其他訊框）
+     */
+    boolean inChunk() {
+        return header.hasRemaining() || position < chunkEnd;
+    }
+
+    /**
+     * @return 是否已送完整個檔案
+     */
+    boolean done() {
+        return position == size && start == null && !header.hasRemaining();
+    }
+
+    /**
+     * 關閉檔案（可重複呼叫；傳輸中斷或完成時由使用的執行緒呼叫）
+     */
+    @Override
+    public void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // 關閉失敗時不需額外處理
+            }
+        }
+    }
+}
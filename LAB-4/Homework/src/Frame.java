@@ -0,0 +1,494 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+/**
+ * 已編碼的不可變訊框
+ *
+ * 訊框由 opcode、群組編號、序號與內容（modified UTF-8）組成，
+ * 送出時依連線採用的協定編碼（見 Protocol）：
+ *   舊協定：2 bytes 長度 + 內容（與 DataOutputStream.writeUTF 相同）
+ *   二進位協定：opcode + varint 群組編號 + varint 序號 + varint 長度 + 內容
+ * 兩種編碼（以及協商了壓縮的連線所用的壓縮編碼）都在第一次需要時才建立並快取，
+ * 廣播時同一個 Frame 交給所有接收者，不論接收者數量多少，每種編碼最多只建立一次：
+ * Socket 模式直接寫出同一個 byte 陣列，NIO 模式則各自取得一個唯讀的 ByteBuffer 視圖，
+ * 都不會再複製內容。
+ * 訊框內容也可以直接是記憶體映射檔案的一段（例如持久化的歷史記錄）：這類訊框只編碼標頭，
+ * 送出時標頭與指向映射內容的唯讀視圖一起寫出（NIO 模式為 gathering write），內容不複製到 heap 也不快取；
+ * 執行緒模式經過輸出流的緩衝區，只在寫入時逐段複製。
+ */
+final class Frame {
+    // 單一 writeUTF 訊框的最大長度（2 bytes 長度欄位 + 65535 bytes 內容）
+    static final int MAX_SIZE = 2 + 65535;
+    // 舊協定可承載的最大內容長度
+    static final int MAX_LEGACY_PAYLOAD = 65535;
+    // 訊框內容的絕對上限（伺服器實際接受的上限由 --max-frame-size 決定）
+    static final int MAX_PAYLOAD = 64 * 1024 * 1024;
+    // 壓縮後沒有變小的標記（快取在 deflated，之後直接送出未壓縮的編碼）
+    private static final ByteBuffer UNCOMPRESSED = ByteBuffer.allocate(0);
+    // 寫入輸出流時逐段複製映射內容的最大長度
+    private static final int COPY_CHUNK = 8192;
+
+    private final int opcode;
+    private final int groupId;
+    // 序號（群組訊息在寫入歷史記錄時以 stamp() 標上，之後不再修改）
+    private long seq;
+    // 訊框內容（不含任何標頭；建立後不再修改，也不移動其讀取位置）
+    private final ByteBuffer payload;
+    // 兩種協定的完整編碼（第一次送出時建立；多個執行緒同時建立時內容相同，任一份皆可）
+    private volatile ByteBuffer legacy;
+    private volatile ByteBuffer binary;
+    // 壓縮後的二進位編碼（壓縮沒有變小時與 binary 相同）
+    private volatile ByteBuffer deflated;
+
+    private Frame(int opcode, int groupId, long seq, ByteBuffer payload, ByteBuffer legacy) {
+        this.opcode = opcode;
+        this.groupId = groupId;
+        this.seq = seq;
+        this.payload = payload;
+        this.legacy = legacy;
+    }
+
+    /**
+     * 以既有的緩衝區內容作為訊框內容（共用內容，不複製）
+     *
+     * @param opcode  訊框種類
+     * @param groupId 群組編號
+     * @param seq     序號
+     * @param payload 從 position 到 limit 為訊框內容
+     * @return 訊框
+     */
+    static Frame wrap(int opcode, int groupId, long seq, ByteBuffer payload) {
+        return new Frame(opcode, groupId, seq, payload.slice(), null);
+    }
+
+    /**
+     * 將一般文字訊息編碼為訊框
+     *
+     * @param message 要編碼的訊息
+     * @return 編碼後的訊框
+     * @throws UTFDataFormatException 編碼後超過 MAX_PAYLOAD 時拋出
+     */
+    static Frame of(String message) throws UTFDataFormatException {
+        return of(Protocol.OP_TEXT, 0, message);
+    }
+
+    /**
+     * 將群組訊息編碼為訊框（序號在寫入歷史記錄時才決定）
+     *
+     * @param groupId 群組編號
+     * @param message 要編碼的訊息
+     * @return 編碼後的訊框
+     */
+    static Frame chat(int groupId, String message) throws UTFDataFormatException {
+        return of(Protocol.OP_CHAT, groupId, message);
+    }
+
+    /**
+     * 以前綴加上客戶端送來的內容組成群組訊息，不經過 String
+     *
+     * @param groupId 群組編號
+     * @param prefix  前綴（例如 "[User_1]: "）
+     * @param content 客戶端送來的內容（從 position 到 limit，不移動其位置）
+     * @return 編碼後的訊框
+     */
+    static Frame chat(int groupId, Frame prefix, ByteBuffer content) {
+        int len = prefix.size() + content.remaining();
+        byte[] bytes = new byte[2 + len];
+        prefix.payload.duplicate().get(bytes, 2, prefix.size());
+        content.duplicate().get(bytes, 2 + prefix.size(), content.remaining());
+        return fromArray(Protocol.OP_CHAT, groupId, bytes, len);
+    }
+
+    /**
+     * 握手回覆：以舊協定送出，連線寫出此訊框後改用 seq 欄位所記錄的版本，
+     * 並啟用 groupId 欄位所記錄的功能
+     *
+     * @param version  採用的協定版本
+     * @param features 雙方都支援的功能旗標
+     */
+    static Frame hello(int version, int features) throws UTFDataFormatException {
+        Frame text = of(Protocol.hello(version, features));
+        return new Frame(Protocol.OP_HELLO, features, version, text.payload, text.legacy);
+    }
+
+    /**
+     * 將訊息編碼為訊框
+     * 直接以 modified UTF-8 寫入大小剛好的陣列（前面保留 2 bytes 作為舊協定的長度欄位），
+     * 不經過中間緩衝區
+     *
+     * @param opcode  訊框種類
+     * @param groupId 群組編號
+     * @param message 要編碼的訊息
+     * @return 編碼後的訊框
+     */
+    static Frame of(int opcode, int groupId, String message) throws UTFDataFormatException {
+        int strlen = message.length();
+        long utflen = strlen;
+        for (int i = 0; i < strlen; i++) {
+            char c = message.charAt(i);
+            if (c >= 0x80 || c == 0) {
+                utflen += (c >= 0x800) ? 2 : 1;
+            }
+        }
+        if (utflen > MAX_PAYLOAD) {
+            throw new UTFDataFormatException("encoded string too long: " + utflen + " bytes");
+        }
+        byte[] bytes = new byte[(int) utflen + 2];
+        int pos = 2;
+        for (int i = 0; i < strlen; i++) {
+            char c = message.charAt(i);
+            if (c < 0x80 && c != 0) {
+                bytes[pos++] = (byte) c;
+            } else if (c >= 0x800) {
+                bytes[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return fromArray(opcode, groupId, bytes, (int) utflen);
+    }
+
+    /**
+     * 以「2 bytes 保留 + 內容」的陣列建立訊框；內容不超過 65535 bytes 時，
+     * 整個陣列直接就是舊協定的編碼
+     */
+    private static Frame fromArray(int opcode, int groupId, byte[] bytes, int len) {
+        ByteBuffer legacy = null;
+        if (len <= MAX_LEGACY_PAYLOAD) {
+            bytes[0] = (byte) (len >>> 8);
+            bytes[1] = (byte) len;
+            legacy = ByteBuffer.wrap(bytes);
+        }
+        return new Frame(opcode, groupId, 0, ByteBuffer.wrap(bytes, 2, len).slice(), legacy);
+    }
+
+    /**
+     * 取得帶有序號的同一則訊框（共用內容與舊協定編碼）
+     *
+     * @param seq 序號
+     */
+    Frame withSeq(long seq) {
+        return new Frame(opcode, groupId, seq, payload, legacy);
+    }
+
+    /**
+     * 為群組訊息標上序號（直接修改，不複製；寫入歷史記錄時使用，附加不需要配置物件）
+     * 只能在訊框交給其他執行緒或送出（建立編碼）之前呼叫，之後由佇列的鎖保證其他執行緒看得到序號
+     *
+     * @param seq 序號
+     */
+    void stamp(long seq) {
+        this.seq = seq;
+    }
+
+    /**
+     * 取得標上群組編號的同一則訊框（共用內容與舊協定編碼）
+     * 聊天訊息在讀取時就組成訊框，到了群組所屬的分片上才知道要標上哪個群組
+     *
+     * @param groupId 群組編號
+     */
+    Frame withGroup(int groupId) {
+        return new Frame(opcode, groupId, seq, payload, legacy);
+    }
+
+    /**
+     * 從緩衝區目前位置解出一個 writeUTF 訊框並前移位置
+     *
+     * @param buf 以陣列為底層的緩衝區，目前位置為訊框開頭
+     * @param len 訊框內容長度（不含 2 bytes 長度欄位）
+     * @return 解出的訊息
+     */
+    static String decode(ByteBuffer buf, int len) throws IOException {
+        int start = buf.arrayOffset() + buf.position();
+        buf.position(buf.position() + 2 + len);
+        return DataInputStream.readUTF(new DataInputStream(
+                new ByteArrayInputStream(buf.array(), start, 2 + len)));
+    }
+
+    /**
+     * 將 modified UTF-8 內容解碼為字串（不受 65535 bytes 限制，不移動緩衝區位置）
+     *
+     * @param buf 從 position 到 limit 為內容
+     * @return 解出的字串
+     * @throws UTFDataFormatException 內容格式錯誤時拋出
+     */
+    static String text(ByteBuffer buf) throws UTFDataFormatException {
+        int pos = buf.position();
+        int limit = buf.limit();
+        char[] chars = new char[limit - pos];
+        int n = 0;
+        while (pos < limit) {
+            int c = buf.get(pos) & 0xFF;
+            int len = sequenceLength(buf, pos, limit);
+            if (len == 1) {
+                chars[n++] = (char) c;
+            } else if (len == 2) {
+                chars[n++] = (char) (((c & 0x1F) << 6) | (buf.get(pos + 1) & 0x3F));
+            } else if (len == 3) {
+                chars[n++] = (char) (((c & 0x0F) << 12) | ((buf.get(pos + 1) & 0x3F) << 6)
+                        | (buf.get(pos + 2) & 0x3F));
+            } else {
+                throw new UTFDataFormatException("malformed input around byte " + pos);
+            }
+            pos += len;
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * 檢查內容是否為合法的 modified UTF-8（不配置物件、不移動緩衝區位置）
+     * 轉送客戶端送來的原始內容前必須先檢查，避免舊協定的接收者在 readUTF 時失敗
+     */
+    static boolean isValid(ByteBuffer buf) {
+        int limit = buf.limit();
+        for (int pos = buf.position(); pos < limit; ) {
+            int len = sequenceLength(buf, pos, limit);
+            if (len == 0) {
+                return false;
+            }
+            pos += len;
+        }
+        return true;
+    }
+
+    /**
+     * @return 從 pos 開始的字元編碼長度（1 至 3）；格式錯誤時回傳 0
+     */
+    private static int sequenceLength(ByteBuffer buf, int pos, int limit) {
+        int c = buf.get(pos) & 0xFF;
+        if (c < 0x80) {
+            return 1;
+        }
+        int len = (c >> 5) == 0x6 ? 2 : (c >> 4) == 0xE ? 3 : 0;
+        if (len == 0 || pos + len > limit) {
+            return 0;
+        }
+        for (int i = 1; i < len; i++) {
+            if ((buf.get(pos + i) & 0xC0) != 0x80) {
+                return 0;
+            }
+        }
+        return len;
+    }
+
+    int opcode() {
+        return opcode;
+    }
+
+    int groupId() {
+        return groupId;
+    }
+
+    long seq() {
+        return seq;
+    }
+
+    /**
+     * @return 訊框內容長度（不含標頭，供輸出佇列計算容量）
+     */
+    int size() {
+        return payload.remaining();
+    }
+
+    /**
+     * @return 內容是否以 prefix 的內容開頭（續接時用來略過客戶端自己發送的聊天訊息）
+     */
+    boolean startsWith(Frame prefix) {
+        int n = prefix.payload.remaining();
+        return payload.remaining() >= n && payload.duplicate().limit(payload.position() + n).equals(prefix.payload);
+    }
+
+    /**
+     * 取得內容的唯讀視圖（供寫入持久化日誌）
+     */
+    ByteBuffer payload() {
+        return payload.asReadOnlyBuffer();
+    }
+
+    /**
+     * 將內容複製到目標緩衝區的目前位置並前移其位置（內容以陣列為底層時不配置任何物件）
+     *
+     * @param dst 目標緩衝區
+     */
+    void copyTo(ByteBuffer dst) {
+        if (payload.hasArray()) {
+            dst.put(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        } else {
+            dst.put(payload.duplicate());
+        }
+    }
+
+    /**
+     * 取得指定協定的完整編碼（唯讀視圖，共用內容、各自獨立的讀取位置），供客戶端與壓縮使用
+     * 內容為記憶體映射的訊框會複製成一份暫時的編碼（不快取）；伺服器送出訊框時應改用 buffers()
+     *
+     * @param version 連線採用的協定版本
+     */
+    ByteBuffer buffer(int version) {
+        return encoded(version).asReadOnlyBuffer();
+    }
+
+    /**
+     * 取得送給指定連線的編碼（唯讀視圖），供 NIO 以 gathering write 寫出
+     * 一般訊框為一個緩衝區（快取的完整編碼）；內容為記憶體映射的訊框為標頭與內容兩個緩衝區，
+     * 內容直接指向映射的檔案。連線協商了壓縮且內容不小於門檻時使用壓縮編碼
+     *
+     * @param version           連線採用的協定版本
+     * @param compressThreshold 連線的壓縮門檻（bytes，0 表示不壓縮）
+     */
+    ByteBuffer[] buffers(int version, int compressThreshold) {
+        ByteBuffer[] parts = parts(version, compressThreshold);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = parts[i].asReadOnlyBuffer();
+        }
+        return parts;
+    }
+
+    /**
+     * 以指定協定將整個訊框寫入輸出流
+     *
+     * @param out     目標輸出流
+     * @param version 連線採用的協定版本
+     */
+    void writeTo(OutputStream out, int version) throws IOException {
+        writeTo(out, version, 0);
+    }
+
+    /**
+     * 以指定協定將整個訊框寫入輸出流，必要時使用壓縮編碼
+     *
+     * @param out               目標輸出流
+     * @param version           連線採用的協定版本
+     * @param compressThreshold 連線的壓縮門檻（bytes，0 表示不壓縮）
+     */
+    void writeTo(OutputStream out, int version, int compressThreshold) throws IOException {
+        for (ByteBuffer data : parts(version, compressThreshold)) {
+            if (data.hasArray()) {
+                out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                continue;
+            }
+            // 映射的內容沒有底層陣列：逐段複製到輸出流的緩衝區
+            byte[] chunk = new byte[Math.min(COPY_CHUNK, data.remaining())];
+            while (data.hasRemaining()) {
+                int n = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+    }
+
+    /**
+     * 取得送給指定連線的編碼（可寫出的獨立視圖，不是唯讀視圖，以便輸出流直接寫出底層陣列）
+     */
+    private ByteBuffer[] parts(int version, int compressThreshold) {
+        ByteBuffer data = compressed(version, compressThreshold);
+        if (data == null && (payload.hasArray() || legacyTooLarge(version))) {
+            data = encoded(version);
+        }
+        if (data != null) {
+            return new ByteBuffer[] {data.duplicate()};
+        }
+        return new ByteBuffer[] {header(version), payload.duplicate()};
+    }
+
+    /**
+     * @return 壓縮編碼；不需壓縮或壓縮後沒有變小時回傳 null
+     */
+    private ByteBuffer compressed(int version, int compressThreshold) {
+        if (version == Protocol.LEGACY || compressThreshold <= 0 || opcode == Protocol.OP_DEFLATE
+                || payload.remaining() < compressThreshold) {
+            return null;
+        }
+        ByteBuffer data = deflated;
+        if (data == null) {
+            Frame compressed = Compression.compress(Collections.singletonList(this));
+            deflated = data = compressed != null ? compressed.encoded(version) : UNCOMPRESSED;
+        }
+        return data == UNCOMPRESSED ? null : data;
+    }
+
+    private boolean legacyTooLarge(int version) {
+        return version == Protocol.LEGACY && payload.remaining() > MAX_LEGACY_PAYLOAD;
+    }
+
+    /**
+     * 取得（必要時建立）指定協定的完整編碼
+     * 記憶體映射的內容沒有底層陣列，只建立一份暫時的編碼，不快取（避免映射的內容常駐 heap）
+     */
+    private ByteBuffer encoded(int version) {
+        if (!payload.hasArray() && !legacyTooLarge(version)) {
+            ByteBuffer header = header(version);
+            ByteBuffer data = ByteBuffer.allocate(header.remaining() + payload.remaining());
+            data.put(header).put(payload.duplicate()).flip();
+            return data;
+        }
+        if (version == Protocol.LEGACY) {
+            ByteBuffer data = legacy;
+            if (data == null) {
+                legacy = data = encodeLegacy();
+            }
+            return data;
+        }
+        ByteBuffer data = binary;
+        if (data == null) {
+            binary = data = encodeBinary();
+        }
+        return data;
+    }
+
+    private ByteBuffer encodeLegacy() {
+        int len = payload.remaining();
+        if (len > MAX_LEGACY_PAYLOAD) {
+            // 舊協定無法承載：改送一則說明，避免舊版客戶端讀到無法解析的訊框
+            try {
+                return of("[Server] A message of " + len
+                        + " bytes was skipped because your client does not support large messages.").legacy;
+            } catch (UTFDataFormatException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        byte[] bytes = new byte[2 + len];
+        bytes[0] = (byte) (len >>> 8);
+        bytes[1] = (byte) len;
+        payload.duplicate().get(bytes, 2, len);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private ByteBuffer encodeBinary() {
+        int len = payload.remaining();
+        byte[] bytes = new byte[Protocol.MAX_HEADER + len];
+        int pos = putHeader(bytes);
+        payload.duplicate().get(bytes, pos, len);
+        return ByteBuffer.wrap(bytes, 0, pos + len).slice();
+    }
+
+    /**
+     * 只編碼標頭（內容為記憶體映射的訊框使用，內容另外以視圖寫出）
+     */
+    private ByteBuffer header(int version) {
+        int len = payload.remaining();
+        if (version == Protocol.LEGACY) {
+            return ByteBuffer.wrap(new byte[] {(byte) (len >>> 8), (byte) len});
+        }
+        byte[] bytes = new byte[Protocol.MAX_HEADER];
+        return ByteBuffer.wrap(bytes, 0, putHeader(bytes));
+    }
+
+    /**
+     * 在陣列開頭寫入二進位協定的標頭
+     *
+     * @return 標頭長度
+     */
+    private int putHeader(byte[] bytes) {
+        bytes[0] = (byte) opcode;
+        int pos = Protocol.putVarint(bytes, 1, groupId);
+        pos = Protocol.putVarint(bytes, pos, seq);
+        return Protocol.putVarint(bytes, pos, payload.remaining());
+    }
+}
@@ -0,0 +1,288 @@
+package src;
+
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.regex.Pattern;
+
+/**
+ * 群組登錄表（分片、單一寫入者、隨需建立、閒置回收）
+ *
+ * 群組依名稱的雜湊值分散到固定數量的分片中，每個分片有自己的 HashMap 與一條專屬執行緒。
+ * 一個群組的所有狀態（成員、等待佇列、歷史記錄、登錄表中的項目）只由所屬分片的執行緒讀寫，
+ * 因此 ChatGroup 與 HistoryRing 都不需要任何鎖；其他執行緒以 execute() 把工作交給分片，
+ * 同一個分片上的工作依提交順序執行。
+ *
+ * 第一次 JOIN_ / CHANGE_ 到某個名稱時才建立群組；非常駐群組在沒有成員與等待者
+ * 超過閒置時間後回收（只檢查剛變成閒置的群組，不定期掃描全部群組）。
+ */
+final class GroupRegistry {
+    // 群組名稱（去掉 Group_ 前綴後）允許的字元與長度，同時可安全作為歷史記錄目錄名稱
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Z0-9_-]{1,32}");
+
+    private final Shard[] shards;
+    private final Function<String, ChatGroup> factory;
+    private final Consumer<ChatGroup> retired;
+    private final int maxGroups;
+    private final long idleTimeoutNanos;
+    // 所有分片的群組總數（唯一跨分片共用的狀態）
+    private final AtomicInteger count = new AtomicInteger();
+    // 閒置回收、排隊位置批次通知與工作階段保留期限的計時執行緒（時間到了只把工作交回對應的分片）
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "group-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * 分片：群組表與唯一可以存取這些群組的執行緒
+     */
+    private static final class Shard {
+        final Map<String, ChatGroup> groups = new HashMap<>();
+        final ExecutorService executor;
+
+        Shard(int index) {
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "group-shard-" + index);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * 建構子
+     *
+     * @param shardCount         分片（執行緒）數量
+     * @param maxGroups          同時存在的群組數量上限
+     * @param idleTimeoutSeconds 非常駐群組閒置多久後回收（秒）
+     * @param factory            依名稱建立新群組（開啟歷史記錄失敗時可拋出 UncheckedIOException）
+     * @param retired            群組被回收並移出登錄表後呼叫（在群組所屬的分片上）
+     */
+    GroupRegistry(int shardCount, int maxGroups, int idleTimeoutSeconds, Function<String, ChatGroup> factory,
+            Consumer<ChatGroup> retired) {
+        this.maxGroups = maxGroups;
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        this.factory = factory;
+        this.retired = retired;
+        this.shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    /**
+     * 正規化群組名稱：移除可能的重複前綴，轉換為大寫，加上 Group_ 前綴
+     *
+     * @param name 使用者輸入的名稱（例如："Group_A" 或 "a"）
+     * @return 正規化後的名稱；名稱不合法時回傳 null
+     */
+    static String normalize(String name) {
+        String suffix = name.replace("Group_", "").toUpperCase();
+        return VALID_NAME.matcher(suffix).matches() ? "Group_" + suffix : null;
+    }
+
+    /**
+     * @return 目前存在的群組數量
+     */
+    int size() {
+        return count.get();
+    }
+
+    /**
+     * @return 分片數量
+     */
+    int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * 在群組所屬的分片上執行工作（可由任意執行緒呼叫，不等待完成）
+     *
+     * @param name 正規化後的群組名稱
+     * @param task 要執行的工作
+     */
+    void execute(String name, Runnable task) {
+        execute(shard(name), task);
+    }
+
+    /**
+     * 在指定分片上執行工作（用於不屬於任何群組、但需要與同一個客戶端的其他指令依序執行的工作）
+     *
+     * @param index 分片編號（取 shardCount() 的餘數）
+     * @param task  要執行的工作
+     */
+    void execute(int index, Runnable task) {
+        execute(shards[Math.floorMod(index, shards.length)], task);
+    }
+
+    private static void execute(Shard shard, Runnable task) {
+        shard.executor.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // 不讓單一工作的錯誤結束分片執行緒
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * 查詢群組（不建立；只能在群組所屬的分片上呼叫）
+     *
+     * @param name 正規化後的群組名稱
+     * @return 群組；不存在時回傳 null
+     */
+    ChatGroup get(String name) {
+        return shard(name).groups.get(name);
+    }
+
+    /**
+     * 查詢群組，不存在時建立（只能在群組所屬的分片上呼叫）
+     *
+     * @param name 正規化後的群組名稱
+     * @return 群組；已達群組數量上限時回傳 null
+     * @throws UncheckedIOException 開啟群組的持久化歷史記錄失敗時拋出
+     */
+    ChatGroup getOrCreate(String name) {
+        Map<String, ChatGroup> groups = shard(name).groups;
+        ChatGroup group = groups.get(name);
+        if (group != null) {
+            return group;
+        }
+        if (count.incrementAndGet() > maxGroups) {
+            count.decrementAndGet();
+            return null;
+        }
+        try {
+            group = factory.apply(name);
+        } catch (RuntimeException e) {
+            count.decrementAndGet();
+            throw e;
+        }
+        groups.put(name, group);
+        return group;
+    }
+
+    /**
+     * 從其他執行緒建立群組並等待完成（啟動時建立常駐群組使用）
+     *
+     * @param name 正規化後的群組名稱
+     * @return 群組；已達群組數量上限時回傳 null
+     * @throws UncheckedIOException 開啟群組的持久化歷史記錄失敗時拋出
+     */
+    ChatGroup create(String name) {
+        try {
+            return CompletableFuture.supplyAsync(() -> getOrCreate(name), shard(name).executor).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 在每個分片上對該分片的所有群組執行指定動作（僅用於節點重設、關閉伺服器等少見的情況）
+     *
+     * @return 所有分片都執行完畢時完成
+     */
+    CompletableFuture<Void> forEach(Consumer<ChatGroup> action) {
+        CompletableFuture<?>[] done = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[i];
+            done[i] = CompletableFuture.runAsync(() -> {
+                // 動作可能回收群組，先複製一份
+                for (ChatGroup g : new ArrayList<>(shard.groups.values())) {
+                    action.accept(g);
+                }
+            }, shard.executor);
+        }
+        return CompletableFuture.allOf(done);
+    }
+
+    /**
+     * 在每個分片上彙整該分片的所有群組，等待所有分片完成後回傳各分片的結果（用於統計資料）
+     *
+     * @param summary 在分片上執行的彙整函式
+     * @return 每個分片一筆結果
+     */
+    <T> List<T> collect(Function<Collection<ChatGroup>, T> summary) {
+        List<CompletableFuture<T>> parts = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            parts.add(CompletableFuture.supplyAsync(() -> summary.apply(shard.groups.values()), shard.executor));
+        }
+        List<T> result = new ArrayList<>(parts.size());
+        for (CompletableFuture<T> part : parts) {
+            result.add(part.join());
+        }
+        return result;
+    }
+
+    /**
+     * 延後一段時間後在群組所屬的分片上執行工作
+     *
+     * @param group       工作相關的群組
+     * @param task        要執行的工作
+     * @param delayMillis 延遲時間（毫秒）
+     */
+    void schedule(ChatGroup group, Runnable task, long delayMillis) {
+        timer.schedule(() -> execute(group.name(), task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 延後一段時間後在指定分片上執行工作（用於不屬於任何群組的計時工作）
+     *
+     * @param index       分片編號（取 shardCount() 的餘數）
+     * @param task        要執行的工作
+     * @param delayMillis 延遲時間（毫秒）
+     */
+    void schedule(int index, Runnable task, long delayMillis) {
+        timer.schedule(() -> execute(index, task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 成員離開群組後呼叫（在群組所屬的分片上）：群組變成閒置時排定回收檢查
+     *
+     * @param group 剛有成員離開的群組
+     */
+    void released(ChatGroup group) {
+        if (group.permanent() || !group.isIdle()) {
+            return;
+        }
+        group.idleSince = System.nanoTime();
+        if (!group.idleCheckScheduled) {
+            group.idleCheckScheduled = true;
+            timer.schedule(() -> execute(group.name(), () -> checkIdle(group)), idleTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 閒置檢查（在群組所屬的分片上）：閒置時間已滿則回收並從登錄表移除，否則延後到期限再檢查
+     */
+    private void checkIdle(ChatGroup group) {
+        group.idleCheckScheduled = false;
+        if (!group.isIdle()) {
+            // 期間又有人加入，等下一次變成閒置時重新排定
+            return;
+        }
+        long remaining = group.idleSince + idleTimeoutNanos - System.nanoTime();
+        if (remaining > 0) {
+            group.idleCheckScheduled = true;
+            timer.schedule(() -> execute(group.name(), () -> checkIdle(group)), remaining, TimeUnit.NANOSECONDS);
+            return;
+        }
+        // 同一個分片上不會同時有人加入，檢查與移除之間不需要任何同步
+        group.history.close();
+        shard(group.name()).groups.remove(group.name(), group);
+        count.decrementAndGet();
+        retired.accept(group);
+    }
+
+    private Shard shard(String name) {
+        int h = name.hashCode();
+        return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
+    }
+}
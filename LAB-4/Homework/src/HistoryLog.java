@@ -0,0 +1,335 @@
+package src;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * 群組歷史記錄的持久化日誌（只附加、分段、記憶體映射）
+ *
+ * 每個群組一個目錄，內含多個固定大小的分段檔：
+ *   00000000000000000001.log  訊息記錄，檔名為該分段第一則訊息的序號
+ *   00000000000000000001.idx  稀疏索引，每寫入約 INDEX_INTERVAL bytes 記一筆（序號, 位置）
+ *
+ * 記錄格式：8 bytes 序號 + 4 bytes 內容長度 + 訊框內容（modified UTF-8，與傳輸協定無關）。
+ * 寫入時先寫內容再寫序號，檔案尾端未使用的部分全為 0，
+ * 因此復原時只要從最後一筆索引往後掃描到序號不連續為止，即可得知寫入位置，
+ * 不需要重播整個日誌。
+ *
+ * 讀出的內容直接指向映射的檔案，不複製到 heap。
+ * 沒有任何記錄的群組不建立目錄也不映射檔案，第一則訊息寫入時才建立第一個分段；
+ * 群組回收時 close() 放下所有映射，由 GC 解除映射（仍在送出的歷史訊框不會指向已解除的記憶體）。
+ * 比分段還大的訊息另外寫入一個只放這一筆記錄、大小剛好容納它的分段，序號因此永遠連續；
+ * 正常設定下不會發生（ServerConfig 要求分段至少放得下 --max-frame-size 的訊息）。
+ * 此類別不是執行緒安全的：只由所屬群組的分片執行緒存取（與 HistoryRing 相同的單一寫入者），不需要鎖。
+ */
+final class HistoryLog implements Closeable {
+    // 每隔多少 bytes 記一筆稀疏索引
+    static final int INDEX_INTERVAL = 4096;
+    // 分段大小下限：至少要放得下一筆舊協定能承載的最大記錄
+    static final int MIN_SEGMENT_SIZE = 128 * 1024;
+    // 單筆記錄的標頭長度（序號 + 內容長度）
+    private static final int HEADER = 12;
+    // 聊天訊息在客戶端內容之外最多多出的長度（記錄標頭加上 "[User_N@M]: " 前綴）
+    static final int RECORD_OVERHEAD = HEADER + 64;
+    // 單筆索引的長度（序號 + 位置）
+    private static final int INDEX_ENTRY = 12;
+
+    /**
+     * 讀取記錄時的回呼
+     */
+    interface Visitor {
+        void accept(long seq, ByteBuffer payload);
+    }
+
+    // 日誌目錄（目錄/群組名稱）
+    private final Path dir;
+    private final int segmentSize;
+    // 所有分段的起始序號（由小到大）
+    private final TreeSet<Long> segmentBases = new TreeSet<>();
+
+    // 目前寫入中的分段
+    private long activeBase;
+    private MappedByteBuffer activeLog;
+    private MappedByteBuffer activeIndex;
+    private int writePos;
+    private int indexCount;
+    private int lastIndexedPos;
+    private long lastSeq;
+
+    private HistoryLog(Path dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * 開啟一個群組的日誌，並從最後一個分段的尾端復原寫入位置
+     * 目錄中還沒有分段時不建立任何檔案，留到第一次附加時才建立
+     *
+     * @param dir         此群組的日誌目錄
+     * @param segmentSize 每個分段檔的大小（bytes）
+     * @return 已可附加的日誌
+     */
+    static HistoryLog open(Path dir, int segmentSize) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be at least " + MIN_SEGMENT_SIZE);
+        }
+        HistoryLog log = new HistoryLog(dir, segmentSize);
+        if (!Files.isDirectory(dir)) {
+            return log;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                log.segmentBases.add(Long.parseLong(name.substring(0, name.length() - 4)));
+            }
+        }
+        if (!log.segmentBases.isEmpty()) {
+            log.recover(log.segmentBases.last());
+        }
+        return log;
+    }
+
+    /**
+     * @param maxFrameSize 客戶端單一訊息的長度上限（--max-frame-size）
+     * @return 放得下最大聊天訊息的分段大小下限
+     */
+    static int minSegmentSize(int maxFrameSize) {
+        return Math.max(MIN_SEGMENT_SIZE, maxFrameSize + RECORD_OVERHEAD);
+    }
+
+    /**
+     * @return 最後一則訊息的序號（0 表示尚無訊息）
+     */
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * @return 日誌目錄（通知訊息中用來指出是哪個群組的日誌）
+     */
+    Path dir() {
+        return dir;
+    }
+
+    /**
+     * 附加一則訊息
+     *
+     * @param seq   訊息序號（必須是 lastSeq() + 1）
+     * @param frame 已編碼的訊框
+     * @throws IOException 寫入失敗時拋出
+     */
+    void append(long seq, Frame frame) throws IOException {
+        int recordSize = HEADER + frame.size();
+        if (activeLog == null) {
+            // 第一則訊息：建立目錄與第一個分段
+            Files.createDirectories(dir);
+            openSegment(seq, Math.max(segmentSize, recordSize));
+        } else if (writePos + recordSize > activeLog.limit()) {
+            // 比分段還大的記錄獨佔一個剛好容納它的分段
+            openSegment(seq, Math.max(segmentSize, recordSize));
+        }
+        int start = writePos;
+        // 先寫內容再寫序號：序號出現時，記錄一定已經完整
+        activeLog.position(start + HEADER);
+        frame.copyTo(activeLog);
+        activeLog.putInt(start + 8, frame.size());
+        activeLog.putLong(start, seq);
+        writePos = start + recordSize;
+        // 記錄寫完後才寫索引，索引指向的位置一定有完整的記錄
+        if (indexCount == 0 || start - lastIndexedPos >= INDEX_INTERVAL) {
+            activeIndex.putInt(indexCount * INDEX_ENTRY + 8, start);
+            activeIndex.putLong(indexCount * INDEX_ENTRY, seq);
+            indexCount++;
+            lastIndexedPos = start;
+        }
+        lastSeq = seq;
+    }
+
+    /**
+     * @return 日誌中最舊一則訊息的序號（第一個分段的起始序號，尚無分段時為下一則訊息的序號）
+     */
+    long firstSeq() {
+        return segmentBases.isEmpty() ? lastSeq + 1 : segmentBases.first();
+    }
+
+    /**
+     * 依序讀取序號不小於 fromSeq 的所有記錄
+     *
+     * @param fromSeq 起始序號（比最舊的記錄還舊時，從最舊的記錄開始）
+     * @param visitor 每筆記錄的回呼
+     */
+    void read(long fromSeq, Visitor visitor) throws IOException {
+        read(fromSeq, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * 依序讀取序號介於 fromSeq 與 toSeq（含）之間的記錄
+     * 先以分段檔名與稀疏索引找到最接近的位置，只掃描其後的內容，超過 toSeq 即停止
+     *
+     * @param fromSeq 起始序號（比最舊的記錄還舊時，從最舊的記錄開始）
+     * @param toSeq   結束序號（含）
+     * @param visitor 每筆記錄的回呼
+     */
+    void read(long fromSeq, long toSeq, Visitor visitor) throws IOException {
+        if (fromSeq > toSeq || segmentBases.isEmpty() || segmentBases.first() > toSeq) {
+            return;
+        }
+        Long base = segmentBases.floor(fromSeq);
+        if (base == null) {
+            base = segmentBases.first();
+        }
+        for (long b : segmentBases.subSet(base, true, toSeq, true)) {
+            ByteBuffer log = b == activeBase ? activeLog.duplicate() : map(b, ".log");
+            int pos = 0;
+            if (fromSeq > b) {
+                ByteBuffer index = b == activeBase ? activeIndex.duplicate() : map(b, ".idx");
+                pos = floorIndex(index, fromSeq);
+            }
+            long expected = -1;
+            while (pos + HEADER <= log.limit()) {
+                long seq = log.getLong(pos);
+                if (seq <= 0 || (expected > 0 && seq != expected)) {
+                    break;
+                }
+                if (seq > toSeq) {
+                    return;
+                }
+                int size = log.getInt(pos + 8);
+                int end = pos + HEADER + size;
+                if (size < 0 || end > log.limit()) {
+                    break;
+                }
+                if (seq >= fromSeq) {
+                    visitor.accept(seq, log.duplicate().position(pos + HEADER).limit(end));
+                }
+                expected = seq + 1;
+                pos = end;
+            }
+        }
+    }
+
+    /**
+     * 將已寫入的內容強制寫回磁碟
+     */
+    void force() {
+        if (activeLog != null) {
+            activeLog.force();
+            activeIndex.force();
+        }
+    }
+
+    /**
+     * 寫回磁碟後放下寫入中分段的映射（群組回收時呼叫，之後不應再使用此日誌）
+     * 不以 Unsafe 強制解除映射：已送入輸出佇列的歷史訊框可能仍指向映射內容
+     */
+    @Override
+    public void close() {
+        force();
+        activeLog = null;
+        activeIndex = null;
+        segmentBases.clear();
+    }
+
+    /**
+     * 建立新的分段並切換為寫入中的分段
+     *
+     * @param base    新分段第一則訊息的序號
+     * @param logSize 分段檔的大小（通常為 segmentSize，容納過大的記錄時更大）
+     */
+    private void openSegment(long base, long logSize) throws IOException {
+        if (activeLog != null) {
+            force();
+        }
+        activeBase = base;
+        activeLog = map(base, ".log", logSize);
+        activeIndex = map(base, ".idx", (long) maxIndexEntries() * INDEX_ENTRY);
+        segmentBases.add(base);
+        writePos = 0;
+        indexCount = 0;
+        lastIndexedPos = 0;
+    }
+
+    /**
+     * 從最後一個分段的尾端復原寫入位置與最後序號
+     * 讀取最後一筆稀疏索引後往後掃描，最多只掃描 INDEX_INTERVAL 加一筆記錄的內容
+     *
+     * @param base 最後一個分段的起始序號
+     */
+    private void recover(long base) throws IOException {
+        // 獨佔的過大分段比 segmentSize 大，以實際大小映射
+        openSegment(base, Math.max(segmentSize, Files.size(segmentFile(base, ".log"))));
+        while (indexCount < maxIndexEntries() && activeIndex.getLong(indexCount * INDEX_ENTRY) > 0) {
+            indexCount++;
+        }
+        lastSeq = base - 1;
+        long seq = base;
+        int pos = 0;
+        if (indexCount > 0) {
+            seq = activeIndex.getLong((indexCount - 1) * INDEX_ENTRY);
+            pos = activeIndex.getInt((indexCount - 1) * INDEX_ENTRY + 8);
+            lastIndexedPos = pos;
+        }
+        // 從最後一筆索引往後掃描，直到序號不連續（尚未寫入或寫到一半）為止
+        while (pos + HEADER <= activeLog.limit() && activeLog.getLong(pos) == seq) {
+            int size = activeLog.getInt(pos + 8);
+            int end = pos + HEADER + size;
+            if (size < 0 || end > activeLog.limit()) {
+                break;
+            }
+            lastSeq = seq++;
+            pos = end;
+        }
+        writePos = pos;
+    }
+
+    private int maxIndexEntries() {
+        return segmentSize / INDEX_INTERVAL + 1;
+    }
+
+    /**
+     * 在稀疏索引中找出序號不大於 seq 的最後一筆，回傳其位置
+     */
+    private int floorIndex(ByteBuffer index, long seq) {
+        int lo = 0;
+        int hi = index.limit() / INDEX_ENTRY - 1;
+        int pos = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long s = index.getLong(mid * INDEX_ENTRY);
+            if (s > 0 && s <= seq) {
+                pos = index.getInt(mid * INDEX_ENTRY + 8);
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return pos;
+    }
+
+    private Path segmentFile(long base, String suffix) {
+        return dir.resolve(String.format("%020d%s", base, suffix));
+    }
+
+    /**
+     * 以唯讀方式映射已寫完的分段檔（整個檔案）
+     */
+    private MappedByteBuffer map(long base, String suffix) throws IOException {
+        try (FileChannel ch = FileChannel.open(segmentFile(base, suffix), StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    /**
+     * 以讀寫方式映射寫入中的分段檔（不存在時建立，檔案擴充為指定大小）
+     */
+    private MappedByteBuffer map(long base, String suffix, long size) throws IOException {
+        // 映射後即可關閉通道，映射內容在 GC 回收前持續有效
+        try (FileChannel ch = FileChannel.open(segmentFile(base, suffix), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package src;
+
+import java.util.Locale;
+
+/**
+ * HISTORY 指令的查詢條件（以序號為游標的分頁查詢）
+ *
+ * 語法（不分大小寫，舊協定接在 "HISTORY " 之後，二進位協定為 OP_HISTORY 的內容）：
+ *   （空白）             最近的訊息（最多為群組的歷史深度）
+ *   LAST k               最近的 k 則訊息
+ *   SINCE n [k]          序號大於 n 的訊息，由舊到新取 k 則（客戶端補齊漏掉的訊息）
+ *   BEFORE n [k]         序號小於 n 的訊息，取最接近 n 的 k 則（往前翻頁）
+ * 未指定 k 或 k 超過伺服器的 --history-page-size 時以頁面大小為準；
+ * 還有更多訊息時，回覆的結束標記會附上下一頁的指令。
+ */
+final class HistoryQuery {
+    /**
+     * 查詢方向
+     */
+    enum Mode {
+        LAST, SINCE, BEFORE
+    }
+
+    // 不帶參數的 HISTORY
+    static final HistoryQuery DEFAULT = new HistoryQuery(Mode.LAST, 0, 0);
+    static final String USAGE = "Usage: HISTORY [LAST <count> | SINCE <seq> [<count>] | BEFORE <seq> [<count>]]";
+
+    final Mode mode;
+    // 游標序號（LAST 不使用）
+    final long seq;
+    // 要求的訊息數（0 表示未指定）
+    final int count;
+
+    private HistoryQuery(Mode mode, long seq, int count) {
+        this.mode = mode;
+        this.seq = seq;
+        this.count = count;
+    }
+
+    /**
+     * 解析查詢條件
+     *
+     * @param args HISTORY 之後的參數（可為空字串）
+     * @return 查詢條件；格式錯誤時回傳 null
+     */
+    static HistoryQuery parse(String args) {
+        String[] parts = args.trim().split("\\s+");
+        if (parts[0].isEmpty()) {
+            return DEFAULT;
+        }
+        try {
+            Mode mode = Mode.valueOf(parts[0].toUpperCase(Locale.ROOT));
+            if (mode == Mode.LAST) {
+                return parts.length == 2 ? new HistoryQuery(mode, 0, count(parts[1])) : null;
+            }
+            if (parts.length < 2 || parts.length > 3) {
+                return null;
+            }
+            long seq = Long.parseLong(parts[1]);
+            if (seq < 0) {
+                return null;
+            }
+            return new HistoryQuery(mode, seq, parts.length == 3 ? count(parts[2]) : 0);
+        } catch (IllegalArgumentException e) {
+            // 包含 NumberFormatException 與不認得的查詢方向
+            return null;
+        }
+    }
+
+    private static int count(String value) {
+        int count = Integer.parseInt(value);
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be positive: " + value);
+        }
+        return count;
+    }
+}
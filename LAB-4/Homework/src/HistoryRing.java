@@ -0,0 +1,244 @@
+package src;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * 群組歷史記錄的環狀緩衝區（固定容量）
+ *
+ * 每則訊息依序取得一個遞增的序號（從 1 開始），存放在 序號 % 容量 的位置，
+ * 容量滿後自動覆蓋最舊的訊息，不需要搬移元素。
+ * 儲存的是廣播時已編碼好的 Frame，查詢歷史時直接送出，不必重新編碼。
+ *
+ * 與所屬的 ChatGroup 一樣只由群組所屬分片的執行緒存取，讀寫都不需要鎖。
+ * 每個位置另外記錄存放的訊息序號，叢集副本不依序寫入時以此略過尚未收到的位置。
+ *
+ * 若設定了持久化日誌（HistoryLog），每則訊息會同時寫入日誌；緩衝區中存放的仍是廣播時的訊框
+ * （附加時不配置任何物件），啟動時從日誌尾端讀回的訊息與比緩衝區更舊的訊息則是指向映射檔案內容的訊框，
+ * 並標上目前的群組編號（群組編號只在同一次執行中有效，不寫入日誌）。
+ * 日誌讀寫失敗不影響聊天，只在伺服器主控台輸出一行通知（每種失敗每個群組一次）。
+ */
+final class HistoryRing {
+    private final int capacity;
+    // 所屬群組的編號（標在從日誌讀回的訊框上）
+    private final int groupId;
+    private final Frame[] frames;
+    // 每個位置目前存放的訊息序號（0 表示空位）
+    private final long[] seqs;
+    // 最後一則已寫入訊息的序號（0 表示尚無訊息）
+    private long lastSeq = 0;
+    // 持久化日誌（null 表示只保存在記憶體中）
+    private final HistoryLog log;
+    // 日誌寫入失敗後停止附加（日誌中的序號必須連續，之後的訊息只保留在記憶體中）
+    private boolean logFailed = false;
+    // 已回報過讀取失敗（HISTORY 每次查詢都可能失敗，只通知一次）
+    private boolean readFailed = false;
+
+    /**
+     * 建構子：以持久化日誌為後盾，並從日誌尾端讀回最近的 capacity 則訊息
+     *
+     * @param capacity 保留的最多訊息數量
+     * @param groupId  所屬群組的編號
+     * @param log      持久化日誌（null 表示只保存在記憶體中）
+     */
+    HistoryRing(int capacity, int groupId, HistoryLog log) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History depth must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.groupId = groupId;
+        this.frames = new Frame[capacity];
+        this.seqs = new long[capacity];
+        this.log = log;
+        if (log != null) {
+            try {
+                log.read(Math.max(1, log.lastSeq() - capacity + 1), (seq, payload) -> {
+                    int idx = (int) (seq % capacity);
+                    frames[idx] = Frame.wrap(Protocol.OP_CHAT, groupId, seq, payload);
+                    seqs[idx] = seq;
+                });
+            } catch (IOException e) {
+                readFailure(e);
+            }
+            lastSeq = log.lastSeq();
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return 最後一則訊息的序號（0 表示尚無訊息）
+     */
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * 附加一則訊息並為其標上序號（直接標在傳入的訊框上，不配置任何物件）
+     *
+     * @param frame 尚未送出的已編碼訊框（之後不應再被附加到其他群組）
+     * @return 標上序號的同一個訊框（應以此訊框送給群組成員）
+     */
+    Frame append(Frame frame) {
+        long seq = lastSeq + 1;
+        int idx = (int) (seq % capacity);
+        frame.stamp(seq);
+        if (log != null && !logFailed) {
+            try {
+                log.append(seq, frame);
+            } catch (IOException e) {
+                // 寫入日誌失敗時仍保留在記憶體中，不影響聊天；之後不再附加，
+                // 避免日誌出現序號缺口（讀取與復原都在缺口處停止，缺口之後的記錄會遺失）
+                logFailed = true;
+                Server.notice("History log " + log.dir() + " disabled after write failure (seq " + seq + "): "
+                        + e.getMessage());
+            }
+        }
+        frames[idx] = frame;
+        seqs[idx] = seq;
+        lastSeq = seq;
+        return frame;
+    }
+
+    /**
+     * 寫入由擁有者節點編好序號的訊息（叢集模式下非擁有者節點的歷史副本使用）
+     * 訊息可能不依序到達：直接放入序號對應的位置，該位置已有相同或更新的訊息時略過
+     *
+     * @param frame 帶有序號的訊框
+     * @return 是否寫入（false 表示重複或過舊的訊息）
+     */
+    boolean replicate(Frame frame) {
+        long seq = frame.seq();
+        int idx = (int) (seq % capacity);
+        if (seqs[idx] >= seq || seq <= lastSeq - capacity) {
+            return false;
+        }
+        frames[idx] = frame;
+        seqs[idx] = seq;
+        if (seq > lastSeq) {
+            lastSeq = seq;
+        }
+        return true;
+    }
+
+    /**
+     * 清除所有訊息，序號從頭開始（叢集模式下擁有者重新啟動時清除歷史副本）
+     */
+    void clear() {
+        Arrays.fill(frames, null);
+        Arrays.fill(seqs, 0);
+        lastSeq = 0;
+    }
+
+    /**
+     * 將持久化日誌強制寫回磁碟（沒有日誌時不做任何事）
+     */
+    void force() {
+        if (log != null) {
+            log.force();
+        }
+    }
+
+    /**
+     * 群組被回收時關閉：將持久化日誌寫回磁碟並放下所有指向映射內容的訊框，
+     * 讓分段檔的映射隨群組一起被回收；之後不應再附加訊息
+     */
+    void close() {
+        if (log != null) {
+            log.close();
+            Arrays.fill(frames, null);
+        }
+    }
+
+    /**
+     * 取得序號大於 afterSeq 且仍保留在緩衝區中的訊息（依序號排列）
+     * 叢集副本中尚未收到的序號會被略過
+     *
+     * @param afterSeq 起始序號（不含），傳 0 取得全部保留的訊息
+     * @return 訊息快照
+     */
+    List<Frame> snapshot(long afterSeq) {
+        long start = Math.max(afterSeq + 1, lastSeq - capacity + 1);
+        List<Frame> result = new ArrayList<>((int) Math.max(0, lastSeq - start + 1));
+        for (long seq = start; seq <= lastSeq; seq++) {
+            int idx = (int) (seq % capacity);
+            if (seqs[idx] == seq) {
+                result.add(frames[idx]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 取得序號大於 afterSeq 的最新 max 則訊息（續接工作階段時補送漏掉的訊息）
+     *
+     * @param afterSeq 客戶端最後收到的序號
+     * @param max      最多回傳的訊息數
+     * @return 訊息（依序號排列）
+     */
+    List<Frame> since(long afterSeq, int max) {
+        return range(Math.max(afterSeq + 1, lastSeq - max + 1), lastSeq);
+    }
+
+    /**
+     * @return 仍可查詢的最舊訊息序號（有持久化日誌時為日誌中最舊的訊息）
+     */
+    long firstSeq() {
+        long oldest = Math.max(1, lastSeq - capacity + 1);
+        if (log != null) {
+            oldest = Math.min(oldest, log.firstSeq());
+        }
+        return oldest;
+    }
+
+    /**
+     * 取得序號介於 fromSeq 與 toSeq（含）之間的訊息（分頁查詢 HISTORY 時使用）
+     * 依序號直接計算在緩衝區中的位置，只複製範圍內的訊框；
+     * 比緩衝區更舊的部分在有持久化日誌時從日誌讀回（以稀疏索引定位，讀到 toSeq 為止），否則略過
+     *
+     * @param fromSeq 起始序號（含）
+     * @param toSeq   結束序號（含，超過最後一則訊息時以最後一則為準）
+     * @return 訊息（依序號排列）
+     */
+    List<Frame> range(long fromSeq, long toSeq) {
+        long from = Math.max(1, fromSeq);
+        long to = Math.min(toSeq, lastSeq);
+        if (from > to) {
+            return new ArrayList<>(0);
+        }
+        long oldest = lastSeq - capacity + 1;
+        List<Frame> result = new ArrayList<>((int) Math.min(to - from + 1, capacity));
+        if (log != null && from < oldest) {
+            try {
+                // 緩衝區中已有的部分改用緩衝區的內容
+                log.read(from, Math.min(to, oldest - 1), (seq, payload) -> {
+                    if (seq >= from) {
+                        result.add(Frame.wrap(Protocol.OP_CHAT, groupId, seq, payload));
+                    }
+                });
+            } catch (IOException e) {
+                // 讀不到的部分略過，只回傳緩衝區中的訊息
+                readFailure(e);
+            }
+        }
+        for (long seq = Math.max(from, oldest); seq <= to; seq++) {
+            int idx = (int) (seq % capacity);
+            if (seqs[idx] == seq) {
+                result.add(frames[idx]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 回報讀取日誌失敗（同一個群組只通知一次）
+     */
+    private void readFailure(IOException e) {
+        if (!readFailed) {
+            readFailed = true;
+            Server.notice("Failed to read history log " + log.dir() + ": " + e.getMessage());
+        }
+    }
+}
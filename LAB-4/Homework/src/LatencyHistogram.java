@@ -0,0 +1,109 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 延遲直方圖（HDR 風格的對數-線性分桶）
+ *
+ * 每個 2 的次方區間再等分為 SUB_BUCKETS 個桶，因此不論數值大小，相對誤差都不超過 1/SUB_BUCKETS；
+ * 桶的數量固定（不到 500 個），可以涵蓋 1 ns 到數百年的範圍。
+ * 記錄一筆只需要幾個位元運算與一次原子遞增，不配置物件，可以直接放在訊息路徑上。
+ */
+final class LatencyHistogram {
+    // 每個 2 的次方區間細分的桶數（2^SUB_BITS）
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * 記錄一筆數值
+     *
+     * @param nanos 延遲（奈秒；負數視為 0）
+     */
+    void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(0, nanos)));
+    }
+
+    /**
+     * 取得目前的統計快照（記錄中的數值可能只有部分被計入）
+     */
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    /**
+     * 直方圖快照：計算筆數與百分位數
+     */
+    static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long c : counts) {
+                sum += c;
+            }
+            this.total = sum;
+        }
+
+        long count() {
+            return total;
+        }
+
+        /**
+         * @param fraction 百分位（0 到 1，例如 0.99）
+         * @return 該百分位數所在桶的上限（奈秒）；沒有資料時為 0
+         */
+        long percentile(double fraction) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        /**
+         * @return 最大值所在桶的上限（奈秒）；沒有資料時為 0
+         */
+        long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,708 @@
+package src;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.*;
+
+/**
+ * 無介面的壓力測試客戶端（java src/Client --load ...）
+ *
+ * 在同一個 JVM 內模擬大量客戶端：少量 NIO 事件迴圈執行緒各自負責一部分連線，不為每個客戶端建立執行緒。
+ * 每個模擬客戶端以二進位協定連線後加入一個壓測群組，之後以固定間隔（總速率 --rate）
+ * 依 --mix 的比例執行聊天、CHANGE_、LEAVE（之後重新 JOIN_）、HISTORY、EXIT!（之後重新連線）。
+ *
+ * 聊天內容帶有排定的送出時間（System.nanoTime），同一個 JVM 內的其他模擬客戶端收到時
+ * 以收到的時間相減得到端對端的傳遞延遲。使用排定時間而不是實際送出時間，
+ * 壓測端本身落後時延遲也會如實反映（避免協調遺漏）。
+ *
+ * 例如：java src/Client --load --clients=2000 --rate=2000 --groups=50 --duration=60
+ * 伺服器需以足夠的 --max-clients 與 --max-group-size 啟動，否則多出的客戶端會被拒絕或進入等待佇列。
+ */
+final class LoadGenerator {
+    /**
+     * 模擬客戶端在群組內的動作
+     */
+    enum Action {
+        CHAT, CHANGE, LEAVE, HISTORY, EXIT
+    }
+
+    // 聊天內容中時間戳記的標記（"[User_1]: LG <nanos> ..."）
+    private static final byte[] MARKER = " LG ".getBytes();
+    // 送出緩衝區累積超過此大小時略過該次動作（伺服器跟不上）
+    private static final int MAX_PENDING_OUT = 1024 * 1024;
+    // 連線被拒絕或中斷後重新連線前的等待時間
+    private static final long RECONNECT_DELAY = 1_000_000_000L;
+    // 時間戳記的起點（聊天內容中記錄與此相差的奈秒數，因此一定是非負整數）
+    private static final long ORIGIN = System.nanoTime();
+
+    // 伺服器位址
+    String host = "127.0.0.1";
+    int port = 12345;
+    // 模擬客戶端數量
+    int clients = 100;
+    // 事件迴圈執行緒數量
+    int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // 所有客戶端合計每秒的動作數（大部分是聊天訊息）
+    double rate = 100;
+    // 壓測群組數量（Group_LOAD_0 ...），客戶端平均分散
+    int groups = 10;
+    // 每秒最多建立的連線數（避免超過伺服器的 accept backlog）
+    int connectRate = 1000;
+    // 聊天內容的長度（bytes，不含使用者名稱前綴）
+    int messageSize = 64;
+    // 暖機時間與量測時間（秒）；暖機期間的延遲不計入最後的統計
+    int warmup = 5;
+    int duration = 30;
+    // 定期報表的間隔（秒）
+    int reportInterval = 5;
+    // 各種動作的比例
+    final int[] mix = {94, 2, 2, 1, 1};
+    private int mixTotal;
+
+    // 統計資料（各事件迴圈共用）
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final AtomicInteger live = new AtomicInteger();
+    // 本期間與暖機後整體的延遲分布（報表時換成新的直方圖）
+    private volatile LatencyHistogram interval = new LatencyHistogram();
+    private volatile LatencyHistogram total = new LatencyHistogram();
+    private volatile boolean running = true;
+
+    /**
+     * 壓測模式進入點
+     *
+     * @param args 命令列參數（--load 之外的 --名稱=值）
+     */
+    static void main(String[] args) {
+        LoadGenerator load;
+        try {
+            load = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        try {
+            load.run();
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Load test failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 解析壓測參數
+     *
+     * @throws IllegalArgumentException 參數格式錯誤時拋出
+     */
+    static LoadGenerator parse(String[] args) {
+        LoadGenerator load = new LoadGenerator();
+        for (String arg : args) {
+            if (arg.equals("--load")) {
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "host":
+                    load.host = value;
+                    break;
+                case "port":
+                    load.port = positive(name, value);
+                    break;
+                case "clients":
+                    load.clients = positive(name, value);
+                    break;
+                case "threads":
+                    load.threads = positive(name, value);
+                    break;
+                case "rate":
+                    load.rate = Double.parseDouble(value);
+                    if (!(load.rate > 0)) {
+                        throw new IllegalArgumentException("--" + name + " must be positive: " + value);
+                    }
+                    break;
+                case "groups":
+                    load.groups = positive(name, value);
+                    break;
+                case "connect-rate":
+                    load.connectRate = positive(name, value);
+                    break;
+                case "message-size":
+                    load.messageSize = positive(name, value);
+                    break;
+                case "warmup":
+                    load.warmup = Integer.parseInt(value);
+                    break;
+                case "duration":
+                    load.duration = positive(name, value);
+                    break;
+                case "report-interval":
+                    load.reportInterval = positive(name, value);
+                    break;
+                case "mix":
+                    // 例如 chat:90,change:5,leave:3,history:1,exit:1（未列出的動作比例為 0）
+                    Arrays.fill(load.mix, 0);
+                    for (String entry : value.split(",")) {
+                        int colon = entry.indexOf(':');
+                        if (colon < 0) {
+                            throw new IllegalArgumentException("Invalid value for --mix: " + entry);
+                        }
+                        Action action = Action.valueOf(entry.substring(0, colon).toUpperCase());
+                        load.mix[action.ordinal()] = Integer.parseInt(entry.substring(colon + 1));
+                    }
+                    if (Arrays.stream(load.mix).sum() <= 0) {
+                        throw new IllegalArgumentException("--mix must have a positive weight");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        return load;
+    }
+
+    private static int positive(String name, String value) {
+        int n = Integer.parseInt(value);
+        if (n <= 0) {
+            throw new IllegalArgumentException("--" + name + " must be positive: " + value);
+        }
+        return n;
+    }
+
+    /**
+     * 啟動事件迴圈，定期輸出報表，量測時間結束後輸出總結
+     */
+    void run() throws IOException, InterruptedException {
+        System.out.printf("Load test: %d clients, %.0f actions/s, %d groups, %d threads against %s:%d%n",
+                clients, rate, groups, threads, host, port);
+        mixTotal = Arrays.stream(mix).sum();
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        EventLoop[] loops = new EventLoop[Math.min(threads, clients)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i, address);
+        }
+        // 每個客戶端的動作間隔；連線時間依 --connect-rate 錯開
+        long period = (long) (clients / rate * 1e9);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            loops[i % loops.length].add(new Sim(i, period, start + i * 1_000_000_000L / connectRate));
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+
+        long measureStart = start + warmup * 1_000_000_000L;
+        long end = measureStart + duration * 1_000_000_000L;
+        long reportNanos = reportInterval * 1_000_000_000L;
+        long nextReport = start + reportNanos;
+        Counters base = null;
+        Counters last = new Counters(start);
+        for (long now = start; now < end; ) {
+            long wakeAt = Math.min(nextReport, end);
+            if (base == null) {
+                wakeAt = Math.min(wakeAt, measureStart);
+            }
+            Thread.sleep(Math.max(0, (wakeAt - now) / 1_000_000));
+            now = System.nanoTime();
+            if (base == null && now >= measureStart) {
+                // 暖機結束：之後的延遲才計入總結
+                total = new LatencyHistogram();
+                base = new Counters(now);
+            }
+            if (now >= nextReport) {
+                LatencyHistogram h = interval;
+                interval = new LatencyHistogram();
+                Counters current = new Counters(now);
+                System.out.println(String.format("[%4ds] clients %d, ", (now - start) / 1_000_000_000L, live.get())
+                        + current.rates(last) + ", latency " + latency(h.snapshot()));
+                last = current;
+                nextReport += reportNanos;
+            }
+        }
+        running = false;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.join();
+        }
+        Counters finish = new Counters(System.nanoTime());
+        System.out.println(summary(base, finish, total.snapshot()));
+    }
+
+    /**
+     * 某個時間點的累計值（相減得到期間內的速率）
+     */
+    private final class Counters {
+        final long nanos;
+        final long sent = LoadGenerator.this.sent.sum();
+        final long commands = LoadGenerator.this.commands.sum();
+        final long delivered = LoadGenerator.this.delivered.sum();
+        final long skipped = LoadGenerator.this.skipped.sum();
+        final long connects = LoadGenerator.this.connects.sum();
+        final long failures = LoadGenerator.this.failures.sum();
+        final long disconnects = LoadGenerator.this.disconnects.sum();
+
+        Counters(long nanos) {
+            this.nanos = nanos;
+        }
+
+        String rates(Counters since) {
+            double seconds = Math.max(1e-9, (nanos - since.nanos) / 1e9);
+            return String.format("sent %.1f msg/s, delivered %.1f msg/s", (sent - since.sent) / seconds,
+                    (delivered - since.delivered) / seconds);
+        }
+    }
+
+    private String summary(Counters base, Counters end, LatencyHistogram.Snapshot latency) {
+        double seconds = Math.max(1e-9, (end.nanos - base.nanos) / 1e9);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("=== Load Test Summary (%.0f s after %d s warm-up) ===%n", seconds, warmup));
+        sb.append(String.format("Clients: %d (connects %d, failures %d, disconnects %d)%n", clients,
+                end.connects - base.connects, end.failures - base.failures, end.disconnects - base.disconnects));
+        sb.append(String.format("Sent: %d chat messages (%.1f/s), %d other commands, %d skipped (send buffer full)%n",
+                end.sent - base.sent, (end.sent - base.sent) / seconds, end.commands - base.commands,
+                end.skipped - base.skipped));
+        sb.append(String.format("Delivered: %d messages (%.1f/s)%n", end.delivered - base.delivered,
+                (end.delivered - base.delivered) / seconds));
+        if (latency.count() == 0) {
+            sb.append("Latency: no samples");
+        } else {
+            sb.append(String.format("Latency: p50 %s, p90 %s, p99 %s, p99.9 %s, max %s", millis(latency.percentile(0.5)),
+                    millis(latency.percentile(0.9)), millis(latency.percentile(0.99)),
+                    millis(latency.percentile(0.999)), millis(latency.max())));
+        }
+        return sb.toString();
+    }
+
+    private static String latency(LatencyHistogram.Snapshot s) {
+        if (s.count() == 0) {
+            return "no samples";
+        }
+        return "p50 " + millis(s.percentile(0.5)) + ", p99 " + millis(s.percentile(0.99)) + ", p99.9 "
+                + millis(s.percentile(0.999)) + ", max " + millis(s.max());
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+
+    /**
+     * 記錄一則收到的聊天訊息的傳遞延遲
+     */
+    private void recordDelivery(long latencyNanos) {
+        delivered.increment();
+        interval.record(latencyNanos);
+        total.record(latencyNanos);
+    }
+
+    /**
+     * 一個模擬客戶端（只由所屬的事件迴圈執行緒使用）
+     */
+    private final class Sim {
+        final int id;
+        // 動作間隔與下一次動作（或連線）的排定時間
+        final long period;
+        long nextAt;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        ByteBuffer out = ByteBuffer.allocate(4096);
+        // 伺服器寫出方向是否已改用二進位協定（收到握手回覆之後）
+        boolean binary;
+        // 正在接收 HISTORY 回覆（其中的舊訊息不計入延遲）
+        boolean inHistory;
+        // 目前所在（或排隊中）的群組；null 表示在大廳
+        String group;
+        boolean exiting;
+
+        Sim(int id, long period, long connectAt) {
+            this.id = id;
+            this.period = period;
+            this.nextAt = connectAt;
+        }
+
+        boolean connected() {
+            return channel != null && channel.isConnected();
+        }
+    }
+
+    /**
+     * 事件迴圈：以 Selector 處理一部分模擬客戶端的連線、讀寫與排定的動作
+     */
+    private final class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final InetSocketAddress address;
+        // 依下一次動作時間排序的客戶端（連線中的客戶端不在其中）
+        final PriorityQueue<Sim> schedule = new PriorityQueue<>(Comparator.comparingLong((Sim s) -> s.nextAt));
+        // 組出聊天內容的暫存區
+        final StringBuilder text = new StringBuilder();
+
+        EventLoop(int index, InetSocketAddress address) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "load-loop-" + index);
+            this.address = address;
+        }
+
+        void add(Sim s) {
+            schedule.add(s);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    long now = System.nanoTime();
+                    Sim s;
+                    while ((s = schedule.peek()) != null && s.nextAt <= now) {
+                        schedule.poll();
+                        fire(s, now);
+                    }
+                    s = schedule.peek();
+                    long waitMillis = s == null ? 100 : (s.nextAt - now) / 1_000_000;
+                    if (waitMillis > 0) {
+                        selector.select(waitMillis);
+                    } else {
+                        selector.selectNow();
+                    }
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        onReady((Sim) key.attachment(), key);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // 結束時送出 EXIT! 並關閉所有連線
+            for (SelectionKey key : selector.keys()) {
+                Sim s = (Sim) key.attachment();
+                if (s.connected() && !s.exiting) {
+                    command(s, Protocol.OP_EXIT, "");
+                    try {
+                        s.out.flip();
+                        s.channel.write(s.out);
+                    } catch (IOException ignored) {
+                        // 伺服器已關閉連線
+                    }
+                }
+                close(s);
+            }
+        }
+
+        /**
+         * 執行到期的工作：尚未連線時開始連線，否則執行下一個動作並排定下一次
+         */
+        private void fire(Sim s, long now) {
+            if (s.channel == null) {
+                connect(s);
+                return;
+            }
+            if (s.exiting) {
+                // 已送出 EXIT!，等待伺服器關閉連線
+            } else if (s.out.position() > MAX_PENDING_OUT) {
+                skipped.increment();
+            } else if (s.group == null) {
+                join(s);
+            } else {
+                act(s, now);
+            }
+            s.nextAt += s.period;
+            schedule.add(s);
+            flush(s);
+        }
+
+        private void connect(Sim s) {
+            try {
+                s.channel = SocketChannel.open();
+                s.channel.configureBlocking(false);
+                s.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                s.channel.connect(address);
+                s.key = s.channel.register(selector, SelectionKey.OP_CONNECT, s);
+            } catch (IOException e) {
+                failures.increment();
+                reconnect(s, RECONNECT_DELAY);
+            }
+        }
+
+        /**
+         * 連線結束：稍後重新連線
+         *
+         * @param delay 重新連線前的等待時間（奈秒）
+         */
+        private void reconnect(Sim s, long delay) {
+            schedule.remove(s);
+            close(s);
+            s.nextAt = System.nanoTime() + delay;
+            schedule.add(s);
+        }
+
+        private void close(Sim s) {
+            if (s.channel != null) {
+                if (s.channel.isConnected()) {
+                    live.decrementAndGet();
+                }
+                try {
+                    s.channel.close();
+                } catch (IOException ignored) {
+                    // 關閉失敗時不需額外處理
+                }
+            }
+            s.channel = null;
+            s.key = null;
+            s.in.clear();
+            s.out.clear();
+            s.binary = false;
+            s.inHistory = false;
+            s.group = null;
+            s.exiting = false;
+        }
+
+        private void onReady(Sim s, SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    s.channel.finishConnect();
+                    connects.increment();
+                    live.incrementAndGet();
+                    key.interestOps(SelectionKey.OP_READ);
+                    // 握手訊息以舊協定送出，伺服器收到後立即改以二進位協定讀取後續指令
+                    put(s, Frame.of(Protocol.hello(Protocol.VERSION, 0)).buffer(Protocol.LEGACY));
+                    join(s);
+                    flush(s);
+                    // 第一次動作隨機錯開，避免所有客戶端同時送出
+                    s.nextAt = System.nanoTime() + ThreadLocalRandom.current().nextLong(Math.max(1, s.period));
+                    schedule.add(s);
+                    return;
+                }
+                if (key.isReadable()) {
+                    read(s);
+                }
+                if (s.channel != null && key.isValid() && key.isWritable()) {
+                    flush(s);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                if (s.exiting) {
+                    // 送出 EXIT! 後由伺服器關閉連線：正常結束，下一個動作時間重新連線
+                    reconnect(s, s.period);
+                    return;
+                }
+                if (s.connected()) {
+                    disconnects.increment();
+                } else {
+                    failures.increment();
+                }
+                reconnect(s, RECONNECT_DELAY);
+            }
+        }
+
+        private void join(Sim s) {
+            s.group = "LOAD_" + ThreadLocalRandom.current().nextInt(groups);
+            command(s, Protocol.OP_JOIN, s.group);
+        }
+
+        private void act(Sim s, long now) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int r = random.nextInt(mixTotal);
+            Action action = Action.CHAT;
+            for (Action a : Action.values()) {
+                r -= mix[a.ordinal()];
+                if (r < 0) {
+                    action = a;
+                    break;
+                }
+            }
+            switch (action) {
+                case CHAT:
+                    // 排定的送出時間（而不是實際送出時間），再補足到指定長度
+                    text.setLength(0);
+                    text.append("LG ").append(s.nextAt - ORIGIN).append(' ');
+                    while (text.length() < messageSize) {
+                        text.append('x');
+                    }
+                    command(s, Protocol.OP_CHAT, text.toString());
+                    sent.increment();
+                    return;
+                case CHANGE:
+                    if (groups > 1) {
+                        String target;
+                        do {
+                            target = "LOAD_" + random.nextInt(groups);
+                        } while (target.equals(s.group));
+                        s.group = target;
+                        command(s, Protocol.OP_CHANGE, target);
+                    }
+                    break;
+                case LEAVE:
+                    // 下一次動作時重新加入一個群組
+                    s.group = null;
+                    command(s, Protocol.OP_LEAVE, "");
+                    break;
+                case HISTORY:
+                    command(s, Protocol.OP_HISTORY, "");
+                    break;
+                case EXIT:
+                    // 伺服器關閉連線後重新連線（模擬客戶端的離開與加入）
+                    s.exiting = true;
+                    command(s, Protocol.OP_EXIT, "");
+                    break;
+            }
+            commands.increment();
+        }
+
+        private void command(Sim s, int opcode, String content) {
+            try {
+                put(s, Frame.of(opcode, 0, content).buffer(Protocol.VERSION));
+            } catch (UTFDataFormatException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        private void put(Sim s, ByteBuffer data) {
+            if (s.out.remaining() < data.remaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(s.out.capacity() * 2, s.out.position() + data.remaining()));
+                s.out.flip();
+                bigger.put(s.out);
+                s.out = bigger;
+            }
+            s.out.put(data);
+        }
+
+        private void flush(Sim s) {
+            if (!s.connected()) {
+                return;
+            }
+            try {
+                s.out.flip();
+                s.channel.write(s.out);
+                s.out.compact();
+                s.key.interestOps(s.out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
+            } catch (IOException | CancelledKeyException e) {
+                if (!s.exiting) {
+                    disconnects.increment();
+                }
+                reconnect(s, s.exiting ? s.period : RECONNECT_DELAY);
+            }
+        }
+
+        /**
+         * 讀取並解析伺服器送來的訊框：握手回覆之前為 writeUTF 格式，之後為二進位協定
+         */
+        private void read(Sim s) throws IOException {
+            if (s.channel.read(s.in) < 0) {
+                throw new EOFException();
+            }
+            s.in.flip();
+            long now = System.nanoTime();
+            while (s.binary ? readBinary(s, now) : readLegacy(s)) {
+                // 逐一處理完整的訊框
+            }
+            s.in.compact();
+            if (!s.in.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(s.in.capacity() * 2);
+                s.in.flip();
+                bigger.put(s.in);
+                s.in = bigger;
+            }
+        }
+
+        private boolean readLegacy(Sim s) throws IOException {
+            if (s.in.remaining() < 2) {
+                return false;
+            }
+            int len = s.in.getShort(s.in.position()) & 0xFFFF;
+            if (s.in.remaining() < 2 + len) {
+                return false;
+            }
+            if (Frame.decode(s.in, len).startsWith(Protocol.HELLO)) {
+                s.binary = true;
+            }
+            return true;
+        }
+
+        private boolean readBinary(Sim s, long now) throws IOException {
+            ByteBuffer buf = s.in;
+            int start = buf.position();
+            if (!buf.hasRemaining()) {
+                return false;
+            }
+            int opcode = buf.get(start) & 0xFF;
+            int groupEnd = Protocol.varintEnd(buf, start + 1);
+            int seqEnd = groupEnd < 0 ? -1 : Protocol.varintEnd(buf, groupEnd);
+            int lenEnd = seqEnd < 0 ? -1 : Protocol.varintEnd(buf, seqEnd);
+            if (lenEnd < 0) {
+                return false;
+            }
+            long len = Protocol.getVarint(buf, seqEnd);
+            if (len > Frame.MAX_PAYLOAD) {
+                throw new IOException("Frame too large: " + len + " bytes");
+            }
+            int end = lenEnd + (int) len;
+            if (end > buf.limit()) {
+                return false;
+            }
+            if (opcode == Protocol.OP_CHAT && !s.inHistory) {
+                long sentAt = timestamp(buf, lenEnd, end);
+                if (sentAt >= 0) {
+                    recordDelivery(now - ORIGIN - sentAt);
+                }
+            } else if (opcode == Protocol.OP_TEXT) {
+                if (startsWith(buf, lenEnd, end, "=== Last ")) {
+                    s.inHistory = true;
+                } else if (startsWith(buf, lenEnd, end, "=== End of History")) {
+                    s.inHistory = false;
+                }
+            }
+            buf.position(end);
+            return true;
+        }
+    }
+
+    /**
+     * 從聊天內容中找出 " LG " 之後的時間戳記
+     *
+     * @return 排定送出時間與 ORIGIN 相差的奈秒數；不是壓測訊息時回傳 -1
+     */
+    private static long timestamp(ByteBuffer buf, int from, int to) {
+        outer:
+        for (int i = from; i + MARKER.length < to; i++) {
+            for (int j = 0; j < MARKER.length; j++) {
+                if (buf.get(i + j) != MARKER[j]) {
+                    continue outer;
+                }
+            }
+            long value = 0;
+            int k = i + MARKER.length;
+            for (byte b; k < to && (b = buf.get(k)) >= '0' && b <= '9'; k++) {
+                value = value * 10 + (b - '0');
+            }
+            return k > i + MARKER.length ? value : -1;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(ByteBuffer buf, int from, int to, String prefix) {
+        if (to - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf.get(from + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
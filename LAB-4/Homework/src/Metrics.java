@@ -0,0 +1,103 @@
+package src;
+
+import java.io.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 伺服器統計資料的記錄端
+ *
+ * 計數器使用 LongAdder（多執行緒同時遞增時各自累加在不同的格子，不互相競爭），
+ * 延遲使用 LatencyHistogram；訊息路徑上只做遞增與一次 nanoTime，不配置物件也不加鎖。
+ * 讀取與格式化由 ServerStats 負責（/stats 主控台指令與 JMX）。
+ */
+final class Metrics {
+    /**
+     * 客戶端指令種類（依收到的指令計數）
+     */
+    enum Command {
+        HELLO, JOIN, CHANGE, LEAVE, HISTORY, BROADCAST, CHAT, EXIT, PRESENCE, UPLOAD, DOWNLOAD, INVALID
+    }
+
+    // 伺服器啟動時間（計算運作時間與平均連線速率）
+    static final long START_NANOS = System.nanoTime();
+    // 接受的連線數與因伺服器已滿而拒絕的連線數
+    static final LongAdder ACCEPTED = new LongAdder();
+    static final LongAdder REJECTED = new LongAdder();
+    // 超過速率限制而捨棄的聊天訊息與 BROADCAST
+    static final LongAdder THROTTLED = new LongAdder();
+    // 與客戶端之間實際讀寫的位元組數（不含叢集匯流排）
+    static final LongAdder BYTES_IN = new LongAdder();
+    static final LongAdder BYTES_OUT = new LongAdder();
+    // 群組廣播（寫入歷史並排入所有成員的輸出佇列）與全域廣播（到最後一個分區送完為止）的扇出延遲
+    static final LatencyHistogram GROUP_FANOUT = new LatencyHistogram();
+    static final LatencyHistogram GLOBAL_FANOUT = new LatencyHistogram();
+
+    private static final LongAdder[] COMMANDS = new LongAdder[Command.values().length];
+
+    static {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            COMMANDS[i] = new LongAdder();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * 記錄收到一個指令
+     */
+    static void command(Command command) {
+        COMMANDS[command.ordinal()].increment();
+    }
+
+    /**
+     * @return 指定指令目前的累計次數
+     */
+    static long commandCount(Command command) {
+        return COMMANDS[command.ordinal()].sum();
+    }
+
+    /**
+     * 包裝輸入流，累計讀到的位元組數（每次讀取系統呼叫只遞增一次）
+     */
+    static InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    BYTES_IN.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    BYTES_IN.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * 包裝輸出流，累計寫出的位元組數（放在緩衝區之下，每次寫入系統呼叫只遞增一次）
+     */
+    static OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                BYTES_OUT.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                BYTES_OUT.add(len);
+            }
+        };
+    }
+}
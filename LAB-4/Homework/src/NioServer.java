@@ -0,0 +1,512 @@
+package src;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * NIO 事件迴圈傳輸層
+ *
+ * 以 ServerSocketChannel 接受連線，再以輪詢方式分派給少量的事件迴圈執行緒。
+ * 每個事件迴圈擁有自己的 Selector，負責：
+ * 1. 從 ByteBuffer 解出訊框：握手前為 writeUTF 格式（2 bytes 長度 + modified UTF-8），
+ *    握手後為二進位協定（見 Protocol），內容直接以緩衝區視圖交給 ClientHandler，不複製
+ * 2. 把解出的指令交給 ClientHandler，指令本身排入群組所屬的分片執行（見 GroupRegistry）
+ * 3. 將其他執行緒送來的訊框排入有界輸出佇列，以 gathering write 非阻塞地寫回 Socket
+ *    事件迴圈執行緒自己產生的訊框不立即寫出，而是在本輪事件處理完後每個連線寫一次；
+ *    其他執行緒（例如分片）送來的訊框，在事件迴圈處理寫出請求之前每個連線只排入一次請求，
+ *    同一個指令產生的多個訊框通常合併成一次系統呼叫
+ * 4. 檔案下載以 FileChannel.transferTo 直接從檔案寫入 Channel，每輪事件每個連線最多送出一段，
+ *    送出前先寫完已排入的訊框，同一個事件迴圈上的其他連線與聊天訊息不會等待整個檔案
+ *
+ * 閒置的連線只佔用一個 SelectionKey 與一個小型讀取緩衝區，不佔用執行緒。
+ */
+final class NioServer {
+    // 讀取緩衝區的初始大小（閒置連線只需要很小的緩衝區）
+    private static final int INITIAL_READ_BUFFER = 256;
+    // 單次 gathering write 最多合併的緩衝區數（一般訊框一個，映射的歷史訊框兩個）
+    private static final int GATHER_LIMIT = 64;
+
+    private final int port;
+    private final EventLoop[] loops;
+    // 連線名額與接收退避（名額由事件迴圈在註冊連線時佔用，接收執行緒只依退避狀態暫停）
+    private final AdmissionControl admission;
+    // 下一個要分派連線的事件迴圈索引（輪詢）
+    private int nextLoop = 0;
+
+    /**
+     * 建構子：建立指定數量的事件迴圈
+     *
+     * @param port       監聽埠號
+     * @param eventLoops 事件迴圈執行緒數量
+     * @param admission  連線的准入控制
+     */
+    NioServer(int port, int eventLoops, AdmissionControl admission) throws IOException {
+        this.port = port;
+        this.admission = admission;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * 啟動事件迴圈並在目前執行緒上持續接受連線（阻塞式 accept）
+     */
+    void run() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            System.out.println("Server started on 127.0.0.1:" + port + " (NIO, " + loops.length + " event loops)");
+            while (true) {
+                SocketChannel channel;
+                try {
+                    // 上一次 accept 失敗時先退避
+                    admission.pace();
+                    channel = server.accept();
+                    admission.acceptSucceeded();
+                } catch (IOException e) {
+                    if (!server.isOpen()) {
+                        throw e;
+                    }
+                    // 例如檔案描述符用盡：稍後再試，不結束伺服器
+                    System.out.println("Accept failed: " + e.getMessage());
+                    admission.acceptFailed();
+                    continue;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        }
+    }
+
+    /**
+     * 事件迴圈
+     * 單一執行緒負責一個 Selector 上所有連線的讀取、指令處理與寫出
+     */
+    private static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        // 等待註冊到 Selector 的新連線（由接收執行緒放入）
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        // 其他執行緒要求寫出的連線
+        private final Queue<NioConnection> flushRequests = new ConcurrentLinkedQueue<>();
+        // 本輪事件中有新訊框的連線（只在事件迴圈執行緒上使用，本輪結束時統一寫出）
+        private final ArrayDeque<NioConnection> dirty = new ArrayDeque<>();
+        // 避免重複呼叫 selector.wakeup()
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        // gathering write 用的暫存陣列（只在事件迴圈執行緒上使用）
+        private final ByteBuffer[] gather = new ByteBuffer[GATHER_LIMIT];
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-loop-" + index);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * 將新連線交給此事件迴圈（可由任意執行緒呼叫）
+         */
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            wakeup();
+        }
+
+        /**
+         * 要求事件迴圈寫出指定連線的待寫資料
+         * 若目前就在事件迴圈執行緒上則延到本輪結束時寫出，否則喚醒 Selector
+         */
+        void requestFlush(NioConnection c) {
+            if (inLoop()) {
+                if (!c.flushPending) {
+                    c.flushPending = true;
+                    dirty.add(c);
+                }
+            } else if (c.flushRequested.compareAndSet(false, true)) {
+                flushRequests.add(c);
+                wakeup();
+            }
+        }
+
+        private void wakeup() {
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    // 上一輪因例外而留下未寫出的連線時不阻塞
+                    if (dirty.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    // 先清除旗標再處理佇列，之後加入的請求會再次喚醒
+                    wakeupPending.set(false);
+                    registerNewChannels();
+                    NioConnection pending;
+                    while ((pending = flushRequests.poll()) != null) {
+                        // 先清除旗標再寫出，寫出期間排入的訊框會再次要求
+                        pending.flushRequested.set(false);
+                        pending.flush();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection c = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                c.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                c.flush();
+                            }
+                        } catch (RuntimeException e) {
+                            // 單一連線的非預期錯誤只中斷該連線，不讓事件迴圈結束
+                            System.out.println("Closing connection after unexpected error: " + e);
+                            c.disconnect();
+                        }
+                    }
+                    // 本輪產生的訊框：每個連線只寫一次
+                    NioConnection next;
+                    while ((next = dirty.poll()) != null) {
+                        next.flushPending = false;
+                        next.flush();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // 事件迴圈本身不結束，否則此迴圈上的所有連線都會停止
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                NioConnection c = new NioConnection(this, channel);
+                try {
+                    c.key = channel.register(selector, SelectionKey.OP_READ, c);
+                } catch (IOException e) {
+                    c.closeQuietly();
+                    continue;
+                }
+                c.open();
+            }
+        }
+    }
+
+    /**
+     * NIO 連線
+     * 保存讀取緩衝區與輸出佇列；讀取與寫出只在所屬事件迴圈上進行，
+     * send() 可由任何執行緒呼叫，只負責排入佇列
+     */
+    private static final class NioConnection implements ChatConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        // 讀取緩衝區（不足一個訊框時會自動加大，最多一個最大訊框的大小）
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        // 寫出方向採用的協定版本與壓縮門檻（只在事件迴圈上使用，寫出握手回覆後切換）
+        private int writeVersion = Protocol.LEGACY;
+        private int compressThreshold = 0;
+        // 已排入本輪結束時的寫出（只在事件迴圈上使用）
+        private boolean flushPending = false;
+        // 其他執行緒已要求寫出、事件迴圈尚未處理
+        private final AtomicBoolean flushRequested = new AtomicBoolean();
+        // 已收到 EXIT，不再處理之後送來的指令（只在事件迴圈上使用）
+        private boolean finished = false;
+        // 待寫出的訊框
+        private final OutboundQueue queue = Server.newOutboundQueue();
+        // 已從佇列取出、正在寫出的訊框視圖（第一個可能只寫了一部分）
+        private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>(GATHER_LIMIT);
+        // 正在送出的檔案下載（只在事件迴圈上使用）
+        private FileTransfer file;
+        // 輸出佇列依 DISCONNECT 策略要求中斷連線
+        private volatile boolean overflowed = false;
+        // 對應的指令處理器（伺服器已滿被拒絕時為 null）
+        private Server.ClientHandler handler;
+        // 已要求關閉：送完剩餘訊框後才真正關閉 Channel
+        private volatile boolean closing = false;
+        private volatile boolean closed = false;
+
+        NioConnection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        /**
+         * 連線註冊完成：建立 ClientHandler 並送出大廳畫面
+         */
+        void open() {
+            try {
+                handler = Server.openSession(this);
+                if (handler != null) {
+                    handler.onConnect();
+                }
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
+
+        @Override
+        public void send(Frame frame) throws IOException {
+            if (closing || closed) {
+                throw new IOException("Connection closed");
+            }
+            if (!queue.offer(frame)) {
+                // 交由事件迴圈中斷連線並執行斷線處理
+                overflowed = true;
+                loop.requestFlush(this);
+                throw new IOException("Outbound queue overflow, client disconnected");
+            }
+            loop.requestFlush(this);
+        }
+
+        @Override
+        public void sendFile(FileTransfer transfer) throws IOException {
+            if (closing || closed || !queue.offerFile(transfer)) {
+                throw new IOException("Connection closed");
+            }
+            loop.requestFlush(this);
+        }
+
+        /**
+         * 讀取可用資料並逐一解出完整訊框交給 ClientHandler
+         */
+        void onReadable() {
+            int n;
+            try {
+                n = channel.read(readBuffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                disconnect();
+                return;
+            }
+            Metrics.BYTES_IN.add(n);
+            if (closing || finished) {
+                // 已送出 EXIT! 或被拒絕的連線不再處理後續指令
+                readBuffer.clear();
+                return;
+            }
+            readBuffer.flip();
+            try {
+                // 每次處理前重新檢查版本：握手訊息之後的資料改以二進位協定解析
+                while (!closing && !closed && handler != null) {
+                    int result = handler.protocolVersion() == Protocol.LEGACY ? readLegacy() : readBinary();
+                    if (result < 0) {
+                        finished = true;
+                        return;
+                    }
+                    if (result == 0) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                disconnect();
+                return;
+            }
+            if (closing || closed) {
+                return;
+            }
+            readBuffer.compact();
+            // 緩衝區已滿但仍不足一個訊框時加倍容量
+            int maxBuffer = Math.max(Frame.MAX_SIZE, Protocol.MAX_HEADER + Server.maxFrameSize());
+            if (!readBuffer.hasRemaining() && readBuffer.capacity() < maxBuffer) {
+                ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(maxBuffer, readBuffer.capacity() * 2L));
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+        }
+
+        /**
+         * 從讀取緩衝區解出一個 writeUTF 訊框並處理
+         *
+         * @return 1 表示已處理一個訊框；0 表示資料還不完整；-1 表示連線已結束
+         */
+        private int readLegacy() throws IOException {
+            if (readBuffer.remaining() < 2) {
+                return 0;
+            }
+            int len = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+            if (readBuffer.remaining() < 2 + len) {
+                return 0;
+            }
+            String msg = Frame.decode(readBuffer, len);
+            return handler.handleCommand(msg) ? 1 : -1;
+        }
+
+        /**
+         * 從讀取緩衝區解出一個二進位訊框並處理
+         * 暫時把緩衝區的 position / limit 設為內容範圍交給 ClientHandler，不配置新的緩衝區
+         *
+         * @return 1 表示已處理一個訊框；0 表示資料還不完整；-1 表示連線已結束
+         * @throws IOException 訊框格式錯誤（包含負數長度）或超過長度上限時拋出
+         */
+        private int readBinary() throws IOException {
+            int start = readBuffer.position();
+            if (!readBuffer.hasRemaining()) {
+                return 0;
+            }
+            int opcode = readBuffer.get(start) & 0xFF;
+            // 客戶端送來的群組編號與序號目前不使用（聊天訊息一律送往所在群組）
+            int groupEnd = Protocol.varintEnd(readBuffer, start + 1);
+            int seqEnd = groupEnd < 0 ? -1 : Protocol.varintEnd(readBuffer, groupEnd);
+            int lenEnd = seqEnd < 0 ? -1 : Protocol.varintEnd(readBuffer, seqEnd);
+            if (lenEnd < 0) {
+                return 0;
+            }
+            int len = Protocol.getLength(readBuffer, seqEnd, Server.maxFrameSize());
+            int end = lenEnd + len;
+            if (end > readBuffer.limit()) {
+                return 0;
+            }
+            int limit = readBuffer.limit();
+            readBuffer.limit(end).position(lenEnd);
+            boolean more = handler.handleCommand(opcode, readBuffer);
+            if (closed) {
+                return -1;
+            }
+            readBuffer.limit(limit).position(end);
+            return more ? 1 : -1;
+        }
+
+        /**
+         * 非阻塞地寫出輸出佇列；每次最多合併 GATHER_LIMIT 個緩衝區為一次 gathering write，
+         * 寫不完時註冊 OP_WRITE 等待下次可寫
+         * 訊框都寫完後才送出檔案下載的下一段，每次呼叫最多一段，還有剩餘時同樣等待下次可寫
+         */
+        void flush() {
+            if (closed) {
+                return;
+            }
+            if (overflowed) {
+                disconnect();
+                return;
+            }
+            try {
+                while (true) {
+                    // 寫到一半的檔案段必須先寫完（訊框不可交錯）
+                    if (file != null && file.inChunk()) {
+                        Metrics.BYTES_OUT.add(file.writeChunk(channel));
+                        if (file.inChunk()) {
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    }
+                    // 補滿待寫視圖（每個接收者各自的唯讀視圖，共用訊框內容；映射的歷史訊框為標頭與內容兩段）
+                    Frame frame;
+                    while (inFlight.size() < GATHER_LIMIT - 1 && (frame = queue.poll()) != null) {
+                        for (ByteBuffer part : frame.buffers(writeVersion, compressThreshold)) {
+                            inFlight.addLast(part);
+                        }
+                        if (frame.opcode() == Protocol.OP_HELLO) {
+                            // 握手回覆之後的訊框改以協商出的協定編碼
+                            writeVersion = (int) frame.seq();
+                            compressThreshold = Server.compressThreshold(frame.groupId());
+                        }
+                    }
+                    int n = inFlight.size();
+                    if (n == 0) {
+                        if (file == null && !closing) {
+                            file = queue.pollFile();
+                        }
+                        if (file == null || closing) {
+                            break;
+                        }
+                        Metrics.BYTES_OUT.add(file.writeChunk(channel));
+                        if (file.done()) {
+                            file.close();
+                            file = null;
+                            continue;
+                        }
+                        // 還有剩餘（或 Socket 已滿）：等下次可寫再送下一段，讓其他連線輪流
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    ByteBuffer[] batch = inFlight.toArray(loop.gather);
+                    Metrics.BYTES_OUT.add(channel.write(batch, 0, n));
+                    Arrays.fill(batch, 0, n, null);
+                    // 移除已完整寫出的訊框
+                    while (!inFlight.isEmpty() && !inFlight.peekFirst().hasRemaining()) {
+                        inFlight.pollFirst();
+                    }
+                    if (!inFlight.isEmpty()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (closing) {
+                    closeQuietly();
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException | CancelledKeyException e) {
+                disconnect();
+            }
+        }
+
+        /**
+         * 連線中斷：關閉 Channel 並交由 ClientHandler 處理斷線邏輯
+         */
+        private void disconnect() {
+            if (closed) {
+                return;
+            }
+            closeQuietly();
+            if (handler != null) {
+                handler.handleDisconnect();
+            }
+        }
+
+        /**
+         * 正常關閉：不再接受新訊息，事件迴圈送完剩餘訊框（例如 "Server is full!"）後關閉 Channel
+         */
+        @Override
+        public void close() {
+            if (closing || closed) {
+                return;
+            }
+            closing = true;
+            loop.requestFlush(this);
+        }
+
+        private void closeQuietly() {
+            closed = true;
+            queue.close();
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // 關閉失敗時不需額外處理
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package src;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * 每個客戶端專屬的有界輸出佇列
+ *
+ * 廣播只需把訊框放入佇列（不會因為接收端 TCP 視窗已滿而阻塞），
+ * 實際寫出由該連線的寫出執行緒或 NIO 事件迴圈負責。
+ *
+ * 佇列以位元組計算容量：超過高水位（high watermark）時依溢出策略處理，
+ * 降到低水位（low watermark）以下才恢復正常。
+ *
+ * 處理一個指令期間可以暫停取出（cork，類似 TCP_CORK）：指令產生的所有訊框
+ * 在 uncork 後一次被寫出執行緒取走，合併成一次寫入。
+ *
+ * 檔案下載另外排在檔案通道（不計入容量，也不受溢出策略影響）：寫出端每送出一段檔案前
+ * 先送完已排入的訊框，大型檔案不會讓聊天訊息排在後面。
+ */
+final class OutboundQueue {
+    /**
+     * 溢出策略
+     * DROP_OLDEST：丟棄最舊的訊框直到降回低水位
+     * DISCONNECT：直接中斷這個過慢的客戶端
+     * COALESCE：暫停排入新訊框，降回低水位後以一則通知取代期間被略過的所有訊息
+     */
+    enum OverflowPolicy {
+        DROP_OLDEST, DISCONNECT, COALESCE
+    }
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final OverflowPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    // 尚未開始的檔案傳輸（依排入順序一次送一個）
+    private final ArrayDeque<FileTransfer> files = new ArrayDeque<>();
+    // 佇列中尚未寫出的位元組數
+    private long queuedBytes = 0;
+    // COALESCE 策略：是否處於溢出狀態，以及期間略過的訊息數
+    private boolean overflowing = false;
+    private int skipped = 0;
+    private boolean closed = false;
+    // 暫停取出中（寫出執行緒在 uncork 前不會取出訊框）
+    private boolean corked = false;
+
+    /**
+     * 建構子
+     *
+     * @param highWatermark 高水位（位元組）
+     * @param lowWatermark  低水位（位元組）
+     * @param policy        溢出策略
+     */
+    OutboundQueue(int highWatermark, int lowWatermark, OverflowPolicy policy) {
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+        this.policy = policy;
+    }
+
+    /**
+     * 放入一個訊框（不會阻塞）
+     *
+     * @param frame 要寫出的訊框
+     * @return false 表示依 DISCONNECT 策略應中斷此連線
+     */
+    boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            int size = frame.size();
+            if (overflowing) {
+                skipped++;
+                return true;
+            }
+            if (queuedBytes + size > highWatermark && !frames.isEmpty()) {
+                switch (policy) {
+                    case DISCONNECT:
+                        return false;
+                    case DROP_OLDEST:
+                        while (!frames.isEmpty() && queuedBytes + size > lowWatermark) {
+                            queuedBytes -= frames.pollFirst().size();
+                        }
+                        break;
+                    case COALESCE:
+                        overflowing = true;
+                        skipped = 1;
+                        return true;
+                }
+            }
+            frames.addLast(frame);
+            queuedBytes += size;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 排入一個檔案傳輸（不會阻塞）
+     *
+     * @return false 表示佇列已關閉，傳輸未排入
+     */
+    boolean offerFile(FileTransfer file) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            files.addLast(file);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出下一個檔案傳輸（不阻塞；佇列關閉後不再開始新的傳輸）
+     *
+     * @return 下一個傳輸；沒有時回傳 null
+     */
+    FileTransfer pollFile() {
+        lock.lock();
+        try {
+            return closed ? null : files.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 等待直到有訊框或檔案傳輸可以送出（供寫出執行緒使用）
+     *
+     * @param sending 寫出執行緒是否正在送出檔案（是則不等待，只回報佇列狀態）
+     * @return false 表示佇列已關閉且沒有剩餘訊框
+     */
+    boolean await(boolean sending) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!sending && ((frames.isEmpty() && files.isEmpty()) || corked) && !closed) {
+                notEmpty.await();
+            }
+            return !closed || !frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出下一個訊框（不阻塞，供 NIO 事件迴圈與寫出執行緒一次取走現有訊框時使用）
+     *
+     * @return 下一個訊框；佇列為空或暫停取出中（佇列尚未關閉）時回傳 null
+     */
+    Frame poll() {
+        lock.lock();
+        try {
+            return corked && !closed ? null : pollLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出下一個訊框，佇列為空（或暫停取出中）時阻塞等待（供寫出執行緒使用）
+     *
+     * @return 下一個訊框；佇列已關閉且沒有剩餘訊框時回傳 null
+     */
+    Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while ((frames.isEmpty() || corked) && !closed) {
+                notEmpty.await();
+            }
+            return pollLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 暫停取出：之後排入的訊框先累積在佇列中
+     */
+    void cork() {
+        lock.lock();
+        try {
+            corked = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 恢復取出：喚醒寫出執行緒一次取走累積的訊框
+     */
+    void uncork() {
+        lock.lock();
+        try {
+            corked = false;
+            if (!frames.isEmpty() || !files.isEmpty()) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 關閉佇列：不再接受新訊框，已排入的訊框仍可被取出；尚未開始的檔案傳輸直接捨棄
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            files.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Frame pollLocked() {
+        Frame frame = frames.pollFirst();
+        if (frame != null) {
+            queuedBytes -= frame.size();
+        }
+        // 降回低水位：結束溢出狀態並補上一則略過通知
+        if (overflowing && queuedBytes <= lowWatermark) {
+            overflowing = false;
+            try {
+                Frame notice = Frame.of("[Server] " + skipped
+                        + " message(s) skipped because your connection is too slow.");
+                frames.addLast(notice);
+                queuedBytes += notice.size();
+            } catch (IOException ignored) {
+                // 編碼固定長度的通知不會失敗
+            }
+            skipped = 0;
+        }
+        return frame;
+    }
+}
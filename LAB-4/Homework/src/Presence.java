@@ -0,0 +1,151 @@
+package src;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 全伺服器上線／離線通知的批次合併
+ *
+ * 每個連線與離開若各自全域廣播一次，網路中斷後大量客戶端同時重新連線時，
+ * N 個客戶端各會收到 N 則通知，總共 O(N²) 個訊框。
+ * 因此事件先排入佇列，每個間隔（--presence-interval）最多送出一則：
+ * 間隔內只有一個事件時沿用原本的訊息（例如 "User_3 has connected to the server."），
+ * 有多個事件時合併成一則摘要（例如 "Presence update: +37 connected, -12 left."），
+ * 事件不多時摘要中附上名稱（例如 "Presence update: +2 connected (User_2, User_3), -1 left (User_1)."）。
+ *
+ * 記錄事件可由任意執行緒呼叫（只做一次入佇列與一次 CAS）；
+ * 間隔內第一個事件排定一次送出，由 GroupRegistry 的計時器交給分片執行緒處理。
+ */
+final class Presence {
+    /**
+     * 一個上線或離開事件
+     */
+    private static final class Event {
+        final boolean connected;
+        final String userName;
+
+        Event(boolean connected, String userName) {
+            this.connected = connected;
+            this.userName = userName;
+        }
+
+        String message() {
+            return userName + (connected ? " has connected to the server." : " has left the server.");
+        }
+    }
+
+    // 摘要中附上名稱的事件數上限
+    static final int NAMED_EVENTS = 5;
+
+    // 合併間隔（毫秒，0 表示不合併，每個事件立即送出）
+    private final long intervalMillis;
+    private final GroupRegistry groups;
+    // 送出通知（內容不含 [Server Broadcast] 前綴）
+    private final Consumer<String> publish;
+    private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+    // 是否已排定送出
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * 建構子
+     *
+     * @param intervalMillis 合併間隔（毫秒，0 表示不合併）
+     * @param groups         排定送出時間所使用的群組登錄表（計時器與分片執行緒）
+     * @param publish        送出通知
+     */
+    Presence(long intervalMillis, GroupRegistry groups, Consumer<String> publish) {
+        this.intervalMillis = intervalMillis;
+        this.groups = groups;
+        this.publish = publish;
+    }
+
+    /**
+     * 記錄客戶端連線到伺服器
+     *
+     * @param userName 使用者名稱
+     */
+    void connected(String userName) {
+        add(new Event(true, userName));
+    }
+
+    /**
+     * 記錄客戶端離開伺服器
+     *
+     * @param userName 使用者名稱
+     */
+    void left(String userName) {
+        add(new Event(false, userName));
+    }
+
+    private void add(Event event) {
+        if (intervalMillis == 0) {
+            publish.accept(event.message());
+            return;
+        }
+        events.add(event);
+        if (scheduled.compareAndSet(false, true)) {
+            groups.schedule(0, this::flush, intervalMillis);
+        }
+    }
+
+    /**
+     * 送出目前累積的事件（只有一個時送出原本的訊息，否則送出摘要）
+     *
+     * @return 合併的事件數
+     */
+    int flush() {
+        // 先清除排定狀態再取出：取出期間新加入的事件會排定下一次送出，不會遺漏
+        scheduled.set(false);
+        int connected = 0;
+        int left = 0;
+        List<Event> named = new ArrayList<>(NAMED_EVENTS + 1);
+        Event event;
+        while ((event = events.poll()) != null) {
+            if (event.connected) {
+                connected++;
+            } else {
+                left++;
+            }
+            if (named.size() <= NAMED_EVENTS) {
+                named.add(event);
+            }
+        }
+        int total = connected + left;
+        if (total == 1) {
+            publish.accept(named.get(0).message());
+        } else if (total > 1) {
+            publish.accept(summary(connected, left, total <= NAMED_EVENTS ? named : null));
+        }
+        return total;
+    }
+
+    /**
+     * @param named 依序發生的事件（null 表示不附上名稱）
+     * @return 摘要訊息，例如 "Presence update: +37 connected, -12 left."
+     */
+    static String summary(int connected, int left, List<Event> named) {
+        StringBuilder sb = new StringBuilder("Presence update: ");
+        if (connected > 0) {
+            sb.append('+').append(connected).append(" connected").append(names(named, true));
+        }
+        if (left > 0) {
+            sb.append(connected > 0 ? ", " : "").append('-').append(left).append(" left").append(names(named, false));
+        }
+        return sb.append('.').toString();
+    }
+
+    private static String names(List<Event> named, boolean connected) {
+        if (named == null) {
+            return "";
+        }
+        StringJoiner joiner = new StringJoiner(", ", " (", ")");
+        for (Event event : named) {
+            if (event.connected == connected) {
+                joiner.add(event.userName);
+            }
+        }
+        return joiner.toString();
+    }
+}
@@ -0,0 +1,273 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * 傳輸協定定義
+ *
+ * 版本 0（LEGACY）：原本的 writeUTF 訊框（2 bytes 長度 + modified UTF-8），指令以字串前綴判斷，
+ * 單一訊框最多 65535 bytes。
+ *
+ * 版本 1（二進位）：
+ *   opcode    1 byte
+ *   groupId   varint（伺服器送出的群組訊息填群組編號，其餘為 0）
+ *   seq       varint（群組歷史記錄中的序號，其餘為 0）
+ *   length    varint（內容長度）
+ *   payload   length bytes（與 writeUTF 相同的 modified UTF-8，但不受 64 KB 限制）
+ * varint 為無號 LEB128：每 byte 7 個位元，最高位元為 1 表示後面還有。
+ *
+ * 握手：連線一律以舊協定開始。客戶端送出舊格式的 "\0HELLO <最高版本> [功能...]"，
+ * 伺服器以舊格式回覆 "\0HELLO <採用的版本> [雙方都支援的功能...]"，之後雙方都改用該版本；
+ * 伺服器不認得此訊息（或回覆版本 0）時，客戶端繼續使用舊協定。
+ * 開頭的 \0 在 modified UTF-8 中編碼為 0xC0 0x80，一般輸入的文字不會產生。
+ *
+ * 功能 deflate：伺服器可把超過門檻的訊框（以及 HISTORY 的整批回覆）包成 OP_DEFLATE 壓縮訊框，
+ * 格式見 Compression。
+ *
+ * 功能 resume：伺服器在握手回覆後送出 OP_SESSION（內容為續接憑證），斷線後在保留期限內保留
+ * 此工作階段（名稱、群組名額與排隊位置）。重新連線時客戶端在握手訊息中附上
+ * "resume=<憑證>:<群組編號>:<最後收到的序號>"，成功時伺服器以同一個憑證回覆 OP_SESSION（seq 為 1），
+ * 並只補送該群組中序號較新的訊息；憑證無效或已過期時回覆新的憑證（seq 為 0），客戶端需自行重新加入群組。
+ *
+ * 檔案傳輸（只有二進位協定）：上傳時客戶端送出 OP_UPLOAD（內容為 "<大小> <檔名>"），
+ * 伺服器以 OP_UPLOAD 回覆是否接受（seq 為 1 表示接受，0 表示拒絕，原因另以文字送出），
+ * 接受後客戶端依序送出 OP_FILE_DATA 直到送完宣告的大小。下載時客戶端送出 OP_DOWNLOAD（內容為檔案編號），
+ * 伺服器先送出 OP_FILE（groupId 為本次傳輸的編號，內容為 "<大小> <檔名>"），再送出同一個編號的 OP_FILE_DATA。
+ * OP_FILE_DATA 的 seq 為該段在檔案中的位置，內容為原始的檔案內容（不是 modified UTF-8），
+ * 每段最多 FileTransfer.CHUNK_SIZE bytes，段與段之間可以穿插其他訊框。
+ */
+final class Protocol {
+    // 舊協定（writeUTF）的版本編號
+    static final int LEGACY = 0;
+    // 目前支援的最高版本
+    static final int VERSION = 1;
+    // 握手訊息的前綴
+    static final String HELLO = "\u0000HELLO ";
+    // 可協商的功能（握手訊息中的名稱與對應的旗標）
+    static final String DEFLATE = "deflate";
+    static final int FEATURE_DEFLATE = 1;
+    static final String RESUME = "resume";
+    static final int FEATURE_RESUME = 2;
+
+    // 握手回覆（只以舊協定送出，seq 欄位為採用的版本）
+    static final int OP_HELLO = 0x01;
+    // 伺服器送出的一般文字（大廳畫面、指令回覆、全域廣播等）
+    static final int OP_TEXT = 0x02;
+    // 群組訊息：伺服器送出時帶有群組編號與序號；客戶端送出時為聊天內容
+    static final int OP_CHAT = 0x03;
+    // 壓縮訊框：內容為壓縮後的一個或多個二進位訊框（只由伺服器送出）
+    static final int OP_DEFLATE = 0x04;
+    // 工作階段的續接憑證（只由伺服器送出；seq 為 1 表示已續接原本的工作階段，0 表示新的工作階段）
+    static final int OP_SESSION = 0x05;
+    // 檔案下載的開頭（只由伺服器送出；groupId 為傳輸編號，seq 為 0）
+    static final int OP_FILE = 0x06;
+    // 檔案內容的一段（雙向；伺服器送出時 groupId 為傳輸編號，seq 為該段在檔案中的位置）
+    static final int OP_FILE_DATA = 0x07;
+    // 客戶端指令（內容為參數，沒有參數時長度為 0）
+    static final int OP_JOIN = 0x10;
+    static final int OP_CHANGE = 0x11;
+    static final int OP_LEAVE = 0x12;
+    static final int OP_HISTORY = 0x13;
+    static final int OP_BROADCAST = 0x14;
+    static final int OP_EXIT = 0x15;
+    // 開啟或關閉全伺服器的上線／離開通知（內容為 "on" 或 "off"）
+    static final int OP_PRESENCE = 0x16;
+    // 上傳檔案（客戶端送出時內容為 "<大小> <檔名>"；伺服器回覆時 seq 為 1 表示接受、0 表示拒絕）
+    static final int OP_UPLOAD = 0x17;
+    // 下載群組內分享的檔案（內容為檔案編號）
+    static final int OP_DOWNLOAD = 0x18;
+
+    // 二進位訊框標頭的最大長度（opcode + 三個 varint）
+    static final int MAX_HEADER = 1 + 5 + 10 + 5;
+
+    private Protocol() {
+    }
+
+    /**
+     * 解析握手訊息中的版本
+     *
+     * @param msg 以 HELLO 開頭的訊息
+     * @return 版本編號；格式錯誤時回傳 LEGACY
+     */
+    static int helloVersion(String msg) {
+        try {
+            return Math.max(LEGACY, Integer.parseInt(msg.substring(HELLO.length()).trim().split(" ")[0]));
+        } catch (NumberFormatException e) {
+            return LEGACY;
+        }
+    }
+
+    /**
+     * 解析握手訊息中的功能
+     *
+     * @param msg 以 HELLO 開頭的訊息
+     * @return 功能旗標（FEATURE_*）
+     */
+    static int helloFeatures(String msg) {
+        int features = 0;
+        for (String name : msg.substring(HELLO.length()).trim().split(" ")) {
+            if (name.equals(DEFLATE)) {
+                features |= FEATURE_DEFLATE;
+            } else if (name.equals(RESUME) || name.startsWith(RESUME + "=")) {
+                features |= FEATURE_RESUME;
+            }
+        }
+        return features;
+    }
+
+    /**
+     * 解析握手訊息中的續接要求
+     *
+     * @param msg 以 HELLO 開頭的訊息
+     * @return "<憑證>:<群組編號>:<最後收到的序號>"；沒有續接要求時回傳 null
+     */
+    static String helloResume(String msg) {
+        for (String name : msg.substring(HELLO.length()).trim().split(" ")) {
+            if (name.startsWith(RESUME + "=")) {
+                return name.substring(RESUME.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 組成握手訊息
+     *
+     * @param version  協定版本
+     * @param features 功能旗標
+     */
+    static String hello(int version, int features) {
+        return hello(version, features, null);
+    }
+
+    /**
+     * 組成要求續接工作階段的握手訊息
+     *
+     * @param version  協定版本
+     * @param features 功能旗標
+     * @param resume   "<憑證>:<群組編號>:<最後收到的序號>"（null 表示不續接）
+     */
+    static String hello(int version, int features, String resume) {
+        StringBuilder sb = new StringBuilder(HELLO).append(version);
+        if ((features & FEATURE_DEFLATE) != 0) {
+            sb.append(' ').append(DEFLATE);
+        }
+        if (resume != null) {
+            sb.append(' ').append(RESUME).append('=').append(resume);
+        } else if ((features & FEATURE_RESUME) != 0) {
+            sb.append(' ').append(RESUME);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return 以 varint 編碼 value 所需的 bytes 數
+     */
+    static int varintSize(long value) {
+        int n = 1;
+        while ((value >>>= 7) != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 將 value 以 varint 寫入陣列
+     *
+     * @return 寫入後的位置
+     */
+    static int putVarint(byte[] dst, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * 從輸入流讀取一個 varint（阻塞式）
+     *
+     * @throws IOException 超過 10 bytes 或連線中斷時拋出
+     */
+    static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * 從輸入流讀取訊框內容的長度（阻塞式）
+     *
+     * @param max 長度上限
+     * @return 介於 0 與 max 之間的長度
+     * @throws IOException 長度為負數（格式錯誤）、超過上限或連線中斷時拋出
+     */
+    static int readLength(DataInput in, int max) throws IOException {
+        return checkLength(readVarint(in), max);
+    }
+
+    /**
+     * 讀取緩衝區中從 pos 開始的訊框內容長度（呼叫前需以 varintEnd 確認資料完整）
+     *
+     * @param max 長度上限
+     * @return 介於 0 與 max 之間的長度
+     * @throws IOException 長度為負數（格式錯誤）或超過上限時拋出
+     */
+    static int getLength(ByteBuffer buf, int pos, int max) throws IOException {
+        return checkLength(getVarint(buf, pos), max);
+    }
+
+    /**
+     * 檢查解碼出的長度：10 bytes 的 varint 可能解出負數，轉成 int 前先排除
+     */
+    private static int checkLength(long len, int max) throws IOException {
+        if (len < 0) {
+            throw new IOException("Malformed frame length: " + len);
+        }
+        if (len > max) {
+            throw new IOException("Frame too large: " + len + " bytes");
+        }
+        return (int) len;
+    }
+
+    /**
+     * 找出緩衝區中從 pos 開始的 varint 結束位置（不移動緩衝區位置）
+     *
+     * @return varint 之後的位置；資料還不完整時回傳 -1
+     * @throws IOException 超過 10 bytes 時拋出
+     */
+    static int varintEnd(ByteBuffer buf, int pos) throws IOException {
+        int limit = buf.limit();
+        for (int i = 0; i < 10; i++, pos++) {
+            if (pos >= limit) {
+                return -1;
+            }
+            if ((buf.get(pos) & 0x80) == 0) {
+                return pos + 1;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * 讀取緩衝區中從 pos 開始的 varint（呼叫前需以 varintEnd 確認資料完整）
+     */
+    static long getVarint(ByteBuffer buf, int pos) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = buf.get(pos++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
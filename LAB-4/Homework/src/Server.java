@@ -6,9 +6,16 @@ package src;
 // Host: 127.0.0.1, Port: 12345
 // ============================================================
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.security.SecureRandom;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
 
 /**
  * 多群組動態聊天室伺服器
@@ -18,75 +25,185 @@ import java.util.concurrent.*;
  * 2. 提供三個聊天群組（Group_A、Group_B、Group_C）
  * 3. 每個群組最多容納 4 位成員
  * 4. 自動補位機制：當群組有空位時，自動將等待佇列中的使用者加入
- * 5. 群組訊息歷史記錄（最多保留 50 條）
+ * 5. 群組訊息歷史記錄（預設保留 50 條，可持久化到磁碟）
  * 6. 全域廣播功能（Server Broadcast）
  * 7. 管理員指令支援（/exit 關閉伺服器）
+ * 8. 可選的 NIO 事件迴圈傳輸層（--transport=nio），以少量執行緒承載大量閒置連線
+ * 9. 可選的虛擬執行緒模式（--transport=virtual，需 Java 21 以上）
+ * 10. 每個客戶端擁有有界輸出佇列，廣播只排入佇列，慢速客戶端不會拖住其他人
+ * 11. 廣播訊息只編碼一次，同一個訊框交給所有接收者
+ * 12. 群組依名稱分配到固定數量的分片執行緒，群組狀態只由所屬分片讀寫（單一寫入者，不需要鎖），群組永不超額
+ * 13. 歷史記錄為固定容量的環狀緩衝區（深度可依群組設定），儲存已編碼的訊框
+ * 14. 可選的持久化歷史記錄（--history-dir），以記憶體映射的分段日誌保存，重啟後立即復原
+ * 15. 群組隨需建立、閒置回收，存放在分片的登錄表中；每個群組的人數上限可個別設定
+ * 16. 每個群組各自的等待佇列，取消排隊 O(1)；排隊位置批次通知，只通知位置有變動的客戶端
+ * 17. 可協商的二進位協定（opcode + varint 長度，支援超過 64 KB 的訊息），舊版 writeUTF 客戶端照常使用
+ * 18. 可協商的壓縮（共用字典的 deflate），較大的訊框與整批 HISTORY 回覆壓縮後送出
+ * 19. 可選的叢集模式（--cluster），多個節點以一致性雜湊分擔群組，訊息經由節點間的匯流排轉送
+ * 20. 內建統計資料（連線、流量、指令次數、群組人數、扇出延遲），以主控台 /stats 與 JMX 查看
+ * 21. 可協商的工作階段續接：斷線後在保留期限內保留名稱、群組名額與排隊位置，重新連線時只補送漏掉的訊息
+ * 22. HISTORY 支援以序號為游標的分頁查詢（LAST / SINCE / BEFORE），只取出要求範圍內的訊息
+ * 23. 准入控制：連線名額以原子計數佔用，accept 失敗時退避；聊天訊息與 BROADCAST 以無鎖的權杖桶限制速率
+ * 24. 全伺服器的上線／離開通知每個間隔合併成一則摘要，客戶端可用 PRESENCE OFF 關閉
+ * 25. 全域廣播依客戶端分區，由各分片同時扇出，每個客戶端收到的順序不變
+ * 26. 群組內分享檔案（SENDFILE / GETFILE）：上傳直接寫入磁碟，下載以 transferTo 分段送出，不影響聊天訊息
  */
 public class Server {
-    // 伺服器監聽埠號
-    private static final int PORT = 12345;
-    // 伺服器最大同時連線客戶端數量
-    private static final int MAX_CLIENTS = 15;
-    // 每個群組的最大成員數量
-    private static final int MAX_GROUP_SIZE = 4;
-
-    // 儲存各個群組的客戶端處理器列表（Key: 群組名稱, Value: 該群組的 ClientHandler 列表）
-    private static final Map<String, List<ClientHandler>> groups = new HashMap<>();
-    // 等待加入群組的客戶端佇列（當群組已滿時，使用者會被加入此佇列）
-    private static final Queue<ClientHandler> waitingQueue = new LinkedList<>();
-    // 所有連線的客戶端列表（使用 CopyOnWriteArrayList 以確保線程安全）
-    private static final List<ClientHandler> allClients = new CopyOnWriteArrayList<>();
-    // 各群組的訊息歷史記錄（Key: 群組名稱, Value: 訊息列表，最多保留 50 條）
-    private static final Map<String, List<String>> groupHistory = new HashMap<>();
+    // 群組登錄表（Key: 群組名稱, Value: 含成員集合、等待佇列與歷史記錄的 ChatGroup）
+    private static GroupRegistry groups;
+    // 所有連線的客戶端（並行集合：加入與移除都是 O(1)，大量連線同時建立時不需要每次複製整個列表）
+    private static final Set<ClientHandler> allClients = ConcurrentHashMap.newKeySet();
+    // 使用者編號（依連線順序遞增，不重複使用，名稱因此不會與線上的客戶端重複）
+    private static final AtomicInteger userNumbers = new AtomicInteger();
+    // 全域廣播的分區扇出（每個分區固定由一個分片送出）
+    private static FanOut<ClientHandler> fanOut;
+    // 伺服器啟動參數（埠號、最大連線數、傳輸層模式等）
+    private static ServerConfig config = new ServerConfig();
+    // 連線名額（原子計數，檢查上限與佔用一次完成）與接收退避
+    private static AdmissionControl admission;
+    // 整個節點的 BROADCAST 速率限制（null 表示不限制）
+    private static TokenBucket globalBroadcastLimit;
+    // 全伺服器上線／離開通知的批次合併
+    private static Presence presence;
+    // 執行緒模式下用來執行 ClientHandler 與其寫出迴圈的執行器
+    private static Executor clientExecutor;
+    // 叢集模式下與其他節點的匯流排（null 表示單機模式）
+    private static Cluster cluster;
+    // 統計資料的讀取端（/stats 與 JMX）
+    private static ServerStats stats;
+    // 群組內分享的檔案（存放在 --file-dir 或暫存目錄）
+    private static FileStore files;
+    // 斷線後保留中、等待續接的工作階段（Key: 續接憑證）
+    private static final Map<String, ParkedSession> parkedSessions = new ConcurrentHashMap<>();
+    // 產生續接憑證
+    private static final SecureRandom tokens = new SecureRandom();
 
     /**
      * 主程式進入點
      * 初始化伺服器、建立群組結構、啟動監聽迴圈
      */
     public static void main(String[] args) {
-        // 初始化三個群組的客戶端列表（使用 CopyOnWriteArrayList 確保線程安全）
-        groups.put("Group_A", new CopyOnWriteArrayList<>());
-        groups.put("Group_B", new CopyOnWriteArrayList<>());
-        groups.put("Group_C", new CopyOnWriteArrayList<>());
-
-        // 初始化三個群組的訊息歷史記錄（使用 LinkedList 以便高效插入和刪除）
-        groupHistory.put("Group_A", new LinkedList<>());
-        groupHistory.put("Group_B", new LinkedList<>());
-        groupHistory.put("Group_C", new LinkedList<>());
-
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server started on 127.0.0.1:" + PORT);
-
-            // 建立後台執行緒用於處理管理員輸入（系統廣播和關閉指令）
-            new Thread(() -> {
-                Scanner console = new Scanner(System.in);
-                while (true) {
-                    String adminMsg = console.nextLine();
-                    // 檢查是否為關閉伺服器指令
-                    if (adminMsg.equalsIgnoreCase("/exit")) {
-                        System.out.println("Server shutting down...");
-                        // 廣播伺服器即將關閉的訊息給所有客戶端
-                        broadcastAll("[ADMIN] Server Will Close.");
-                        // 延遲一秒後關閉伺服器，讓訊息有時間傳送
-                        try {
-                            Thread.sleep(1000);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                        System.exit(0);
-                    }
-                    // 將管理員訊息廣播給所有客戶端
-                    broadcastAll("[ADMIN] " + adminMsg);
-                }
-            }).start();
+        // 解析啟動參數
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+
+        // 叢集模式：群組依名稱分配給各節點（先建立，讓常駐群組可以向擁有者訂閱）
+        if (!config.cluster.isEmpty()) {
+            cluster = new Cluster(config.nodeId, config.cluster);
+        }
+
+        // 建立群組登錄表與常駐群組（其他群組在第一次加入時才建立）
+        try {
+            init(config);
+        } catch (UncheckedIOException e) {
+            System.out.println("Failed to open history log or file directory: " + e.getCause().getMessage());
+            return;
+        }
+
+        // 統計資料：主控台 /stats 與 JMX MXBean
+        stats = new ServerStats(groups, allClients::size);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName(ServerStats.OBJECT_NAME));
+        } catch (JMException e) {
+            System.out.println("Failed to register JMX MBean: " + e.getMessage());
+        }
+
+        if (cluster != null) {
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                System.out.println("Failed to start cluster bus: " + e.getMessage());
+                return;
+            }
+        }
+
+        // 執行緒模式：每個客戶端一條（平台或虛擬）執行緒
+        Executor executor = null;
+        if (config.transport != ServerConfig.Transport.NIO) {
+            try {
+                executor = newClientExecutor();
+            } catch (IllegalStateException e) {
+                System.out.println(e.getMessage());
+                return;
+            }
+        }
+
+        // 建立後台執行緒用於處理管理員輸入（系統廣播和關閉指令）
+        startAdminConsole();
+
+        try {
+            if (executor == null) {
+                // NIO 模式：由事件迴圈處理所有連線
+                new NioServer(config.port, config.eventLoops, admission).run();
+            } else {
+                runThreadPerClient(executor);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 建立執行 ClientHandler 的執行器
+     * THREAD 模式每個客戶端建立一條平台執行緒；VIRTUAL 模式每個客戶端建立一條虛擬執行緒
+     * 虛擬執行緒以反射取得，讓程式在 Java 17 仍可編譯與執行平台執行緒模式
+     *
+     * @return 客戶端執行器
+     * @throws IllegalStateException 執行環境不支援虛擬執行緒時拋出
+     */
+    private static Executor newClientExecutor() {
+        if (config.transport == ServerConfig.Transport.VIRTUAL) {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual threads require Java 21 or later.");
+            }
+        }
+        return task -> new Thread(task).start();
+    }
+
+    /**
+     * 執行緒模式的接收迴圈
+     * 每接受一個連線就交給執行器建立一條 ClientHandler 執行緒
+     * 以阻塞模式的 ServerSocketChannel 接受連線，Socket 因此帶有通道，檔案下載可以直接以 transferTo 寫入
+     *
+     * @param executor 客戶端執行器（平台執行緒或虛擬執行緒）
+     */
+    private static void runThreadPerClient(Executor executor) throws IOException {
+        clientExecutor = executor;
+        try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+            serverSocket.bind(new InetSocketAddress(config.port));
+            System.out.println("Server started on 127.0.0.1:" + config.port
+                    + (config.transport == ServerConfig.Transport.VIRTUAL ? " (virtual threads)" : ""));
 
             // 主接收迴圈：持續監聽新的客戶端連線請求
             while (true) {
-                // 等待客戶端連線（阻塞式）
-                Socket socket = serverSocket.accept();
+                // 等待客戶端連線（阻塞式；上一次 accept 失敗時先退避）
+                Socket socket;
+                try {
+                    admission.pace();
+                    socket = serverSocket.accept().socket();
+                    admission.acceptSucceeded();
+                } catch (IOException e) {
+                    if (!serverSocket.isOpen()) {
+                        throw e;
+                    }
+                    // 例如檔案描述符用盡：稍後再試，不結束伺服器
+                    System.out.println("Accept failed: " + e.getMessage());
+                    admission.acceptFailed();
+                    continue;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
 
-                // 檢查是否已達到最大客戶端數量限制
-                if (allClients.size() >= MAX_CLIENTS) {
+                // 佔用一個連線名額（檢查上限與佔用在同一次原子操作中完成）
+                if (!admission.tryAcquire()) {
+                    Metrics.REJECTED.increment();
                     // 建立臨時輸出流告知客戶端伺服器已滿
                     DataOutputStream tempOut = new DataOutputStream(socket.getOutputStream());
                     tempOut.writeUTF("Server is full! Connection rejected.");
@@ -96,151 +213,666 @@ public class Server {
                 }
 
                 // 建立客戶端處理器並加入所有客戶端列表
+                Metrics.ACCEPTED.increment();
                 ClientHandler client = new ClientHandler(socket);
-                allClients.add(client);
+                addClient(client);
                 // 啟動客戶端處理執行緒
-                client.start();
+                executor.execute(client);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
     /**
-     * 群組內廣播訊息
+     * NIO 模式的連線建立
+     * 由事件迴圈在新連線註冊完成後呼叫，檢查連線上限並建立 ClientHandler
+     *
+     * @param conn 新建立的 NIO 連線
+     * @return 建立的客戶端處理器；伺服器已滿時回傳 null（連線已被關閉）
+     */
+    static ClientHandler openSession(ChatConnection conn) throws IOException {
+        // 佔用一個連線名額（多個事件迴圈可能同時建立連線）
+        if (!admission.tryAcquire()) {
+            Metrics.REJECTED.increment();
+            conn.send("Server is full! Connection rejected.");
+            conn.close();
+            return null;
+        }
+        Metrics.ACCEPTED.increment();
+        ClientHandler client = new ClientHandler(conn);
+        addClient(client);
+        return client;
+    }
+
+    /**
+     * 將客戶端加入所有客戶端列表，並分配使用者編號與全域廣播的分區
+     * 在接受連線的執行緒上呼叫，編號因此依連線順序分配
+     *
+     * @param client 新連線的客戶端（已佔用連線名額）
+     */
+    private static void addClient(ClientHandler client) {
+        client.userNumber = userNumbers.incrementAndGet();
+        allClients.add(client);
+        client.fanOutPartition = fanOut.add(client);
+    }
+
+    /**
+     * 將客戶端從所有客戶端列表中移除並釋出其連線名額（重複呼叫時不會重複釋出）
+     *
+     * @param client 離開伺服器的客戶端
+     */
+    private static void removeClient(ClientHandler client) {
+        if (allClients.remove(client)) {
+            fanOut.remove(client, client.fanOutPartition);
+            admission.release();
+        }
+    }
+
+    /**
+     * 依啟動參數建立一個客戶端輸出佇列
+     *
+     * @return 新的有界輸出佇列
+     */
+    static OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.outboundHighWatermark, config.outboundLowWatermark, config.overflowPolicy);
+    }
+
+    /**
+     * 套用啟動參數並建立群組登錄表與常駐群組（不開始監聽連線）
+     * 效能測試（LAB-4/Benchmark）也以此在同一個行程內建立伺服器狀態，
+     * 再直接呼叫套件內可見的廣播、補位與指令處理方法
+     *
+     * @param c 啟動參數
+     * @throws UncheckedIOException 開啟持久化歷史記錄或檔案目錄失敗時拋出
+     */
+    static void init(ServerConfig c) {
+        config = c;
+        admission = new AdmissionControl(config.maxClients);
+        globalBroadcastLimit = TokenBucket.of(config.globalBroadcastRate, config.globalBroadcastBurst);
+        groups = new GroupRegistry(config.shards, config.maxGroups, config.groupIdleTimeout, Server::newGroup,
+                Server::groupRetired);
+        fanOut = new FanOut<>(groups);
+        presence = new Presence(config.presenceInterval, groups, Server::broadcastPresence);
+        files = new FileStore(config.fileDir, config.maxFileSize, config.cluster.isEmpty() ? 0 : config.nodeId);
+        initGroups();
+    }
+
+    /**
+     * @return 群組登錄表
+     */
+    static GroupRegistry groups() {
+        return groups;
+    }
+
+    /**
+     * 建立常駐群組
+     * 設定 --history-dir 時會從持久化日誌復原歷史記錄，並在伺服器結束時（包含 /exit）
+     * 將所有群組的日誌寫回磁碟
+     */
+    private static void initGroups() {
+        for (String group : config.groups) {
+            long start = System.nanoTime();
+            ChatGroup g = groups.create(group);
+            if (config.historyDir != null) {
+                System.out.printf("Recovered %s history up to #%d in %.1f ms%n",
+                        group, g.history.lastSeq(), (System.nanoTime() - start) / 1e6);
+            }
+        }
+        if (config.historyDir != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> groups.forEach(g -> g.history.force()).join()));
+        }
+    }
+
+    /**
+     * 建立新群組（由群組登錄表在第一次使用某個名稱時，於該群組所屬的分片上呼叫）
+     * 設定 --history-dir 時，歷史記錄以 目錄/群組名稱 下的持久化日誌為後盾，
+     * 並只從日誌尾端讀回最近的訊息（目錄中還沒有日誌時，第一則訊息寫入時才建立分段檔）；叢集模式下不屬於本節點的群組只保存記憶體中的副本，
+     * 並向擁有者訂閱
+     *
+     * @param name 正規化後的群組名稱
+     * @return 新群組
+     * @throws UncheckedIOException 開啟持久化日誌失敗時拋出
+     */
+    private static ChatGroup newGroup(String name) {
+        int id = ChatGroup.newId();
+        int depth = config.historyDepth(name);
+        HistoryRing history;
+        if (cluster != null && !cluster.owns(name)) {
+            history = new HistoryRing(depth, id, null);
+            cluster.subscribe(name);
+        } else if (config.historyDir == null) {
+            history = new HistoryRing(depth, id, null);
+        } else {
+            try {
+                history = new HistoryRing(depth, id,
+                        HistoryLog.open(Paths.get(config.historyDir, name), config.historySegmentSize));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        ChatGroup group = new ChatGroup(id, name, config.groupSize(name), history, config.groups.contains(name));
+        group.chatLimit = TokenBucket.of(config.groupChatRate, config.groupChatBurst);
+        return group;
+    }
+
+    /**
+     * 群組被回收後呼叫：叢集模式下不再需要擁有者轉送此群組的訊息
+     *
+     * @param group 已回收的群組
+     */
+    private static void groupRetired(ChatGroup group) {
+        if (cluster != null && !cluster.owns(group.name())) {
+            cluster.unsubscribe(group.name());
+        }
+    }
+
+    /**
+     * @return 二進位協定下客戶端單一訊框內容的長度上限（bytes）
+     */
+    static int maxFrameSize() {
+        return config.maxFrameSize;
+    }
+
+    /**
+     * @param features 連線協商出的功能旗標
+     * @return 該連線的壓縮門檻（bytes，0 表示不壓縮）
+     */
+    static int compressThreshold(int features) {
+        return (features & Protocol.FEATURE_DEFLATE) != 0 ? config.compressionThreshold : 0;
+    }
+
+    /**
+     * 在伺服器主控台輸出一行通知（與啟動、斷線等訊息相同，不印出堆疊）
+     * 供伺服器以外的元件（例如歷史記錄）回報不影響聊天的錯誤
+     *
+     * @param message 通知內容
+     */
+    static void notice(String message) {
+        System.out.println(message);
+    }
+
+    /**
+     * 啟動管理員主控台執行緒
+     * 讀取伺服器端標準輸入，/exit 關閉伺服器，/stats 顯示統計資料，其餘內容作為管理員公告廣播
+     */
+    private static void startAdminConsole() {
+        new Thread(() -> {
+            Scanner console = new Scanner(System.in);
+            while (true) {
+                String adminMsg = console.nextLine();
+                // 檢查是否為關閉伺服器指令
+                if (adminMsg.equalsIgnoreCase("/exit")) {
+                    System.out.println("Server shutting down...");
+                    // 廣播伺服器即將關閉的訊息給此伺服器的所有客戶端（叢集中的其他節點照常運作）
+                    sendAll(serverBroadcast("[ADMIN] Server Will Close."), false).join();
+                    // 延遲一秒後關閉伺服器，讓訊息有時間從輸出佇列寫出
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    System.exit(0);
+                }
+                // 顯示統計資料（只輸出到伺服器主控台）
+                if (adminMsg.equalsIgnoreCase("/stats")) {
+                    System.out.println(stats.consoleReport());
+                    continue;
+                }
+                // 將管理員訊息廣播給所有客戶端
+                broadcastAll("[ADMIN] " + adminMsg);
+            }
+        }).start();
+    }
+
+    /**
+     * 群組內廣播訊息（在群組所屬的分片上呼叫）
      * 將訊息傳送給指定群組的所有成員（除了發送者）
      * 同時將訊息記錄到該群組的歷史記錄中
      * 
-     * @param group   目標群組名稱
+     * @param group   目標群組
      * @param message 要廣播的訊息
      * @param sender  發送訊息的客戶端處理器（不會收到自己發送的訊息）
      */
-    private static void broadcast(String group, String message, ClientHandler sender) {
-        // 遍歷群組內的所有客戶端
-        for (ClientHandler c : groups.get(group)) {
+    static void broadcast(ChatGroup group, String message, ClientHandler sender) {
+        // 只編碼一次，所有接收者共用同一個訊框
+        Frame frame;
+        try {
+            frame = Frame.chat(group.id(), message);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        broadcast(group, frame, sender);
+    }
+
+    /**
+     * 群組內廣播已編碼的訊框
+     *
+     * @param group  目標群組
+     * @param frame  群組訊息訊框（尚未標上序號）
+     * @param sender 發送訊息的客戶端處理器（不會收到自己發送的訊息）
+     */
+    private static void broadcast(ChatGroup group, Frame frame, ClientHandler sender) {
+        // 叢集模式下序號由擁有者節點統一編排：不是本節點負責的群組先轉交擁有者，由其送回後才送給成員
+        if (cluster != null && !cluster.owns(group.name())) {
+            cluster.post(group.name(), sender.userName, frame.payload());
+            return;
+        }
+        publish(group, frame, sender, sender.userName);
+    }
+
+    /**
+     * 在負責此群組的節點上寫入歷史記錄並送出群組訊息
+     *
+     * @param group      本節點負責的群組
+     * @param frame      群組訊息訊框（尚未標上序號）
+     * @param sender     本節點上的發送者（不會收到自己發送的訊息；由其他節點轉交時為 null）
+     * @param senderName 發送者名稱（其他節點依此略過發送者）
+     */
+    private static void publish(ChatGroup group, Frame frame, ClientHandler sender, String senderName) {
+        long start = System.nanoTime();
+        // 先寫入群組歷史記錄並取得序號，確保收到訊息的成員接著查詢 HISTORY 時一定看得到
+        frame = group.history.append(frame);
+        // 遍歷群組內的所有客戶端（只有本分片會修改成員集合，不需要複製）
+        for (ClientHandler c : group.members()) {
             try {
                 // 不將訊息發送給發送者本人
                 if (c != sender) {
-                    c.out.writeUTF(message);
+                    c.send(frame);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+            } catch (IOException ignored) {
+                // 連線已中斷的成員：斷線處理排在其先前的指令之後，稍後才會離開群組
             }
         }
-        // 將訊息加入群組歷史記錄
-        List<String> history = groupHistory.get(group);
-        history.add(message);
-        // 如果歷史記錄超過 50 條，移除最舊的記錄（保持 FIFO）
-        if (history.size() > 50) {
-            history.remove(0);
+        // 每個訂閱此群組的節點各送一次，由該節點送給自己的成員
+        if (cluster != null) {
+            cluster.publish(group, senderName, frame);
         }
+        Metrics.GROUP_FANOUT.record(System.nanoTime() - start);
     }
 
     /**
      * 全域廣播訊息
      * 將訊息傳送給所有連線的客戶端（無論他們在哪個群組或大廳）
      * 用於系統通知、管理員公告等
+     * 扇出交給各分片同時進行，呼叫端不等待；扇出時間記錄到最後一個分區送完為止
      * 
      * @param message 要廣播的訊息
+     * @return 所有本地客戶端都已排入時完成
+     */
+    static CompletableFuture<Void> broadcastAll(String message) {
+        long start = System.nanoTime();
+        Frame frame = serverBroadcast(message);
+        CompletableFuture<Void> done = sendAll(frame, false);
+        // 叢集模式下同時送到其他節點，由各節點送給自己的客戶端
+        if (cluster != null && frame != null) {
+            cluster.announce(frame, false);
+        }
+        return done.thenRun(() -> Metrics.GLOBAL_FANOUT.record(System.nanoTime() - start));
+    }
+
+    /**
+     * 全域廣播上線／離開通知（由 Presence 每個合併間隔最多呼叫一次）
+     * 與 broadcastAll 相同，但略過以 PRESENCE OFF 關閉通知的客戶端
+     *
+     * @param message 要廣播的通知
+     */
+    static void broadcastPresence(String message) {
+        long start = System.nanoTime();
+        Frame frame = serverBroadcast(message);
+        CompletableFuture<Void> done = sendAll(frame, true);
+        if (cluster != null && frame != null) {
+            cluster.announce(frame, true);
+        }
+        done.thenRun(() -> Metrics.GLOBAL_FANOUT.record(System.nanoTime() - start));
+    }
+
+    /**
+     * @return 全伺服器上線／離開通知的批次合併（效能測試直接呼叫 flush）
+     */
+    static Presence presence() {
+        return presence;
+    }
+
+    /**
+     * 加上 [Server Broadcast] 前綴以便客戶端識別，只編碼一次
+     *
+     * @param message 要廣播的訊息
+     * @return 廣播訊框；編碼失敗時回傳 null
+     */
+    private static Frame serverBroadcast(String message) {
+        try {
+            return Frame.of("[Server Broadcast] " + message);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 將訊框送給此伺服器上所有連線的客戶端
+     * 每個分區由所屬的分片逐一排入輸出佇列，各分區同時進行（不等待完成）
+     *
+     * @param frame    要送出的訊框（null 時不做任何事）
+     * @param presence 是否為上線／離開通知（略過關閉通知的客戶端）
+     * @return 所有客戶端都已排入時完成
      */
-    private static void broadcastAll(String message) {
-        // 遍歷所有連線的客戶端
-        for (ClientHandler c : allClients) {
+    private static CompletableFuture<Void> sendAll(Frame frame, boolean presence) {
+        if (frame == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return fanOut.forEach(c -> {
             try {
-                // 檢查輸出流是否有效（避免已斷線的客戶端造成錯誤）
-                if (c.out != null) {
-                    // 加上 [Server Broadcast] 前綴以便客戶端識別
-                    c.out.writeUTF("[Server Broadcast] " + message);
+                // 檢查連線是否已建立（避免尚未初始化的客戶端造成錯誤）
+                if (c.conn != null && (!presence || c.presenceNotices)) {
+                    c.send(frame);
                 }
             } catch (IOException ignored) {
                 // 忽略個別客戶端的 IO 錯誤，繼續處理其他客戶端
             }
-        }
+        });
     }
 
     /**
-     * 更新等待佇列中所有客戶端的排隊位置資訊
-     * 當有新客戶端加入等待佇列或佇列順序變動時呼叫
+     * 其他節點訂閱本節點負責的群組：記錄訂閱者並補送目前的歷史記錄
+     * （此方法與以下 on* 方法由 Cluster 的接收執行緒呼叫，再交給群組所屬的分片執行；
+     * 同一個節點送來的同一個群組的訊息依序處理）
+     *
+     * @param name 群組名稱
+     * @param node 訂閱的節點編號
      */
-    private static void updateWaitingQueuePositions() {
-        int pos = 1;
-        // 遍歷等待佇列中的所有客戶端
-        for (ClientHandler c : waitingQueue) {
+    static void onSubscribe(String name, int node) {
+        if (!name.equals(GroupRegistry.normalize(name)) || !cluster.owns(name)) {
+            return;
+        }
+        groups.execute(name, () -> {
+            ChatGroup g;
             try {
-                // 告知客戶端當前在佇列中的位置
-                c.out.writeUTF("You are now in waiting queue position: " + pos);
-                pos++;
-            } catch (IOException e) {
+                g = groups.getOrCreate(name);
+            } catch (UncheckedIOException e) {
                 e.printStackTrace();
+                return;
             }
+            if (g == null) {
+                System.out.println("Too many groups, ignoring subscription to " + name + " from node " + node);
+                return;
+            }
+            g.subscribe(node);
+            cluster.replay(g, node);
+        });
+    }
+
+    /**
+     * 其他節點取消訂閱：群組因此閒置時排定回收
+     */
+    static void onUnsubscribe(String name, int node) {
+        groups.execute(name, () -> {
+            ChatGroup g = groups.get(name);
+            if (g != null && g.unsubscribe(node)) {
+                groups.released(g);
+            }
+        });
+    }
+
+    /**
+     * 其他節點的接收連線中斷或重新建立：清除該節點的所有訂閱（重新連線後會重新訂閱）
+     * 在每個分片上排在該節點之後送來的訂閱之前執行
+     */
+    static void onNodeReset(int node) {
+        groups.forEach(g -> {
+            if (g.unsubscribe(node)) {
+                groups.released(g);
+            }
+        });
+    }
+
+    /**
+     * 其他節點重新啟動：清除該節點負責的群組在本地的歷史副本，由重新訂閱時的補送重建
+     */
+    static void onNodeRestart(int node) {
+        groups.forEach(g -> {
+            if (cluster.owner(g.name()) == node) {
+                g.history.clear();
+            }
+        });
+    }
+
+    /**
+     * 其他節點轉交的群組訊息：由本節點（擁有者）編上序號後送出
+     *
+     * @param name    群組名稱
+     * @param sender  發送者名稱
+     * @param content 訊息內容
+     */
+    static void onPost(String name, String sender, ByteBuffer content) {
+        if (!cluster.owns(name) || GroupRegistry.normalize(name) == null) {
+            return;
         }
+        groups.execute(name, () -> {
+            ChatGroup g = groups.get(name);
+            if (g == null) {
+                // 訂閱一定先於訊息送達；沒有此群組表示已被回收，訊息不再有接收者
+                return;
+            }
+            publish(g, Frame.wrap(Protocol.OP_CHAT, g.id(), 0, content), null, sender);
+        });
     }
 
     /**
-     * 嘗試讓等待佇列中的客戶端自動補進有空位的群組
-     * 當有客戶端離開群組時，此方法會被呼叫以自動遞補等待佇列中最早排隊的客戶端
-     * 
-     * @param groupFreed 有空位的群組名稱
-     */
-    private static void tryAutoJoin(String groupFreed) {
-        // 使用迭代器遍歷等待佇列（支援在遍歷過程中移除元素）
-        Iterator<ClientHandler> it = waitingQueue.iterator();
-        while (it.hasNext()) {
-            ClientHandler c = it.next();
-            // 跳過沒有目標群組的客戶端（理論上不應該發生）
-            if (c.targetGroup == null)
-                continue;
-            // 檢查此客戶端是否在等待加入該有空位的群組
-            if (c.targetGroup.equals(groupFreed)) {
-                List<ClientHandler> g = groups.get(groupFreed);
-                // 確認群組仍有空位（雙重檢查，避免競爭條件）
-                if (g.size() < MAX_GROUP_SIZE) {
-                    // 將客戶端加入群組
-                    g.add(c);
-                    // 更新客戶端狀態
-                    c.currentGroup = groupFreed;
-                    c.inLobby = false;
-                    // 從等待佇列中移除
-                    it.remove();
-                    try {
-                        // 清空客戶端終端畫面
-                        c.out.writeUTF("\033[H\033[2J");
-                        // 通知客戶端已自動加入群組
-                        c.out.writeUTF("A slot in " + groupFreed + " is now free! You have been auto-joined.\n");
-                        // 廣播給群組其他成員：有新成員自動加入
-                        broadcast(groupFreed, c.userName + " joined " + groupFreed + " (auto from waiting).", c);
-                    } catch (IOException e) {
-                        e.printStackTrace();
+     * 擁有者送來已編上序號的群組訊息：寫入本地副本，即時訊息再送給本節點的成員
+     *
+     * @param name    群組名稱
+     * @param sender  發送者名稱（不會收到自己發送的訊息）
+     * @param seq     擁有者編上的序號
+     * @param content 訊息內容
+     * @param live    false 表示訂閱時補送的歷史記錄，只寫入副本
+     */
+    static void onPublish(String name, String sender, long seq, ByteBuffer content, boolean live) {
+        groups.execute(name, () -> {
+            ChatGroup g = groups.get(name);
+            if (g == null) {
+                return;
+            }
+            Frame frame = Frame.wrap(Protocol.OP_CHAT, g.id(), seq, content);
+            // 重新連線後重送的訊息已在副本中，不再送給成員
+            if (!g.history.replicate(frame) || !live) {
+                return;
+            }
+            for (ClientHandler c : g.members()) {
+                try {
+                    if (!sender.equals(c.userName)) {
+                        c.send(frame);
                     }
-                    // 只補一位，找到後即停止
-                    break;
+                } catch (IOException ignored) {
+                    // 連線已中斷的成員稍後才會離開群組
                 }
             }
+        });
+    }
+
+    /**
+     * 其他節點的全域廣播：送給本節點的所有客戶端
+     *
+     * @param payload 已加上前綴的廣播內容
+     */
+    static void onAnnounce(ByteBuffer payload, boolean presence) {
+        sendAll(Frame.wrap(Protocol.OP_TEXT, 0, 0, payload), presence);
+    }
+
+    /**
+     * 排定等待佇列的排隊位置通知（在群組所屬的分片上呼叫）
+     * 當有人從佇列中取消或遞補進群組（其後的客戶端往前移）時呼叫；
+     * 同一個群組在通知間隔內的多次變動只會合併成一次通知
+     *
+     * @param group 等待佇列所屬的群組
+     */
+    private static void updateWaitingQueuePositions(ChatGroup group) {
+        if (group.waitingCount() > 0 && !group.positionsDirty) {
+            group.positionsDirty = true;
+            groups.schedule(group, () -> sendWaitingQueuePositions(group), config.queueNotifyInterval);
+        }
+    }
+
+    /**
+     * 通知排隊位置有變動的客戶端（到期後在群組所屬的分片上執行）
+     *
+     * @param group 等待佇列所屬的群組
+     */
+    static void sendWaitingQueuePositions(ChatGroup group) {
+        group.positionsDirty = false;
+        for (ChatGroup.Waiter w : group.positionChanges()) {
+            try {
+                // 告知客戶端當前在佇列中的位置
+                w.member.send("You are now in waiting queue position: " + w.notifiedPosition);
+            } catch (IOException ignored) {
+                // 連線已中斷的等待者稍後由斷線處理移出佇列
+            }
+        }
+    }
+
+    /**
+     * 通知自動補進群組的客戶端
+     * 當有客戶端離開群組時，ChatGroup.leave 會把空出的名額直接交給
+     * 等待佇列中最早排隊的客戶端，此方法負責更新其狀態並通知相關成員
+     * 排隊中的客戶端的指令都在此群組的分片上執行，因此可以直接修改其狀態
+     *
+     * @param groupFreed 有空位的群組
+     * @param joined     遞補進群組的客戶端（沒有人遞補時為 null）
+     */
+    private static void tryAutoJoin(ChatGroup groupFreed, ClientHandler joined) {
+        if (joined != null) {
+            // 更新客戶端狀態（先設定所在群組再清除排隊憑證，其他執行緒依序讀取時不會兩者皆空）
+            joined.currentGroup = groupFreed;
+            joined.waiting = null;
+            joined.inLobby = false;
+            try {
+                // 清空客戶端終端畫面
+                joined.send("\033[H\033[2J");
+                // 通知客戶端已自動加入群組
+                joined.send("A slot in " + groupFreed.name() + " is now free! You have been auto-joined.\n");
+            } catch (IOException ignored) {
+                // 連線已中斷的客戶端稍後由斷線處理離開群組，名額再交給下一位
+            }
+            // 廣播給群組其他成員：有新成員自動加入
+            broadcast(groupFreed, joined.userName + " joined " + groupFreed.name() + " (auto from waiting).", joined);
+            joined.joinedSeq = groupFreed.history.lastSeq();
+            // 剩餘的等待客戶端都往前移一位
+            updateWaitingQueuePositions(groupFreed);
+        }
+        // 沒有人遞補且群組已空：排定閒置回收
+        groups.released(groupFreed);
+    }
+
+    /**
+     * 將客戶端從所在群組與等待佇列中移除（在該群組所屬的分片上呼叫）
+     * 通知原群組其他成員，並讓等待佇列中的下一位遞補空出的名額
+     *
+     * @param c            要移除的客戶端
+     * @param disconnected 是否為異常斷線（決定通知訊息的內容）
+     * @return 離開的群組；原本不在群組內時回傳 null
+     */
+    static ChatGroup removeMember(ClientHandler c, boolean disconnected) {
+        ChatGroup.Waiter w = c.waiting;
+        if (w != null) {
+            // 仍在排隊：直接取消，原佇列後面的客戶端往前移一位
+            c.waiting = null;
+            w.group.cancel(w);
+            updateWaitingQueuePositions(w.group);
+            return null;
+        }
+        ChatGroup group = c.currentGroup;
+        if (group == null) {
+            return null;
+        }
+        c.currentGroup = null;
+        ClientHandler joined = group.leave(c);
+        // 廣播給群組其他成員：客戶端已離開
+        broadcast(group, c.userName + (disconnected ? " disconnected." : " left " + group.name() + "."), c);
+        // 讓等待佇列中的客戶端自動補進該群組
+        tryAutoJoin(group, joined);
+        return group;
+    }
+
+    /**
+     * 一次斷線後的保留記錄（每次保留各自建立，到期時只移除同一次的記錄，不會誤刪續接後再次斷線的保留）
+     */
+    private static final class ParkedSession {
+        final ClientHandler session;
+
+        ParkedSession(ClientHandler session) {
+            this.session = session;
         }
-        // 更新剩餘等待客戶端的排隊位置資訊
-        updateWaitingQueuePositions();
     }
 
     /**
      * 客戶端處理器類別
-     * 每個連線的客戶端都會有一個獨立的 ClientHandler 執行緒
+     * 執行緒模式下每個連線的客戶端都會有一個獨立的 ClientHandler 執行緒；
+     * NIO 模式下則由事件迴圈呼叫 onConnect / handleCommand / handleDisconnect
      * 負責處理該客戶端的訊息接收、指令處理、狀態管理等
+     *
+     * 讀取端只負責解出指令，指令本身交給相關群組所屬的分片執行（見 GroupRegistry）：
+     * 同一個客戶端的指令依到達順序一次執行一個，前一個指令的所有步驟完成後才開始下一個；
+     * 跨群組的指令（CHANGE_、排隊中改 JOIN_ 其他群組）分成數個步驟，依序交給各群組的分片。
      */
-    private static class ClientHandler extends Thread {
-        // 與客戶端的 Socket 連線
+    static class ClientHandler implements Runnable {
+        /**
+         * 在某個分片上執行的一個指令步驟
+         */
+        @FunctionalInterface
+        private interface Step {
+            void run() throws IOException;
+        }
+
+        // 與客戶端的 Socket 連線（僅執行緒模式使用）
         private Socket socket;
-        // 資料輸入流（用於接收客戶端訊息）
+        // 資料輸入流（用於接收客戶端訊息，僅執行緒模式使用）
         private DataInputStream in;
-        // 資料輸出流（用於發送訊息給客戶端）
-        private DataOutputStream out;
+        // 輸出連線（用於發送訊息給客戶端）
+        private volatile ChatConnection conn;
         // 客戶端的使用者名稱（格式：User_1, User_2, ...）
         private String userName;
-        // 客戶端當前所在的群組名稱（null 表示在大廳）
-        private String currentGroup = null;
-        // 客戶端想要加入的目標群組（用於等待佇列機制）
-        private String targetGroup = null;
+        // 客戶端當前所在的群組（null 表示在大廳；由群組所屬的分片設定，遞補時也一樣）
+        private volatile ChatGroup currentGroup = null;
+        // 加入目前群組時該群組歷史記錄的最後序號（續接時最多從此補送；只由群組所屬的分片使用）
+        private long joinedSeq;
+        // 目前的排隊憑證（用於等待佇列機制，null 表示沒有在排隊）
+        private volatile ChatGroup.Waiter waiting = null;
+        // 不屬於任何群組的指令所使用的分片（依連線順序分散）
+        private int homeShard;
+        // 全域廣播的分區（加入所有客戶端列表時分配，之後不變）
+        private int fanOutPartition;
+        // 使用者編號（加入所有客戶端列表時依連線順序分配）
+        private int userNumber;
+        // 尚未開始的指令與尚未完成的指令數（包含正在執行的一個）
+        private final Queue<Step> commands = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCommands = new AtomicInteger();
+        // 目前步驟完成後要交棒的下一個步驟與其群組（只由正在執行此客戶端步驟的分片執行緒使用）
+        private String nextGroup;
+        private Step nextStep;
+        // 已收到 EXIT! 或已進行斷線處理，之後的斷線不再重複處理（由讀取目前連線的執行緒使用）
+        private boolean exiting = false;
+        // 工作階段的續接憑證（協商了 resume 功能才有；null 表示斷線後直接離開）
+        private String resumeToken;
+        // 此連線已續接到的原本工作階段：之後讀到的指令與斷線都交給它處理（只由讀取此連線的執行緒使用）
+        private ClientHandler resumedAs;
+        // 是否接收全伺服器的上線／離開通知（PRESENCE OFF 關閉）
+        private volatile boolean presenceNotices = true;
         // 客戶端是否在大廳（true：在大廳，false：在群組內）
-        private boolean inLobby = true;
+        private volatile boolean inLobby = true;
+        // 讀取方向採用的協定版本（握手後才可能改變；只由讀取此連線的執行緒使用）
+        private int version = Protocol.LEGACY;
+        // 握手時協商出的功能旗標
+        private volatile int features = 0;
+        // 聊天訊息的前綴（"[User_1]: "），二進位協定下直接接上客戶端送來的內容
+        private Frame chatPrefix;
+        // 此客戶端的聊天訊息與 BROADCAST 速率限制（null 表示不限制），以及超過限制時通知的頻率（每秒最多一次）
+        private final TokenBucket chatLimit = TokenBucket.of(config.chatRate, config.chatBurst);
+        private final TokenBucket broadcastLimit = TokenBucket.of(config.broadcastRate, config.broadcastBurst);
+        private final TokenBucket throttleNotice = new TokenBucket(1, 1);
+        // 進行中的上傳（null 表示沒有）：由分片接受上傳時建立，之後只由讀取端寫入，完成或放棄時清除
+        private volatile FileStore.Upload upload;
+        // 執行緒模式下讀取二進位訊框內容的緩衝區（重複使用，不足時才加大）
+        private byte[] payloadBytes = new byte[256];
+        private ByteBuffer payloadView = ByteBuffer.wrap(payloadBytes);
 
         /**
          * 建構子：初始化客戶端處理器
@@ -251,68 +883,698 @@ public class Server {
             this.socket = socket;
         }
 
+        /**
+         * 建構子：以已建立的連線初始化客戶端處理器（NIO 模式）
+         *
+         * @param conn 與客戶端的連線
+         */
+        ClientHandler(ChatConnection conn) {
+            this.conn = conn;
+        }
+
         /**
          * 客戶端處理執行緒的主迴圈
          * 負責接收客戶端訊息並進行相應處理
          */
         public void run() {
+            // 是否由 EXIT! 正常結束（斷線清理改由 handleExit 進行）
+            boolean exited = false;
             try {
                 // 建立資料輸入輸出流
-                in = new DataInputStream(socket.getInputStream());
-                out = new DataOutputStream(socket.getOutputStream());
-                // 根據在 allClients 列表中的位置分配使用者名稱
-                userName = "User_" + (allClients.indexOf(this) + 1);
-
-                // 將客戶端加入大廳（顯示歡迎訊息和可用指令）
-                enterLobby();
+                in = new DataInputStream(Metrics.countIn(socket.getInputStream()));
+                conn = new SocketConnection(socket, newOutboundQueue(), clientExecutor);
 
-                // 廣播新客戶端連線訊息給所有線上客戶端
-                // 注意：必須在 out 建立後才能廣播，否則會出錯
-                broadcastAll(userName + " has connected to the server.");
+                // 進入大廳並通知所有客戶端（大廳畫面的多個訊框合併成一次寫入）
+                conn.cork();
+                try {
+                    onConnect();
+                } finally {
+                    conn.uncork();
+                }
 
                 // 主訊息處理迴圈：持續接收並處理客戶端訊息
                 while (true) {
-                    // 從客戶端讀取訊息（阻塞式，直到收到訊息）
-                    String msg = in.readUTF();
-
-                    // 處理 EXIT! 指令：客戶端主動退出
-                    if (msg.equalsIgnoreCase("EXIT!")) {
-                        handleExit();
+                    // 從客戶端讀取訊息（阻塞式，直到收到訊息）；握手後改以二進位協定讀取
+                    boolean more = version == Protocol.LEGACY ? handleCommand(in.readUTF()) : readBinaryCommand();
+                    if (!more) {
+                        exited = true;
                         break;
                     }
-                    // 處理 JOIN_Group_X 指令：加入指定群組
-                    else if (msg.startsWith("JOIN_")) {
-                        handleJoin(msg.substring(5)); // 提取群組名稱
-                    }
-                    // 處理 CHANGE_Group_X 指令：切換到另一個群組
-                    else if (msg.startsWith("CHANGE_")) {
-                        handleChange(msg.substring(7)); // 提取新群組名稱
-                    }
-                    // 處理 LEAVE 指令：離開當前群組回到大廳
-                    else if (msg.equalsIgnoreCase("LEAVE")) {
-                        handleLeave();
-                    }
-                    // 處理 HISTORY 指令：查看當前群組的訊息歷史
-                    else if (msg.equalsIgnoreCase("HISTORY")) {
-                        handleHistory();
+                }
+            } catch (IOException e) {
+                // 連線中斷（客戶端異常斷線）或訊框格式錯誤，由 finally 進行斷線處理
+            } finally {
+                // 包含非預期的執行期例外：一律釋放連線名額、群組名額與寫出執行緒
+                if (!exited) {
+                    handleDisconnect();
+                }
+            }
+        }
+
+        /**
+         * 從輸入流讀取一個二進位訊框並處理（執行緒模式）
+         * 內容讀入重複使用的緩衝區，不為每個指令配置物件
+         *
+         * @return 連線是否繼續
+         * @throws IOException 連線中斷、訊框格式錯誤或超過長度上限時拋出
+         */
+        private boolean readBinaryCommand() throws IOException {
+            int opcode = in.readUnsignedByte();
+            // 客戶端送來的群組編號與序號目前不使用（聊天訊息一律送往所在群組）
+            Protocol.readVarint(in);
+            Protocol.readVarint(in);
+            int len = Protocol.readLength(in, config.maxFrameSize);
+            if (len > payloadBytes.length) {
+                payloadBytes = new byte[(int) Math.min(config.maxFrameSize, Math.max(len, 2L * payloadBytes.length))];
+                payloadView = ByteBuffer.wrap(payloadBytes);
+            }
+            in.readFully(payloadBytes, 0, len);
+            payloadView.limit(len).position(0);
+            return handleCommand(opcode, payloadView);
+        }
+
+        /**
+         * 連線建立後的初始化
+         * 分配使用者名稱、進入大廳並廣播上線訊息
+         */
+        void onConnect() throws IOException {
+            // 以連線時分配的使用者編號命名
+            // 叢集模式下加上節點編號，讓名稱在整個叢集中不重複
+            int index = userNumber;
+            userName = "User_" + index + (cluster != null ? "@" + cluster.nodeId() : "");
+            homeShard = index;
+            chatPrefix = Frame.of("[" + userName + "]: ");
+
+            // 將客戶端加入大廳（顯示歡迎訊息和可用指令）
+            enterLobby();
+
+            // 廣播新客戶端連線訊息給所有線上客戶端（同一個合併間隔內的上線／離開合併成一則）
+            // 注意：必須在 conn 建立後才能廣播，否則會出錯
+            presence.connected(userName);
+        }
+
+        /**
+         * 處理一則客戶端訊息
+         * 在讀取端只做解析，指令排入佇列後由分片執行
+         *
+         * @param msg 客戶端送來的訊息
+         * @return 連線是否繼續（收到 EXIT! 後回傳 false）
+         */
+        boolean handleCommand(String msg) throws IOException {
+            ClientHandler session = resumedAs;
+            if (session != null) {
+                return session.handleCommand(msg);
+            }
+            // 處理握手訊息：協商改用二進位協定（可同時要求續接先前的工作階段）
+            if (msg.startsWith(Protocol.HELLO)) {
+                Metrics.command(Metrics.Command.HELLO);
+                handleHello(Protocol.helloVersion(msg), Protocol.helloFeatures(msg), Protocol.helloResume(msg));
+            }
+            // 處理 EXIT! 指令：客戶端主動退出
+            else if (msg.equalsIgnoreCase("EXIT!")) {
+                Metrics.command(Metrics.Command.EXIT);
+                exiting = true;
+                submit(this::handleExit);
+                return false;
+            }
+            // 處理 JOIN_Group_X 指令：加入指定群組
+            else if (msg.startsWith("JOIN_")) {
+                Metrics.command(Metrics.Command.JOIN);
+                String groupName = msg.substring(5); // 提取群組名稱
+                submit(() -> handleJoin(groupName));
+            }
+            // 處理 CHANGE_Group_X 指令：切換到另一個群組
+            else if (msg.startsWith("CHANGE_")) {
+                Metrics.command(Metrics.Command.CHANGE);
+                String groupName = msg.substring(7); // 提取新群組名稱
+                submit(() -> handleChange(groupName));
+            }
+            // 處理 LEAVE 指令：離開當前群組回到大廳
+            else if (msg.equalsIgnoreCase("LEAVE")) {
+                Metrics.command(Metrics.Command.LEAVE);
+                submit(this::handleLeave);
+            }
+            // 處理 HISTORY 指令：查看當前群組的訊息歷史（可附上游標，見 HistoryQuery）
+            else if (msg.equalsIgnoreCase("HISTORY") || msg.regionMatches(true, 0, "HISTORY ", 0, 8)) {
+                Metrics.command(Metrics.Command.HISTORY);
+                submitHistory(msg.substring(7));
+            }
+            // 處理 PRESENCE ON / OFF 指令：開啟或關閉全伺服器的上線／離開通知
+            else if (msg.regionMatches(true, 0, "PRESENCE ", 0, 9)) {
+                Metrics.command(Metrics.Command.PRESENCE);
+                handlePresence(msg.substring(9).trim());
+            }
+            // 檔案分享只支援二進位協定（檔案內容不是 modified UTF-8 字串）
+            else if (msg.startsWith("SENDFILE ") || msg.startsWith("GETFILE ")) {
+                Metrics.command(msg.startsWith("SENDFILE ") ? Metrics.Command.UPLOAD : Metrics.Command.DOWNLOAD);
+                submit(() -> send("File transfer requires a client that supports the binary protocol."));
+            }
+            // 處理 BROADCAST 指令：全域廣播訊息（給所有客戶端）
+            else if (msg.startsWith("BROADCAST ")) {
+                Metrics.command(Metrics.Command.BROADCAST);
+                if (!broadcastThrottled()) {
+                    String message = "[User Broadcast] " + userName + ": " + msg.substring(10);
+                    submit(() -> broadcastAll(message));
+                }
+            }
+            // 其他訊息作為聊天訊息廣播到所在群組（群組編號到了群組的分片上才標上）
+            else {
+                Metrics.command(Metrics.Command.CHAT);
+                if (!throttled(chatLimit)) {
+                    handleChat(Frame.chat(0, "[" + userName + "]: " + msg));
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 處理一個二進位協定的指令（以 opcode 分派，不比對字串）
+         *
+         * @param opcode  指令種類
+         * @param payload 指令內容（只在此方法執行期間有效，之後呼叫端會重複使用此緩衝區）
+         * @return 連線是否繼續（收到 EXIT 後回傳 false）
+         */
+        boolean handleCommand(int opcode, ByteBuffer payload) throws IOException {
+            ClientHandler session = resumedAs;
+            if (session != null) {
+                return session.handleCommand(opcode, payload);
+            }
+            // 檔案內容是原始位元組，不檢查編碼也不計入指令次數，直接寫入進行中的上傳
+            if (opcode == Protocol.OP_FILE_DATA) {
+                receiveFileData(payload);
+                return true;
+            }
+            // 內容會原封不動轉送給其他客戶端，先確認舊協定的接收者能夠解析
+            if (!Frame.isValid(payload)) {
+                Metrics.command(Metrics.Command.INVALID);
+                submit(() -> send("Invalid message encoding."));
+                return true;
+            }
+            Metrics.command(command(opcode));
+            // 內容在排入佇列前複製（組成訊框或轉為字串），之後緩衝區可以重複使用
+            switch (opcode) {
+                case Protocol.OP_CHAT:
+                    // 聊天訊息：直接把內容接在前綴後面組成訊框，不經過 String
+                    if (!throttled(chatLimit)) {
+                        handleChat(Frame.chat(0, chatPrefix, payload));
                     }
-                    // 處理 BROADCAST 指令：全域廣播訊息（給所有客戶端）
-                    else if (msg.startsWith("BROADCAST ")) {
-                        broadcastAll("[User Broadcast] " + userName + ": " + msg.substring(10));
+                    break;
+                case Protocol.OP_JOIN:
+                    String joinName = Frame.text(payload);
+                    submit(() -> handleJoin(joinName));
+                    break;
+                case Protocol.OP_CHANGE:
+                    String changeName = Frame.text(payload);
+                    submit(() -> handleChange(changeName));
+                    break;
+                case Protocol.OP_LEAVE:
+                    submit(this::handleLeave);
+                    break;
+                case Protocol.OP_HISTORY:
+                    submitHistory(Frame.text(payload));
+                    break;
+                case Protocol.OP_BROADCAST:
+                    if (!broadcastThrottled()) {
+                        String message = "[User Broadcast] " + userName + ": " + Frame.text(payload);
+                        submit(() -> broadcastAll(message));
                     }
-                    // 如果客戶端在群組內，將訊息作為聊天訊息廣播到群組
-                    else if (currentGroup != null) {
-                        String formatted = "[" + userName + "]: " + msg;
-                        broadcast(currentGroup, formatted, this);
+                    break;
+                case Protocol.OP_PRESENCE:
+                    handlePresence(Frame.text(payload));
+                    break;
+                case Protocol.OP_UPLOAD:
+                    String uploadArgs = Frame.text(payload);
+                    submit(() -> beginUpload(uploadArgs));
+                    break;
+                case Protocol.OP_DOWNLOAD:
+                    String fileId = Frame.text(payload);
+                    submit(() -> handleDownload(fileId));
+                    break;
+                case Protocol.OP_EXIT:
+                    exiting = true;
+                    submit(this::handleExit);
+                    return false;
+                default:
+                    submit(() -> send("Unknown command."));
+            }
+            return true;
+        }
+
+        /**
+         * @return 二進位協定 opcode 對應的統計用指令種類
+         */
+        private static Metrics.Command command(int opcode) {
+            switch (opcode) {
+                case Protocol.OP_CHAT:
+                    return Metrics.Command.CHAT;
+                case Protocol.OP_JOIN:
+                    return Metrics.Command.JOIN;
+                case Protocol.OP_CHANGE:
+                    return Metrics.Command.CHANGE;
+                case Protocol.OP_LEAVE:
+                    return Metrics.Command.LEAVE;
+                case Protocol.OP_HISTORY:
+                    return Metrics.Command.HISTORY;
+                case Protocol.OP_BROADCAST:
+                    return Metrics.Command.BROADCAST;
+                case Protocol.OP_EXIT:
+                    return Metrics.Command.EXIT;
+                case Protocol.OP_PRESENCE:
+                    return Metrics.Command.PRESENCE;
+                case Protocol.OP_UPLOAD:
+                    return Metrics.Command.UPLOAD;
+                case Protocol.OP_DOWNLOAD:
+                    return Metrics.Command.DOWNLOAD;
+                default:
+                    return Metrics.Command.INVALID;
+            }
+        }
+
+        /**
+         * 排入一個指令（可由讀取端或任一分片呼叫）
+         * 沒有其他指令在執行時立即開始，否則等前面的指令全部完成
+         *
+         * @param command 指令的第一個步驟
+         */
+        private void submit(Step command) {
+            commands.add(command);
+            if (pendingCommands.getAndIncrement() == 0) {
+                start(commands.poll());
+            }
+        }
+
+        /**
+         * 在此客戶端相關的群組（排隊中或所在的群組；都沒有時為預設分片）所屬的分片上開始一個指令
+         * 此時前一個指令已經完成；相關群組只會被該群組自己的分片改變（遞補），因此不會選錯分片
+         */
+        private void start(Step command) {
+            ChatGroup.Waiter w = waiting;
+            ChatGroup group = w != null ? w.group : currentGroup;
+            if (group != null) {
+                groups.execute(group.name(), () -> runStep(command));
+            } else {
+                groups.execute(homeShard, () -> runStep(command));
+            }
+        }
+
+        /**
+         * 目前步驟完成後，在指定群組所屬的分片上繼續執行（跨群組的指令以此依序交棒）
+         *
+         * @param group 下一個步驟要存取的群組名稱
+         * @param step  下一個步驟
+         */
+        private void handOff(String group, Step step) {
+            nextGroup = group;
+            nextStep = step;
+        }
+
+        /**
+         * 在目前的分片上執行一個步驟，之後交棒給下一個步驟或開始下一個指令
+         * 步驟產生的回覆合併成一次寫入
+         */
+        private void runStep(Step step) {
+            // 續接工作階段的步驟會更換連線，結束時解除暫停的是開始時暫停的同一個連線
+            ChatConnection corked = conn;
+            corked.cork();
+            try {
+                step.run();
+            } catch (IOException ignored) {
+                // 送出失敗代表連線已中斷，由讀取端進行斷線處理
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                corked.uncork();
+            }
+            Step next = nextStep;
+            if (next != null) {
+                String group = nextGroup;
+                nextStep = null;
+                nextGroup = null;
+                groups.execute(group, () -> runStep(next));
+            } else if (pendingCommands.decrementAndGet() > 0) {
+                start(commands.poll());
+            }
+        }
+
+        /**
+         * 處理聊天訊息：在所在群組的分片上標上群組編號後廣播
+         *
+         * @param frame 已組好的聊天訊框（群組編號尚未標上）
+         */
+        private void handleChat(Frame frame) {
+            submit(() -> {
+                ChatGroup group = currentGroup;
+                if (group != null) {
+                    // 群組的速率限制在群組的分片上檢查，多人同時洗版也不會拖慢同一分片上的其他群組
+                    if (group.chatLimit == null || group.chatLimit.tryTake()) {
+                        broadcast(group, frame.withGroup(group.id()), this);
+                    } else {
+                        Metrics.THROTTLED.increment();
+                        if (throttleNotice.tryTake()) {
+                            send(group.name() + " is too busy, message dropped.");
+                        }
                     }
-                    // 如果客戶端不在群組內，提示需要先加入群組
-                    else {
-                        out.writeUTF("You are not in any group. Use JOIN_Group_X to chat.");
+                } else {
+                    send("You are not in any group. Use JOIN_Group_X to chat.");
+                }
+            });
+        }
+
+        /**
+         * 處理 PRESENCE 指令：開啟或關閉全伺服器的上線／離開通知（群組內的加入、離開訊息不受影響）
+         *
+         * @param arg "on" 或 "off"（不分大小寫）
+         */
+        private void handlePresence(String arg) {
+            if (arg.equalsIgnoreCase("on") || arg.equalsIgnoreCase("off")) {
+                boolean on = arg.equalsIgnoreCase("on");
+                presenceNotices = on;
+                submit(() -> send("Server-wide presence notifications " + (on ? "enabled." : "disabled.")));
+            } else {
+                submit(() -> send("Usage: PRESENCE ON | PRESENCE OFF"));
+            }
+        }
+
+        /**
+         * 檢查此客戶端的速率限制（在讀取端呼叫，超過限制的訊息不會排入指令佇列）
+         * 超過限制時捨棄訊息，並以每秒最多一次的頻率通知客戶端
+         *
+         * @param bucket 要取用的權杖桶（null 表示不限制）
+         * @return true 表示超過限制，呼叫端應捨棄這則訊息
+         */
+        private boolean throttled(TokenBucket bucket) {
+            if (bucket == null || bucket.tryTake()) {
+                return false;
+            }
+            Metrics.THROTTLED.increment();
+            if (throttleNotice.tryTake()) {
+                submit(() -> send("You are sending messages too fast, message dropped."));
+            }
+            return true;
+        }
+
+        /**
+         * @return BROADCAST 是否超過此客戶端或整個節點的速率限制
+         */
+        private boolean broadcastThrottled() {
+            return throttled(broadcastLimit) || throttled(globalBroadcastLimit);
+        }
+
+        /**
+         * 處理握手訊息
+         * 採用雙方都支援的最高版本與功能並以舊協定回覆；之後讀取方向立即改用新版本，
+         * 寫出方向則在送出回覆後才切換（回覆之前排入的訊息仍以舊協定送出）
+         * 協商了續接功能時，附上有效憑證的連線改為續接原本的工作階段，否則發給此工作階段新的憑證
+         *
+         * @param requested 客戶端支援的最高版本
+         * @param offered   客戶端支援的功能旗標
+         * @param resume    續接要求（"<憑證>:<群組編號>:<最後收到的序號>"；null 表示新的工作階段）
+         */
+        private void handleHello(int requested, int offered, String resume) throws IOException {
+            int agreed = Math.min(requested, Protocol.VERSION);
+            int supported = 0;
+            if (agreed > Protocol.LEGACY) {
+                // 壓縮與續接只用於二進位協定，伺服器可用 --compression-threshold=0、--resume-grace=0 關閉
+                supported |= config.compressionThreshold > 0 ? Protocol.FEATURE_DEFLATE : 0;
+                supported |= config.resumeGrace > 0 ? Protocol.FEATURE_RESUME : 0;
+            }
+            version = agreed;
+            features = offered & supported;
+            Frame hello = Frame.hello(agreed, features);
+            if ((features & Protocol.FEATURE_RESUME) == 0) {
+                // 回覆排在先前指令的回覆之後送出
+                submit(() -> send(hello));
+                return;
+            }
+            if (resume != null && resumeSession(resume, hello)) {
+                return;
+            }
+            resumeToken = newToken();
+            Frame session = Frame.of(Protocol.OP_SESSION, 0, resumeToken);
+            submit(() -> {
+                send(hello);
+                send(session);
+                if (resume != null) {
+                    send("Session expired, starting a new session.");
+                }
+            });
+        }
+
+        /**
+         * @return 新的續接憑證（128 位元亂數）
+         */
+        private static String newToken() {
+            byte[] bytes = new byte[16];
+            tokens.nextBytes(bytes);
+            StringBuilder sb = new StringBuilder(32);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        }
+
+        /**
+         * 續接保留中的工作階段（在讀取此連線的執行緒上呼叫）
+         * 取出保留記錄後，此連線之後的指令與斷線都轉交原本的工作階段；此連線在 onConnect 時取得的
+         * 暫時身分直接捨棄（不廣播離線）。連線的更換與漏掉訊息的補送排入原本工作階段的指令佇列，
+         * 在其群組的分片上執行：換線之前送出的群組訊息都已寫入歷史記錄，換線之後的直接送到新連線，
+         * 因此補送的訊息不會重複也不會遺漏
+         *
+         * @param resume 續接要求（"<憑證>:<群組編號>:<最後收到的序號>"）
+         * @param hello  握手回覆
+         * @return 是否續接成功（false 表示憑證無效或已過期）
+         */
+        private boolean resumeSession(String resume, Frame hello) {
+            String[] parts = resume.split(":");
+            int groupId;
+            long lastSeq;
+            try {
+                groupId = Integer.parseInt(parts[1]);
+                lastSeq = Long.parseLong(parts[2]);
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                return false;
+            }
+            ParkedSession parked = parkedSessions.remove(parts[0]);
+            if (parked == null) {
+                return false;
+            }
+            ClientHandler session = parked.session;
+            resumedAs = session;
+            removeClient(this);
+            session.features = features;
+            session.exiting = false;
+            ChatConnection newConn = conn;
+            session.submit(() -> session.resume(newConn, hello, groupId, lastSeq));
+            return true;
+        }
+
+        /**
+         * 換到新的連線並補送漏掉的群組訊息（在工作階段相關群組的分片上執行）
+         *
+         * @param newConn 新的連線
+         * @param hello   握手回覆（新連線的寫出方向在送出後改用二進位協定）
+         * @param groupId 客戶端最後收到的訊息所屬的群組編號
+         * @param lastSeq 客戶端最後收到的序號
+         */
+        private void resume(ChatConnection newConn, Frame hello, int groupId, long lastSeq) throws IOException {
+            newConn.cork();
+            try {
+                conn = newConn;
+                send(hello);
+                send(Frame.of(Protocol.OP_SESSION, 0, resumeToken).withSeq(1));
+                ChatGroup group = currentGroup;
+                ChatGroup.Waiter w = waiting;
+                if (group == null) {
+                    send("Session resumed as " + userName
+                            + (w != null ? ", waiting for " + w.group.name() + "." : " in the Lobby."));
+                    return;
+                }
+                // 從客戶端最後收到的序號之後補送；客戶端還沒收到這個群組的訊息（例如斷線期間才遞補進來）
+                // 時從加入群組時開始。客戶端自己發送的聊天訊息不會送給自己，補送時也略過
+                HistoryRing history = group.history;
+                long after = group.id() == groupId ? Math.max(lastSeq, joinedSeq) : joinedSeq;
+                List<Frame> retained = history.since(after, config.resumeReplayLimit);
+                List<Frame> missed = new ArrayList<>(retained.size());
+                for (Frame frame : retained) {
+                    if (!frame.startsWith(chatPrefix)) {
+                        missed.add(frame);
                     }
                 }
+                List<Frame> batch = new ArrayList<>(missed.size() + 2);
+                batch.add(Frame.of("Session resumed as " + userName + " in " + group.name() + " ("
+                        + missed.size() + " missed messages)."));
+                long dropped = history.lastSeq() - after - retained.size();
+                if (dropped > 0) {
+                    batch.add(Frame.of(dropped + " earlier messages could not be replayed."));
+                }
+                batch.addAll(missed);
+                sendBatch(batch);
+            } finally {
+                newConn.uncork();
+            }
+        }
+
+        /**
+         * @return 讀取方向目前採用的協定版本（供 NIO 事件迴圈選擇解碼方式）
+         */
+        int protocolVersion() {
+            return version;
+        }
+
+        /**
+         * 傳送訊息給此客戶端
+         *
+         * @param message 要傳送的訊息
+         */
+        void send(String message) throws IOException {
+            conn.send(message);
+        }
+
+        /**
+         * 傳送已編碼的訊框給此客戶端（廣播時共用同一個訊框）
+         *
+         * @param frame 要傳送的訊框
+         */
+        void send(Frame frame) throws IOException {
+            conn.send(frame);
+        }
+
+        /**
+         * 處理上傳要求（在目前群組所屬的分片上執行）：建立檔案並回覆是否接受，之後的 OP_FILE_DATA 由讀取端直接寫入該檔案
+         * 只檢查當下是否在群組中；上傳完成時再以當時所在的群組為準
+         *
+         * @param args "<大小> <檔名>"
+         */
+        private void beginUpload(String args) throws IOException {
+            int space = args.indexOf(' ');
+            long size = -1;
+            if (space > 0 && space < args.length() - 1) {
+                try {
+                    size = Long.parseLong(args.substring(0, space));
+                } catch (NumberFormatException ignored) {
+                    // 大小不是數字：視為格式錯誤
+                }
+            }
+            String reason = null;
+            if (size < 0) {
+                reason = "Usage: SENDFILE <path>";
+            } else if (upload != null) {
+                reason = "Another upload is still in progress.";
+            } else if (currentGroup == null) {
+                reason = "You are not in any group. Join a group before sending a file.";
+            } else if (config.maxFrameSize < FileTransfer.CHUNK_SIZE) {
+                reason = "File transfer is disabled on this server.";
+            } else {
+                try {
+                    upload = files.begin(args.substring(space + 1), size);
+                } catch (IllegalArgumentException e) {
+                    reason = e.getMessage();
+                } catch (IOException e) {
+                    System.out.println("Failed to store upload: " + e.getMessage());
+                    reason = "The server could not store the file.";
+                }
+            }
+            if (reason != null) {
+                send(reason);
+            }
+            send(Frame.of(Protocol.OP_UPLOAD, 0, "").withSeq(reason == null ? 1 : 0));
+            // 空檔案不會有任何 OP_FILE_DATA，立即完成
+            if (reason == null && upload.complete()) {
+                finishUpload();
+            }
+        }
+
+        /**
+         * 收到上傳的一段內容（在讀取端執行，直接從讀取緩衝區寫入檔案）
+         * 沒有進行中的上傳時（例如先前寫入失敗）略過，客戶端仍會把剩下的內容送完
+         *
+         * @param data 這一段的內容
+         */
+        private void receiveFileData(ByteBuffer data) {
+            FileStore.Upload current = upload;
+            if (current == null) {
+                return;
+            }
+            try {
+                current.write(data);
+            } catch (IOException e) {
+                upload = null;
+                current.abort();
+                submit(() -> send("Upload of " + current.name + " failed: " + e.getMessage()));
+                return;
+            }
+            if (current.complete()) {
+                finishUpload();
+            }
+        }
+
+        /**
+         * 上傳的內容已收齊：關閉檔案後交給所在群組的分片登錄並通知成員
+         */
+        private void finishUpload() {
+            FileStore.Upload done = upload;
+            upload = null;
+            try {
+                done.finish();
             } catch (IOException e) {
-                // 當連線中斷時（客戶端異常斷線），處理斷線邏輯
-                handleDisconnect();
+                done.abort();
+                submit(() -> send("Upload of " + done.name + " failed: " + e.getMessage()));
+                return;
+            }
+            submit(() -> shareFile(done));
+        }
+
+        /**
+         * 放棄進行中的上傳（EXIT 與斷線時在分片上執行，排在已收到的上傳要求之後）
+         */
+        private void abortUpload() {
+            if (upload != null) {
+                upload.abort();
+                upload = null;
+            }
+        }
+
+        /**
+         * 登錄上傳完成的檔案並通知群組成員（在群組所屬的分片上執行）
+         * 上傳期間已離開群組時捨棄檔案
+         *
+         * @param done 已收齊內容的上傳
+         */
+        private void shareFile(FileStore.Upload done) throws IOException {
+            ChatGroup group = currentGroup;
+            if (group == null) {
+                done.abort();
+                send("You left the group before " + done.name + " finished uploading, file discarded.");
+                return;
+            }
+            FileStore.SharedFile file = done.publish(group.name());
+            String id = files.displayId(file.id);
+            broadcast(group, "[" + userName + "] shared " + file.name + " (" + file.size
+                    + " bytes). Type GETFILE " + id + " to download.", this);
+            send("You shared " + file.name + " in " + group.name() + " as file #" + id + ".");
+        }
+
+        /**
+         * 處理下載要求（在群組所屬的分片上執行）：只有檔案分享到的群組的目前成員可以下載
+         * 檔案排入連線的檔案通道，由寫出端分段送出，不佔用輸出佇列的容量
+         *
+         * @param id 使用者輸入的檔案編號
+         */
+        private void handleDownload(String id) throws IOException {
+            FileStore.SharedFile file = files.get(id);
+            ChatGroup group = currentGroup;
+            if (file == null) {
+                send("File #" + id.trim() + " not found.");
+            } else if (group == null || !group.name().equals(file.group)) {
+                send("File #" + id.trim() + " was not shared in your current group.");
+            } else {
+                ByteBuffer start = Frame.of(Protocol.OP_FILE, file.id, file.size + " " + file.name)
+                        .buffer(Protocol.VERSION);
+                try {
+                    conn.sendFile(new FileTransfer(file.path, file.id, file.size, start));
+                } catch (IOException e) {
+                    send(e.getMessage());
+                }
             }
         }
 
@@ -323,161 +1585,289 @@ public class Server {
         private void enterLobby() throws IOException {
             inLobby = true;
             // ANSI 清屏指令：\033[H 移動游標到左上角，\033[2J 清除整個畫面
-            out.writeUTF("\033[H\033[2J");
+            send("\033[H\033[2J");
             // 顯示歡迎訊息和所有可用指令
-            out.writeUTF("Welcome " + userName + " to the Lobby.\nAvailable commands:\n"
+            send("Welcome " + userName + " to the Lobby.\nAvailable commands:\n"
                     + "JOIN_Group_A / JOIN_Group_B / JOIN_Group_C\n"
                     + "CHANGE_Group_A / CHANGE_Group_B / CHANGE_Group_C\n"
-                    + "LEAVE / HISTORY / EXIT!\n");
+                    + "JOIN_<name> / CHANGE_<name> for any other group (created on demand)\n"
+                    + "LEAVE / HISTORY / EXIT!\n"
+                    + "SENDFILE <path> / GETFILE <id> to share files in your group\n");
         }
 
         /**
-         * 處理 JOIN_Group_X 指令
+         * 處理 JOIN_Group_X 指令（在相關群組的分片上執行）
          * 將客戶端加入指定群組，如果群組已滿則加入等待佇列
+         * 正在排隊時先在原群組的分片上取消排隊，再交給目標群組的分片加入
          * 
          * @param groupName 群組名稱（例如："Group_A" 或 "A"）
          */
         private void handleJoin(String groupName) throws IOException {
-            // 正規化群組名稱：移除可能的重複前綴，轉換為大寫，加上 Group_ 前綴
-            String group = "Group_" + groupName.replace("Group_", "").toUpperCase();
-            // 驗證群組名稱是否有效
-            if (!groups.containsKey(group)) {
-                out.writeUTF("Invalid group name!");
+            // 正規化並驗證群組名稱
+            String name = GroupRegistry.normalize(groupName);
+            if (name == null) {
+                send("Invalid group name!");
                 return;
             }
-            // 記錄目標群組（用於等待佇列機制）
-            targetGroup = group;
+            // 已在群組內時需使用 CHANGE_ 切換，避免同時屬於兩個群組
+            if (currentGroup != null) {
+                send("You are already in " + currentGroup.name() + ". Use CHANGE_ to switch.");
+                return;
+            }
+            // 若正在等待其他群組，先取消原本的排隊（目前就在該群組的分片上）
+            ChatGroup.Waiter previous = waiting;
+            if (previous != null) {
+                waiting = null;
+                previous.group.cancel(previous);
+                // 原佇列後面的客戶端往前移一位
+                updateWaitingQueuePositions(previous.group);
+            }
+            handOff(name, () -> joinGroup(name));
+        }
 
-            // 取得目標群組的客戶端列表
-            List<ClientHandler> g = groups.get(group);
-            // 檢查群組是否已滿
-            if (g.size() >= MAX_GROUP_SIZE) {
-                // 將客戶端加入等待佇列
-                waitingQueue.add(this);
+        /**
+         * JOIN_ 的第二步（在目標群組的分片上執行）：取得名額或排入等待佇列
+         * 群組不存在時隨即建立
+         *
+         * @param name 正規化後的群組名稱
+         */
+        void joinGroup(String name) throws IOException {
+            ChatGroup g = lookupGroup(name);
+            if (g == null) {
+                return;
+            }
+            ChatGroup.Waiter w = g.joinOrWait(this);
+            if (w != null) {
+                waiting = w;
                 // 告知客戶端群組已滿並顯示在等待佇列中的位置
-                out.writeUTF(group + " is full! You are added to waiting queue position: " + waitingQueue.size());
-                // 更新所有等待客戶端的排隊位置資訊
-                updateWaitingQueuePositions();
+                // 排在佇列尾端，其他等待者的位置不變，不需要通知
+                send(name + " is full! You are added to waiting queue position: " + w.notifiedPosition);
                 return;
             }
-
-            // 群組有空位，直接加入
-            g.add(this);
-            currentGroup = group;
+            currentGroup = g;
             inLobby = false;
+
             // 廣播給群組其他成員：有新成員加入
-            broadcast(group, userName + " joined " + group + ".", this);
+            broadcast(g, userName + " joined " + name + ".", this);
+            joinedSeq = g.history.lastSeq();
             // 告知客戶端已成功加入群組
-            out.writeUTF("You joined " + group + ".");
+            send("You joined " + name + ".");
         }
 
         /**
-         * 處理 CHANGE_Group_X 指令
-         * 將客戶端從當前群組切換到另一個群組
+         * 處理 CHANGE_Group_X 指令（在原群組的分片上執行）
+         * 將客戶端從當前群組切換到另一個群組，分成兩次依序交棒：
+         * 先到新群組的分片取得名額（不排隊），成功後才回到原群組的分片離開原群組
          * 
          * @param groupName 目標群組名稱
          */
         private void handleChange(String groupName) throws IOException {
             // 檢查客戶端是否在群組內
             if (currentGroup == null) {
-                out.writeUTF("You are not in a group. Use JOIN_ first.");
+                send("You are not in a group. Use JOIN_ first.");
                 return;
             }
 
-            // 正規化目標群組名稱
-            String newGroup = "Group_" + groupName.replace("Group_", "").toUpperCase();
-            // 驗證群組名稱是否有效
-            if (!groups.containsKey(newGroup)) {
-                out.writeUTF("Invalid group name!");
+            // 正規化並驗證目標群組名稱
+            String name = GroupRegistry.normalize(groupName);
+            if (name == null) {
+                send("Invalid group name!");
                 return;
             }
 
-            // 檢查目標群組是否已滿
-            if (groups.get(newGroup).size() >= MAX_GROUP_SIZE) {
-                out.writeUTF(newGroup + " is full! You remain in " + currentGroup + ".");
+            ChatGroup oldGroup = currentGroup;
+            if (name.equals(oldGroup.name())) {
+                send("You are already in " + name + ".");
                 return;
             }
+            handOff(name, () -> enterNewGroup(oldGroup, name));
+        }
 
-            // 從原群組中移除
-            groups.get(currentGroup).remove(this);
-            // 廣播給原群組成員：客戶端已離開
-            broadcast(currentGroup, userName + " left " + currentGroup + ".", this);
-
-            // 加入新群組
+        /**
+         * CHANGE_ 的第二步（在新群組的分片上執行）：有空位時加入新群組
+         *
+         * @param oldGroup 原本所在的群組
+         * @param name     新群組名稱
+         */
+        private void enterNewGroup(ChatGroup oldGroup, String name) throws IOException {
+            ChatGroup newGroup = lookupGroup(name);
+            if (newGroup == null) {
+                return;
+            }
+            if (!newGroup.tryJoin(this)) {
+                send(name + " is full! You remain in " + oldGroup.name() + ".");
+                return;
+            }
             currentGroup = newGroup;
-            groups.get(newGroup).add(this);
             // 廣播給新群組成員：客戶端已加入
-            broadcast(newGroup, userName + " joined " + newGroup + ".", this);
+            broadcast(newGroup, userName + " joined " + name + ".", this);
+            joinedSeq = newGroup.history.lastSeq();
+            handOff(oldGroup.name(), () -> leaveOldGroup(oldGroup, newGroup));
+        }
+
+        /**
+         * CHANGE_ 的第三步（回到原群組的分片上執行）：離開原群組並讓等待中的客戶端遞補
+         *
+         * @param oldGroup 原本所在的群組
+         * @param newGroup 已加入的新群組
+         */
+        private void leaveOldGroup(ChatGroup oldGroup, ChatGroup newGroup) throws IOException {
+            ClientHandler joined = oldGroup.leave(this);
+
+            // 廣播給原群組成員：客戶端已離開
+            broadcast(oldGroup, userName + " left " + oldGroup.name() + ".", this);
+            // 原群組空出的名額交給等待中的客戶端
+            tryAutoJoin(oldGroup, joined);
             // 告知客戶端已成功切換群組
-            out.writeUTF("You switched to " + newGroup + ".");
+            send("You switched to " + newGroup.name() + ".");
         }
 
         /**
-         * 處理 LEAVE 指令
+         * 取得群組，不存在時建立（在群組所屬的分片上呼叫）
+         * 無法建立時（群組數量已達上限或歷史記錄開啟失敗）會直接告知客戶端
+         *
+         * @param name 正規化後的群組名稱
+         * @return 群組；無法建立時回傳 null
+         */
+        private ChatGroup lookupGroup(String name) throws IOException {
+            try {
+                ChatGroup g = groups.getOrCreate(name);
+                if (g == null) {
+                    send("Too many groups! Please join an existing group.");
+                }
+                return g;
+            } catch (UncheckedIOException e) {
+                e.printStackTrace();
+                send("Failed to open " + name + ". Please try again later.");
+                return null;
+            }
+        }
+
+        /**
+         * 處理 LEAVE 指令（在所在群組的分片上執行）
          * 讓客戶端離開當前群組並返回大廳
          * 離開後會觸發自動補位機制
          */
         private void handleLeave() throws IOException {
             if (currentGroup != null) {
-                // 保存離開的群組名稱（用於自動補位）
-                String leftGroup = currentGroup;
-                // 從群組中移除客戶端
-                groups.get(currentGroup).remove(this);
-                // 廣播給群組其他成員：客戶端已離開
-                broadcast(leftGroup, userName + " left " + leftGroup + ".", this);
-                // 清除當前群組狀態
-                currentGroup = null;
+                // 從群組中移除客戶端（同時清除當前群組狀態），通知其他成員並讓等待中的客戶端自動補位
+                removeMember(this, false);
                 // 清空畫面
-                out.writeUTF("\033[H\033[2J");
+                send("\033[H\033[2J");
                 // 告知客戶端已離開群組並返回大廳
-                out.writeUTF("You have left the group and returned to the Lobby.");
-                // 嘗試讓等待佇列中的客戶端自動補進該群組
-                tryAutoJoin(leftGroup);
+                send("You have left the group and returned to the Lobby.");
                 // 重新進入大廳（顯示歡迎訊息）
                 enterLobby();
             } else {
-                out.writeUTF("You are not in a group.");
+                send("You are not in a group.");
+            }
+        }
+
+        /**
+         * 解析 HISTORY 的查詢條件並排入指令（格式錯誤時回覆用法）
+         *
+         * @param args HISTORY 之後的參數
+         */
+        private void submitHistory(String args) {
+            HistoryQuery query = HistoryQuery.parse(args);
+            if (query == null) {
+                submit(() -> send(HistoryQuery.USAGE));
+            } else {
+                submit(() -> handleHistory(query));
             }
         }
 
         /**
-         * 處理 HISTORY 指令
-         * 顯示當前群組的訊息歷史記錄（最多 50 條）
+         * 處理 HISTORY 指令（在所在群組的分片上執行）
+         * 依查詢條件算出序號範圍，直接從歷史記錄的索引取出該範圍的訊息，不複製整份歷史；
+         * 單次最多回覆 --history-page-size 則，範圍外還有訊息時在結束標記附上下一頁的指令（含本頁的則數）
+         *
+         * @param query 查詢條件
          */
-        private void handleHistory() throws IOException {
+        void handleHistory(HistoryQuery query) throws IOException {
             // 檢查客戶端是否在群組內
             if (currentGroup == null) {
-                out.writeUTF("You are not in a group!");
+                send("You are not in a group!");
                 return;
             }
-            // 發送歷史記錄標題
-            out.writeUTF("=== Last 50 Messages of " + currentGroup + " ===");
-            // 遍歷並發送所有歷史記錄
-            for (String line : groupHistory.get(currentGroup)) {
-                out.writeUTF(line);
+            // 歷史記錄只由本分片寫入，讀取時不會與廣播同時進行
+            HistoryRing history = currentGroup.history;
+            int count = query.count > 0 ? query.count : history.capacity();
+            count = Math.min(count, config.historyPageSize);
+            long first = history.firstSeq();
+            long last = history.lastSeq();
+            long from;
+            long to;
+            String title;
+            switch (query.mode) {
+                case SINCE:
+                    // 由舊到新：從游標之後（或最舊的訊息）開始取 count 則
+                    from = Math.max(Math.min(query.seq, last) + 1, first);
+                    to = Math.min(last, from + count - 1);
+                    title = "=== Messages of " + currentGroup.name() + " after #" + query.seq + " ===";
+                    break;
+                case BEFORE:
+                    // 由新到舊：取游標之前最接近的 count 則
+                    to = Math.min(last, query.seq - 1);
+                    from = Math.max(to - count + 1, first);
+                    title = "=== Messages of " + currentGroup.name() + " before #" + query.seq + " ===";
+                    break;
+                default:
+                    to = last;
+                    from = Math.max(to - count + 1, first);
+                    title = "=== Last " + count + " Messages of " + currentGroup.name() + " ===";
+            }
+            List<Frame> page = history.range(from, to);
+            // 標題、範圍內的歷史記錄（直接送出廣播時編碼好的訊框）與結束標記
+            List<Frame> batch = new ArrayList<>(page.size() + 2);
+            batch.add(Frame.of(title));
+            batch.addAll(page);
+            if (query.mode == HistoryQuery.Mode.SINCE && to < last) {
+                batch.add(Frame.of("=== More: HISTORY SINCE " + to + " " + count + " ==="));
+            } else if (query.mode != HistoryQuery.Mode.SINCE && from > first) {
+                batch.add(Frame.of("=== More: HISTORY BEFORE " + from + " " + count + " ==="));
+            } else {
+                batch.add(Frame.of("=== End of History ==="));
+            }
+            sendBatch(batch);
+        }
+
+        /**
+         * 依序送出一批訊框
+         * 協商了壓縮時，整批壓縮成一個訊框送出（相鄰訊息之間的重複內容也能被壓縮）
+         *
+         * @param batch 要送出的訊框
+         */
+        private void sendBatch(List<Frame> batch) throws IOException {
+            int threshold = compressThreshold(features);
+            if (threshold > 0) {
+                int total = 0;
+                for (Frame frame : batch) {
+                    total += frame.size();
+                }
+                Frame compressed = total >= threshold ? Compression.compress(batch) : null;
+                if (compressed != null) {
+                    send(compressed);
+                    return;
+                }
+            }
+            for (Frame frame : batch) {
+                send(frame);
             }
-            // 發送結束標記
-            out.writeUTF("=== End of History ===");
         }
 
         /**
-         * 處理 EXIT! 指令
+         * 處理 EXIT! 指令（在相關群組的分片上執行）
          * 客戶端主動退出，清理資源並通知其他客戶端
          */
         private void handleExit() throws IOException {
-            // 如果客戶端在群組內，先從群組中移除
-            if (currentGroup != null) {
-                String leftGroup = currentGroup;
-                groups.get(leftGroup).remove(this);
-                // 廣播給群組其他成員：客戶端已離開
-                broadcast(leftGroup, userName + " left " + leftGroup + ".", this);
-                // 嘗試自動補位
-                tryAutoJoin(leftGroup);
-            }
+            abortUpload();
+            // 先從群組與等待佇列中移除（通知其他成員並自動補位）
+            removeMember(this, false);
             // 從所有客戶端列表中移除
-            allClients.remove(this);
-            // 全域廣播：客戶端已離開伺服器
-            broadcastAll(userName + " has left the server.");
+            removeClient(this);
+            // 全域廣播：客戶端已離開伺服器（同一個合併間隔內的上線／離開合併成一則）
+            presence.left(userName);
             // 關閉連線
             closeConnection();
         }
@@ -486,34 +1876,64 @@ public class Server {
          * 處理客戶端異常斷線
          * 當連線中斷時（IOException）自動呼叫此方法
          */
-        private void handleDisconnect() {
+        void handleDisconnect() {
             try {
-                // 保存離開的群組名稱
-                String leftGroup = currentGroup;
                 // 關閉連線
                 closeConnection();
-                // 從所有客戶端列表中移除
-                allClients.remove(this);
-                // 如果客戶端在群組內，通知群組其他成員
-                if (leftGroup != null) {
-                    broadcast(leftGroup, userName + " disconnected.", this);
-                }
-                // 在伺服器端顯示斷線訊息
-                System.out.println(userName + " disconnected.");
-                // 如果客戶端在群組內，觸發自動補位
-                if (leftGroup != null) {
-                    tryAutoJoin(leftGroup);
-                }
             } catch (Exception ignored) {
                 // 忽略清理過程中的錯誤
             }
+            // 已續接到原本工作階段的連線：由原本的工作階段處理斷線
+            ClientHandler session = resumedAs;
+            if (session != null) {
+                session.handleDisconnect();
+                return;
+            }
+            // 已送出 EXIT! 的客戶端由 handleExit 清理
+            if (exiting) {
+                return;
+            }
+            // 上傳到一半斷線：刪除未完成的檔案（續接後需重新上傳）
+            submit(this::abortUpload);
+            exiting = true;
+            if (resumeToken != null) {
+                park();
+                return;
+            }
+            // 排在已收到的指令之後：從群組、等待佇列與所有客戶端列表中移除（通知群組其他成員並自動補位）
+            submit(this::leaveServer);
+        }
+
+        /**
+         * 保留斷線的工作階段（名稱、群組名額與排隊位置不變），期限內未續接才離開伺服器
+         * 保留期間送給此客戶端的訊息會被丟棄，群組訊息續接時再從歷史記錄補送
+         */
+        private void park() {
+            ParkedSession parked = new ParkedSession(this);
+            parkedSessions.put(resumeToken, parked);
+            System.out.println(userName + " disconnected, session held for " + config.resumeGrace + " s.");
+            groups.schedule(homeShard, () -> {
+                if (parkedSessions.remove(resumeToken, parked)) {
+                    submit(this::leaveServer);
+                }
+            }, TimeUnit.SECONDS.toMillis(config.resumeGrace));
+        }
+
+        /**
+         * 斷線後離開伺服器：從群組、等待佇列與所有客戶端列表中移除（通知群組其他成員並自動補位）
+         */
+        private void leaveServer() {
+            removeMember(this, true);
+            removeClient(this);
+            // 在伺服器端顯示斷線訊息
+            System.out.println(userName + " disconnected.");
         }
 
         /**
          * 關閉與客戶端的 Socket 連線
          */
         private void closeConnection() throws IOException {
-            socket.close();
+            conn.close();
         }
     }
 }
\ No newline at end of file
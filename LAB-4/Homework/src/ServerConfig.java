@@ -0,0 +1,326 @@
+package src;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/**
+ * 伺服器啟動參數
+ *
+ * 以 --名稱=值 的格式從命令列讀入，未指定的參數沿用原本的預設值，
+ * 例如：java src/Server --transport=nio --event-loops=4 --max-clients=20000
+ */
+final class ServerConfig {
+    /**
+     * 傳輸層模式
+     * THREAD：每個客戶端一條平台執行緒（原本的阻塞式架構）
+     * VIRTUAL：每個客戶端一條虛擬執行緒，沿用阻塞式程式碼（需 Java 21 以上）
+     * NIO：Selector 事件迴圈，少量執行緒處理所有連線
+     */
+    enum Transport {
+        THREAD, VIRTUAL, NIO
+    }
+
+    // 伺服器監聽埠號
+    int port = 12345;
+    // 伺服器最大同時連線客戶端數量
+    int maxClients = 15;
+    // 傳輸層模式
+    Transport transport = Transport.THREAD;
+    // NIO 模式下的事件迴圈執行緒數量
+    int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // 群組分片（單一寫入者執行緒）的數量
+    int shards = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // 每個客戶端輸出佇列的高水位與低水位（位元組）
+    int outboundHighWatermark = 1024 * 1024;
+    int outboundLowWatermark = 256 * 1024;
+    // 輸出佇列超過高水位時的處理策略
+    OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.COALESCE;
+    // 啟動時建立且閒置時不回收的常駐群組
+    final Set<String> groups = new LinkedHashSet<>(Arrays.asList("Group_A", "Group_B", "Group_C"));
+    // 每個群組的最大成員數量（預設值與個別群組的設定）
+    int maxGroupSize = 4;
+    final Map<String, Integer> groupMaxSize = new HashMap<>();
+    // 同時存在的群組數量上限，以及隨需建立的群組閒置多久後回收（秒）
+    int maxGroups = 1_000_000;
+    // 設定 --history-dir 且未指定 --max-groups 時的群組數量上限
+    // （每個有訊息的群組映射一個分段檔與索引檔，避免用盡 vm.max_map_count 與磁碟空間）
+    static final int PERSISTENT_MAX_GROUPS = 10_000;
+    int groupIdleTimeout = 60;
+    // 排隊位置變動的批次通知間隔（毫秒）
+    int queueNotifyInterval = 100;
+    // 全伺服器上線／離開通知的合併間隔（毫秒，0 表示每個事件立即廣播）
+    int presenceInterval = 200;
+    // 二進位協定下客戶端單一訊框內容的長度上限（bytes）
+    int maxFrameSize = 1024 * 1024;
+    // 協商了壓縮的連線，內容不小於此大小的訊框才壓縮（bytes，0 表示不提供壓縮）
+    int compressionThreshold = 512;
+    // 每個群組保留的歷史訊息數量（預設值與個別群組的設定）
+    int historyDepth = 50;
+    final Map<String, Integer> groupHistoryDepth = new HashMap<>();
+    // HISTORY 單次回覆的最多訊息數（超過時分頁，回覆中附上下一頁的游標）
+    int historyPageSize = 50;
+    // 持久化歷史記錄的目錄（null 表示只保存在記憶體中）與每個分段檔的大小
+    String historyDir = null;
+    int historySegmentSize = 8 * 1024 * 1024;
+    // 斷線後保留工作階段（名稱、群組名額與排隊位置）等待續接的時間（秒，0 表示不提供續接）
+    int resumeGrace = 30;
+    // 續接時最多補送的訊息數
+    int resumeReplayLimit = 1000;
+    // 訊息速率限制（每秒訊息數與可累積的突發量，速率 0 表示不限制；預設都不限制，由管理者以參數開啟）：
+    // 每個客戶端的聊天訊息、每個群組的聊天訊息、每個客戶端的 BROADCAST 與整個節點的 BROADCAST
+    int chatRate = 0;
+    int chatBurst = 0;
+    int groupChatRate = 0;
+    int groupChatBurst = 0;
+    int broadcastRate = 0;
+    int broadcastBurst = 0;
+    int globalBroadcastRate = 0;
+    int globalBroadcastBurst = 0;
+    // 群組內分享檔案的存放目錄（null 表示使用暫存目錄，伺服器結束時刪除）與單一檔案的大小上限（bytes）
+    String fileDir = null;
+    long maxFileSize = 100L * 1024 * 1024;
+    // 叢集模式：所有節點的匯流排位址（空清單表示單機模式）與本節點在清單中的位置（從 1 開始）
+    final List<InetSocketAddress> cluster = new ArrayList<>();
+    int nodeId = 0;
+
+    /**
+     * @param group 群組名稱
+     * @return 該群組的歷史深度（未個別設定時使用預設值）
+     */
+    int historyDepth(String group) {
+        return groupHistoryDepth.getOrDefault(group, historyDepth);
+    }
+
+    /**
+     * @param group 群組名稱
+     * @return 該群組的最大成員數量（未個別設定時使用預設值）
+     */
+    int groupSize(String group) {
+        return groupMaxSize.getOrDefault(group, maxGroupSize);
+    }
+
+    /**
+     * 解析命令列參數
+     *
+     * @param args main 收到的參數
+     * @return 解析後的設定
+     * @throws IllegalArgumentException 參數格式錯誤或名稱未知時拋出
+     */
+    static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        boolean maxGroupsSet = false;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "max-clients":
+                    config.maxClients = Integer.parseInt(value);
+                    break;
+                case "transport":
+                    config.transport = Transport.valueOf(value.toUpperCase());
+                    break;
+                case "event-loops":
+                    config.eventLoops = Integer.parseInt(value);
+                    break;
+                case "shards":
+                    config.shards = positive(name, value);
+                    break;
+                case "outbound-high-watermark":
+                    config.outboundHighWatermark = Integer.parseInt(value);
+                    break;
+                case "outbound-low-watermark":
+                    config.outboundLowWatermark = Integer.parseInt(value);
+                    break;
+                case "overflow-policy":
+                    config.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase());
+                    break;
+                case "max-frame-size":
+                    config.maxFrameSize = positive(name, value);
+                    if (config.maxFrameSize > Frame.MAX_PAYLOAD) {
+                        throw new IllegalArgumentException("--" + name + " must be at most " + Frame.MAX_PAYLOAD);
+                    }
+                    break;
+                case "compression-threshold":
+                    config.compressionThreshold = Integer.parseInt(value);
+                    if (config.compressionThreshold < 0) {
+                        throw new IllegalArgumentException("--" + name + " must not be negative: " + value);
+                    }
+                    break;
+                case "history-depth":
+                    config.historyDepth = positive(name, value);
+                    break;
+                case "history-page-size":
+                    config.historyPageSize = positive(name, value);
+                    break;
+                case "group-history-depth":
+                    // 格式：Group_A:20000,Group_B:500
+                    parseGroupValues(name, value, config.groupHistoryDepth);
+                    break;
+                case "groups":
+                    config.groups.clear();
+                    for (String group : value.split(",")) {
+                        config.groups.add(groupName(name, group));
+                    }
+                    break;
+                case "max-group-size":
+                    config.maxGroupSize = positive(name, value);
+                    break;
+                case "group-max-size":
+                    // 格式：Group_A:10,Group_VIP:50
+                    parseGroupValues(name, value, config.groupMaxSize);
+                    break;
+                case "max-groups":
+                    config.maxGroups = positive(name, value);
+                    maxGroupsSet = true;
+                    break;
+                case "group-idle-timeout":
+                    config.groupIdleTimeout = Integer.parseInt(value);
+                    if (config.groupIdleTimeout < 0) {
+                        throw new IllegalArgumentException("--" + name + " must not be negative: " + value);
+                    }
+                    break;
+                case "presence-interval":
+                    config.presenceInterval = Integer.parseInt(value);
+                    if (config.presenceInterval < 0) {
+                        throw new IllegalArgumentException("--" + name + " must not be negative: " + value);
+                    }
+                    break;
+                case "queue-notify-interval":
+                    config.queueNotifyInterval = Integer.parseInt(value);
+                    if (config.queueNotifyInterval < 0) {
+                        throw new IllegalArgumentException("--" + name + " must not be negative: " + value);
+                    }
+                    break;
+                case "history-dir":
+                    config.historyDir = value;
+                    break;
+                case "history-segment-size":
+                    config.historySegmentSize = positive(name, value);
+                    if (config.historySegmentSize < HistoryLog.MIN_SEGMENT_SIZE) {
+                        throw new IllegalArgumentException("--" + name + " must be at least "
+                                + HistoryLog.MIN_SEGMENT_SIZE);
+                    }
+                    break;
+                case "resume-grace":
+                    config.resumeGrace = Integer.parseInt(value);
+                    if (config.resumeGrace < 0) {
+                        throw new IllegalArgumentException("--" + name + " must not be negative: " + value);
+                    }
+                    break;
+                case "resume-replay-limit":
+                    config.resumeReplayLimit = positive(name, value);
+                    break;
+                case "chat-rate":
+                    int[] chat = rate(name, value);
+                    config.chatRate = chat[0];
+                    config.chatBurst = chat[1];
+                    break;
+                case "group-chat-rate":
+                    int[] groupChat = rate(name, value);
+                    config.groupChatRate = groupChat[0];
+                    config.groupChatBurst = groupChat[1];
+                    break;
+                case "broadcast-rate":
+                    int[] broadcast = rate(name, value);
+                    config.broadcastRate = broadcast[0];
+                    config.broadcastBurst = broadcast[1];
+                    break;
+                case "global-broadcast-rate":
+                    int[] global = rate(name, value);
+                    config.globalBroadcastRate = global[0];
+                    config.globalBroadcastBurst = global[1];
+                    break;
+                case "file-dir":
+                    config.fileDir = value;
+                    break;
+                case "max-file-size":
+                    config.maxFileSize = Long.parseLong(value);
+                    if (config.maxFileSize <= 0) {
+                        throw new IllegalArgumentException("--" + name + " must be positive: " + value);
+                    }
+                    break;
+                case "cluster":
+                    // 格式：127.0.0.1:13001,127.0.0.1:13002,127.0.0.1:13003（每個節點的順序必須相同）
+                    config.cluster.clear();
+                    for (String node : value.split(",")) {
+                        int colon = node.lastIndexOf(':');
+                        if (colon < 0) {
+                            throw new IllegalArgumentException("Invalid value for --" + name + ": " + node);
+                        }
+                        config.cluster.add(new InetSocketAddress(node.substring(0, colon),
+                                positive(name, node.substring(colon + 1))));
+                    }
+                    break;
+                case "node-id":
+                    config.nodeId = positive(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        // 分段必須放得下最大的聊天訊息，否則大型訊息會各自獨佔一個分段
+        if (config.historyDir != null && config.historySegmentSize < HistoryLog.minSegmentSize(config.maxFrameSize)) {
+            throw new IllegalArgumentException("--history-segment-size must be at least "
+                    + HistoryLog.minSegmentSize(config.maxFrameSize) + " with --max-frame-size=" + config.maxFrameSize);
+        }
+        if (config.historyDir != null && !maxGroupsSet) {
+            config.maxGroups = Math.min(config.maxGroups, PERSISTENT_MAX_GROUPS);
+        }
+        if (!config.cluster.isEmpty() && (config.nodeId < 1 || config.nodeId > config.cluster.size())) {
+            throw new IllegalArgumentException("--node-id must be between 1 and " + config.cluster.size()
+                    + " when --cluster is set");
+        }
+        return config;
+    }
+
+    /**
+     * 解析「群組:數值」清單，群組名稱會先正規化
+     */
+    private static void parseGroupValues(String name, String value, Map<String, Integer> target) {
+        for (String entry : value.split(",")) {
+            int colon = entry.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Invalid value for --" + name + ": " + entry);
+            }
+            target.put(groupName(name, entry.substring(0, colon)), positive(name, entry.substring(colon + 1)));
+        }
+    }
+
+    private static String groupName(String name, String group) {
+        String normalized = GroupRegistry.normalize(group);
+        if (normalized == null) {
+            throw new IllegalArgumentException("Invalid group name for --" + name + ": " + group);
+        }
+        return normalized;
+    }
+
+    /**
+     * 解析速率限制：格式為 "每秒訊息數" 或 "每秒訊息數:突發量"（未指定突發量時為速率的兩倍，0 表示不限制）
+     *
+     * @return {速率, 突發量}
+     */
+    private static int[] rate(String name, String value) {
+        int colon = value.indexOf(':');
+        int rate = Integer.parseInt(colon < 0 ? value : value.substring(0, colon));
+        if (rate < 0) {
+            throw new IllegalArgumentException("--" + name + " must not be negative: " + value);
+        }
+        int burst = colon < 0 ? Math.max(1, rate * 2) : positive(name, value.substring(colon + 1));
+        return new int[]{rate, burst};
+    }
+
+    private static int positive(String name, String value) {
+        int n = Integer.parseInt(value);
+        if (n <= 0) {
+            throw new IllegalArgumentException("--" + name + " must be positive: " + value);
+        }
+        return n;
+    }
+}
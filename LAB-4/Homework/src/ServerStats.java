@@ -0,0 +1,278 @@
+package src;
+
+import java.util.*;
+import java.util.function.IntSupplier;
+
+/**
+ * 伺服器統計資料的讀取端：管理員主控台的 /stats 報表與 JMX MXBean
+ *
+ * 計數器與延遲直方圖直接讀取 Metrics；群組人數與等待佇列長度屬於各分片，
+ * 因此交給每個分片各自彙整（只保留最大的幾個群組），再合併結果，不在分片以外讀取群組狀態。
+ */
+final class ServerStats implements ChatServerMXBean {
+    // MXBean 註冊的名稱
+    static final String OBJECT_NAME = "src:type=ChatServer";
+    // 報表中列出的群組數量
+    private static final int TOP_GROUPS = 10;
+
+    private final GroupRegistry groups;
+    private final IntSupplier liveConnections;
+    // 上一次主控台報表的時間與當時的接受連線數（計算期間內的連線速率；只由主控台執行緒使用）
+    private long lastReportNanos = Metrics.START_NANOS;
+    private long lastAccepted = 0;
+
+    /**
+     * 建構子
+     *
+     * @param groups          群組登錄表
+     * @param liveConnections 取得目前連線數
+     */
+    ServerStats(GroupRegistry groups, IntSupplier liveConnections) {
+        this.groups = groups;
+        this.liveConnections = liveConnections;
+    }
+
+    /**
+     * 單一群組的統計（在群組所屬的分片上取得）
+     */
+    private static final class GroupRow {
+        final String name;
+        final int size;
+        final int capacity;
+        final int waiting;
+
+        GroupRow(ChatGroup g) {
+            this.name = g.name();
+            this.size = g.size();
+            this.capacity = g.capacity();
+            this.waiting = g.waitingCount();
+        }
+    }
+
+    // 依人數（含等待者）由多到少排序
+    private static final Comparator<GroupRow> BY_LOAD =
+            Comparator.comparingInt((GroupRow r) -> r.size + r.waiting).reversed().thenComparing(r -> r.name);
+    // 依等待人數由多到少排序
+    private static final Comparator<GroupRow> BY_WAITING =
+            Comparator.comparingInt((GroupRow r) -> r.waiting).reversed().thenComparing(r -> r.name);
+
+    /**
+     * 所有群組的彙整結果
+     */
+    private static final class GroupSummary {
+        int groups;
+        long members;
+        long waiting;
+        final List<GroupRow> largest = new ArrayList<>();
+        final List<GroupRow> longestQueues = new ArrayList<>();
+
+        /**
+         * 彙整一個分片上的群組（在該分片上執行）
+         */
+        static GroupSummary of(Collection<ChatGroup> shard) {
+            GroupSummary s = new GroupSummary();
+            List<GroupRow> rows = new ArrayList<>(shard.size());
+            for (ChatGroup g : shard) {
+                GroupRow row = new GroupRow(g);
+                s.groups++;
+                s.members += row.size;
+                s.waiting += row.waiting;
+                rows.add(row);
+            }
+            s.keepTop(rows);
+            return s;
+        }
+
+        /**
+         * 合併另一個分片的結果
+         */
+        void merge(GroupSummary other) {
+            groups += other.groups;
+            members += other.members;
+            waiting += other.waiting;
+            List<GroupRow> rows = new ArrayList<>(largest);
+            rows.addAll(other.largest);
+            rows.addAll(other.longestQueues);
+            rows.addAll(longestQueues);
+            keepTop(rows);
+        }
+
+        private void keepTop(List<GroupRow> rows) {
+            Set<String> seen = new HashSet<>();
+            rows.removeIf(r -> !seen.add(r.name));
+            rows.sort(BY_LOAD);
+            largest.clear();
+            largest.addAll(rows.subList(0, Math.min(TOP_GROUPS, rows.size())));
+            rows.removeIf(r -> r.waiting == 0);
+            rows.sort(BY_WAITING);
+            longestQueues.clear();
+            longestQueues.addAll(rows.subList(0, Math.min(TOP_GROUPS, rows.size())));
+        }
+    }
+
+    private GroupSummary groupSummary() {
+        GroupSummary total = new GroupSummary();
+        for (GroupSummary part : groups.collect(GroupSummary::of)) {
+            total.merge(part);
+        }
+        return total;
+    }
+
+    /**
+     * 管理員主控台的 /stats 報表（連線速率為上一次 /stats 以來的平均）
+     */
+    String consoleReport() {
+        long now = System.nanoTime();
+        long accepted = Metrics.ACCEPTED.sum();
+        String report = report(now, accepted, lastReportNanos, lastAccepted, "since last /stats");
+        lastReportNanos = now;
+        lastAccepted = accepted;
+        return report;
+    }
+
+    @Override
+    public String getReport() {
+        return report(System.nanoTime(), Metrics.ACCEPTED.sum(), Metrics.START_NANOS, 0, "average");
+    }
+
+    private String report(long now, long accepted, long sinceNanos, long sinceAccepted, String rateLabel) {
+        StringBuilder sb = new StringBuilder();
+        long uptime = (now - Metrics.START_NANOS) / 1_000_000_000L;
+        sb.append(String.format("=== Server Stats (uptime %dh%02dm%02ds) ===%n", uptime / 3600, uptime / 60 % 60, uptime % 60));
+        double seconds = Math.max(1e-9, (now - sinceNanos) / 1e9);
+        sb.append(String.format("Connections: live %d, accepted %d (%.1f/s %s), rejected %d%n",
+                liveConnections.getAsInt(), accepted, (accepted - sinceAccepted) / seconds, rateLabel,
+                Metrics.REJECTED.sum()));
+        sb.append(String.format("Traffic: in %s, out %s, throttled messages %d%n", bytes(Metrics.BYTES_IN.sum()),
+                bytes(Metrics.BYTES_OUT.sum()), Metrics.THROTTLED.sum()));
+        sb.append("Commands:");
+        for (Metrics.Command c : Metrics.Command.values()) {
+            sb.append(' ').append(c).append('=').append(Metrics.commandCount(c));
+        }
+        sb.append(System.lineSeparator());
+        GroupSummary summary = groupSummary();
+        sb.append(String.format("Groups: %d (members %d, waiting %d)%n", summary.groups, summary.members, summary.waiting));
+        for (GroupRow r : summary.largest) {
+            sb.append(String.format("  %-20s %d/%d, waiting %d%n", r.name, r.size, r.capacity, r.waiting));
+        }
+        sb.append("Group broadcast fan-out: ").append(latency(Metrics.GROUP_FANOUT.snapshot())).append(System.lineSeparator());
+        sb.append("Global broadcast fan-out (last recipient): ").append(latency(Metrics.GLOBAL_FANOUT.snapshot()));
+        return sb.toString();
+    }
+
+    private static String bytes(long n) {
+        if (n < 1024) {
+            return n + " B";
+        }
+        if (n < 1024 * 1024) {
+            return String.format("%.1f KiB", n / 1024.0);
+        }
+        return String.format("%.1f MiB", n / (1024.0 * 1024));
+    }
+
+    private static String latency(LatencyHistogram.Snapshot s) {
+        if (s.count() == 0) {
+            return "no samples";
+        }
+        return String.format("count %d, p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us", s.count(),
+                s.percentile(0.5) / 1e3, s.percentile(0.99) / 1e3, s.percentile(0.999) / 1e3, s.max() / 1e3);
+    }
+
+    private static Map<String, Double> latencyMap(LatencyHistogram.Snapshot s) {
+        Map<String, Double> m = new LinkedHashMap<>();
+        m.put("count", (double) s.count());
+        m.put("p50", s.percentile(0.5) / 1e3);
+        m.put("p90", s.percentile(0.9) / 1e3);
+        m.put("p99", s.percentile(0.99) / 1e3);
+        m.put("p999", s.percentile(0.999) / 1e3);
+        m.put("max", s.max() / 1e3);
+        return m;
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return (System.nanoTime() - Metrics.START_NANOS) / 1_000_000_000L;
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return Metrics.ACCEPTED.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return Metrics.REJECTED.sum();
+    }
+
+    @Override
+    public long getThrottledMessages() {
+        return Metrics.THROTTLED.sum();
+    }
+
+    @Override
+    public int getLiveConnections() {
+        return liveConnections.getAsInt();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return Metrics.BYTES_IN.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return Metrics.BYTES_OUT.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        for (Metrics.Command c : Metrics.Command.values()) {
+            m.put(c.name(), Metrics.commandCount(c));
+        }
+        return m;
+    }
+
+    @Override
+    public int getGroups() {
+        return groups.size();
+    }
+
+    @Override
+    public long getGroupMembers() {
+        return groupSummary().members;
+    }
+
+    @Override
+    public long getWaitingClients() {
+        return groupSummary().waiting;
+    }
+
+    @Override
+    public Map<String, Integer> getLargestGroupSizes() {
+        Map<String, Integer> m = new LinkedHashMap<>();
+        for (GroupRow r : groupSummary().largest) {
+            m.put(r.name, r.size);
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Integer> getLongestWaitingQueues() {
+        Map<String, Integer> m = new LinkedHashMap<>();
+        for (GroupRow r : groupSummary().longestQueues) {
+            m.put(r.name, r.waiting);
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Double> getGroupBroadcastLatencyMicros() {
+        return latencyMap(Metrics.GROUP_FANOUT.snapshot());
+    }
+
+    @Override
+    public Map<String, Double> getGlobalBroadcastLatencyMicros() {
+        return latencyMap(Metrics.GLOBAL_FANOUT.snapshot());
+    }
+}
@@ -0,0 +1,144 @@
+package src;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.Executor;
+
+/**
+ * 阻塞式 Socket 連線
+ *
+ * send() 只把訊框放入有界輸出佇列，由此連線專屬的寫出執行緒依序寫入 Socket，
+ * 因此接收端過慢時不會拖住發送者的執行緒。
+ *
+ * 寫出執行緒把佇列中現有的訊框全部寫入緩衝區後才 flush（一次系統呼叫），
+ * 佇列一空就立即 flush，互動式的回覆不需要等待；處理指令期間以 cork 暫停取出，
+ * 讓一個指令產生的所有訊框（例如 LEAVE 的清除畫面、通知與大廳畫面）合併成一次寫入。
+ * 合併由程式自己處理，因此關閉 Nagle 演算法（TCP_NODELAY），避免額外的延遲。
+ *
+ * 檔案下載由同一條寫出執行緒以 FileChannel.transferTo 直接寫入 Socket 的通道，
+ * 每送出一段之前先送完佇列中的訊框。
+ */
+class SocketConnection implements ChatConnection {
+    // 與客戶端的 Socket 連線
+    private final Socket socket;
+    // 輸出緩衝區大小（超過此大小的訊框直接寫出，不經過緩衝區）
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // Socket 輸出流（加上緩衝區，只由寫出執行緒使用）
+    private final OutputStream out;
+    // 檔案下載的寫入目標（Socket 由 ServerSocketChannel 接受時為其通道，transferTo 不經過 heap）
+    private final WritableByteChannel target;
+    // 待寫出的訊框
+    private final OutboundQueue queue;
+    private volatile boolean closed = false;
+
+    /**
+     * 建構子：建立輸出流並啟動寫出執行緒
+     *
+     * @param socket   與客戶端的 Socket 連線
+     * @param queue    此連線的輸出佇列
+     * @param executor 用來執行寫出迴圈的執行器（與 ClientHandler 相同類型的執行緒）
+     */
+    SocketConnection(Socket socket, OutboundQueue queue, Executor executor) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        this.out = new BufferedOutputStream(Metrics.countOut(socket.getOutputStream()), BUFFER_SIZE);
+        this.target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        this.queue = queue;
+        executor.execute(this::writeLoop);
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        if (!queue.offer(frame)) {
+            // 依 DISCONNECT 策略中斷：關閉 Socket 讓讀取執行緒進入斷線處理
+            abort();
+            throw new IOException("Outbound queue overflow, client disconnected");
+        }
+    }
+
+    @Override
+    public void sendFile(FileTransfer file) throws IOException {
+        if (closed || !queue.offerFile(file)) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    @Override
+    public void cork() {
+        queue.cork();
+    }
+
+    @Override
+    public void uncork() {
+        queue.uncork();
+    }
+
+    /**
+     * 正常關閉：不再接受新訊息，寫出執行緒送完剩餘訊框後關閉 Socket
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.close();
+    }
+
+    /**
+     * 寫出迴圈：持續從佇列取出訊框寫入 Socket
+     * 每次把佇列中現有的訊框全部寫入緩衝區，佇列清空後才 flush
+     * 寫出握手回覆後，之後的訊框改以協商出的協定編碼（協商了壓縮時，較大的訊框改送壓縮編碼）
+     * 有檔案下載時，每輪送完訊框後再送出檔案的一段
+     */
+    private void writeLoop() {
+        FileTransfer file = null;
+        try {
+            int version = Protocol.LEGACY;
+            int compressThreshold = 0;
+            while (queue.await(file != null)) {
+                Frame frame;
+                while ((frame = queue.poll()) != null) {
+                    frame.writeTo(out, version, compressThreshold);
+                    if (frame.opcode() == Protocol.OP_HELLO) {
+                        version = (int) frame.seq();
+                        compressThreshold = Server.compressThreshold(frame.groupId());
+                    }
+                }
+                out.flush();
+                if (file == null) {
+                    file = queue.pollFile();
+                }
+                if (file != null) {
+                    Metrics.BYTES_OUT.add(file.writeChunk(target));
+                    if (file.done()) {
+                        file.close();
+                        file = null;
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // 寫入失敗代表連線已中斷，由讀取執行緒處理斷線
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+        abort();
+    }
+
+    /**
+     * 立即關閉 Socket（不等待剩餘訊框）
+     */
+    private void abort() {
+        closed = true;
+        queue.close();
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // 關閉失敗時不需額外處理
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package src;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 客戶端的終端輸出階段
+ *
+ * 收到的訊息先排入佇列，由獨立的輸出執行緒每隔一個畫面間隔取出所有待輸出的訊息，
+ * 組成一個字串後以一次 print + flush 寫到終端，而不是每則訊息各呼叫一次 println。
+ * 同一批中出現清屏指令時，清屏之前的內容會立刻被清掉，因此直接捨棄，只保留最後一次清屏
+ * 與之後的內容；終端最後顯示的畫面與逐則輸出相同，訊息順序也不變。
+ *
+ * 佇列已滿（終端跟不上）時 println() 會等待，讓壓力回到網路連線上，不會無限制地累積記憶體。
+ */
+final class TerminalRenderer implements Closeable {
+    // ANSI 清屏指令：\033[H 移動游標到左上角，\033[2J 清除整個畫面
+    static final String CLEAR_SCREEN = "\033[H\033[2J";
+    // 最多累積的待輸出訊息數
+    private static final int MAX_PENDING = 100_000;
+    private static final String NEWLINE = System.lineSeparator();
+    // 通知輸出執行緒結束（以參考比較，不會與伺服器的訊息混淆）
+    private static final String STOP = new String("");
+
+    private final PrintStream out;
+    private final long intervalNanos;
+    private final BlockingQueue<String> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+    private final Thread thread;
+
+    // 以下只由輸出執行緒使用
+    private final List<String> batch = new ArrayList<>();
+    private final StringBuilder frame = new StringBuilder();
+
+    /**
+     * 建構子（立即啟動輸出執行緒）
+     *
+     * @param out            輸出目的地（通常為 System.out）
+     * @param intervalMillis 兩次寫出之間的最短間隔（毫秒）
+     */
+    TerminalRenderer(PrintStream out, long intervalMillis) {
+        this.out = out;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        thread = new Thread(this::run, "terminal-renderer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 排入一行要輸出的訊息（可由任意執行緒呼叫）
+     */
+    void println(String message) {
+        try {
+            pending.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 輸出所有已排入的訊息後結束輸出執行緒
+     */
+    @Override
+    public void close() {
+        println(STOP);
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 輸出執行緒：閒置時等待第一則訊息；距離上次寫出未滿一個間隔時，先等待並累積同一批的訊息
+     */
+    private void run() {
+        long last = System.nanoTime() - intervalNanos;
+        try {
+            boolean running = true;
+            while (running) {
+                batch.add(pending.take());
+                long wait = last + intervalNanos - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                pending.drainTo(batch);
+                running = render();
+                last = System.nanoTime();
+            }
+        } catch (InterruptedException e) {
+            // 結束輸出
+        }
+    }
+
+    /**
+     * 將同一批訊息組成一個字串寫出（清屏之前的內容直接捨棄）
+     *
+     * @return false 表示收到結束通知
+     */
+    private boolean render() {
+        boolean running = true;
+        frame.setLength(0);
+        for (String msg : batch) {
+            if (msg == STOP) {
+                running = false;
+                break;
+            }
+            if (msg.startsWith(CLEAR_SCREEN)) {
+                frame.setLength(0);
+            }
+            frame.append(msg).append(NEWLINE);
+        }
+        batch.clear();
+        if (frame.length() > 0) {
+            out.print(frame);
+            out.flush();
+        }
+        return running;
+    }
+}
@@ -0,0 +1,64 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 無鎖的權杖桶（限制訊息速率）
+ *
+ * 以 GCRA（generic cell rate algorithm）實作：不記錄剩餘的權杖數，只記錄「下一個權杖理論上的可用時間」，
+ * 權杖以固定速率補充、最多累積 burst 個。每次取用只做一次 nanoTime 與一次 CAS，
+ * 不需要另外的補充執行緒，也不加鎖，可由任意執行緒同時呼叫。
+ */
+final class TokenBucket {
+    // 每個權杖的補充間隔（奈秒）
+    private final long interval;
+    // 可預先取用的時間（(burst - 1) 個間隔）
+    private final long tolerance;
+    // 下一個權杖的理論可用時間（System.nanoTime() 的時間軸）
+    private final AtomicLong nextFree;
+
+    /**
+     * 建構子（桶子一開始是滿的）
+     *
+     * @param ratePerSecond 每秒補充的權杖數
+     * @param burst         最多累積的權杖數
+     */
+    TokenBucket(int ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive: " + ratePerSecond + "/" + burst);
+        }
+        this.interval = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        this.tolerance = interval * (burst - 1);
+        this.nextFree = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * 依設定建立權杖桶
+     *
+     * @return 權杖桶；速率為 0（不限制）時回傳 null
+     */
+    static TokenBucket of(int ratePerSecond, int burst) {
+        return ratePerSecond > 0 ? new TokenBucket(ratePerSecond, burst) : null;
+    }
+
+    /**
+     * 取用一個權杖
+     *
+     * @return 是否取得（false 表示超過速率，呼叫端應捨棄這則訊息）
+     */
+    boolean tryTake() {
+        long now = System.nanoTime();
+        while (true) {
+            long next = nextFree.get();
+            // 桶子已滿時從現在開始計算（以差值比較，nanoTime 溢位時仍然正確）
+            long base = next - now > 0 ? next : now;
+            if (base - now > tolerance) {
+                return false;
+            }
+            if (nextFree.compareAndSet(next, base + interval)) {
+                return true;
+            }
+        }
+    }
+}